@@ -0,0 +1,316 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Reads forecasts through the provider while it is writing them, the way a sync does.
+
+    testReadLatencyDuringWrites benchmarks reads while another thread keeps bulk inserting
+    forecasts, first on the rollback journal and then on the write-ahead log.  With the
+    rollback journal a read waits for the write transaction in progress; with the log it
+    doesn't.  The numbers are written to logcat under this class's tag; how they come out
+    depends too much on the device to assert on.
+
+    testReadsDuringApplyBatch checks that reads carry on while a batch has its transaction
+    open, and see the forecast as it was until the batch commits.
+ */
+public class TestConcurrentReads extends AndroidTestCase {
+
+    private static final String LOG_TAG = TestConcurrentReads.class.getSimpleName();
+
+    private static final String BENCHMARK_DATABASE_NAME = "benchmark_weather.db";
+
+    // Each write is one bulkInsert of the forecast of this many saved locations.
+    private static final int LOCATIONS_PER_WRITE = 10;
+    private static final int WARM_UP_READS = 20;
+    private static final int BENCHMARK_READS = 200;
+
+    private static final int READS = 50;
+    // What the batch adds to each day's high.
+    private static final double WARMER = 10;
+
+    private static final String[] FORECAST_PROJECTION = {
+            WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_WEATHER_ID
+    };
+    private static final int COL_MAX_TEMP = 3;
+
+    private volatile Throwable mReaderError;
+    private volatile Throwable mBatchError;
+    private volatile boolean mStopWriting;
+    private volatile Throwable mWriterError;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteForecasts();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteForecasts();
+        mContext.deleteDatabase(BENCHMARK_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    private void deleteForecasts() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    public void testReadLatencyDuringWrites() throws Exception {
+        long[] rollback = benchmark(false);
+        long[] wal = benchmark(true);
+        Log.i(LOG_TAG, "Read while writing, median and 95th percentile: rollback journal "
+                + rollback[0] + "us and " + rollback[1] + "us; write-ahead log "
+                + wal[0] + "us and " + wal[1] + "us");
+    }
+
+    /**
+     * @return the median and 95th percentile of the read times, in microseconds.
+     */
+    private long[] benchmark(boolean writeAheadLogging) throws Exception {
+        mContext.deleteDatabase(BENCHMARK_DATABASE_NAME);
+        BenchmarkProvider provider = new BenchmarkProvider(mContext, writeAheadLogging);
+        final ContentResolver resolver = provider.getContentResolver();
+        try {
+            // Two versions of the same forecasts, written in turn so that every write changes
+            // every row.
+            ArrayList<ContentValues> forecast = new ArrayList<ContentValues>();
+            ArrayList<ContentValues> warmerForecast = new ArrayList<ContentValues>();
+            String[] selectionArgs = null;
+            for (int i = 0; i < LOCATIONS_PER_WRITE; i++) {
+                ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+                locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, "location" + i);
+                // Locations at the same place would be one location.
+                locationValues.put(LocationEntry.COLUMN_COORD_LAT, (double) i);
+                long locationRowId = ContentUris.parseId(
+                        resolver.insert(LocationEntry.CONTENT_URI, locationValues));
+                if (selectionArgs == null) {
+                    selectionArgs = new String[]{Long.toString(locationRowId)};
+                }
+                for (ContentValues values : TestProvider.createBulkInsertWeatherValues(locationRowId)) {
+                    forecast.add(values);
+                    ContentValues warmer = new ContentValues(values);
+                    warmer.put(WeatherEntry.COLUMN_MAX_TEMP,
+                            values.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP) + WARMER);
+                    warmerForecast.add(warmer);
+                }
+            }
+            final ContentValues[][] forecasts = {
+                    forecast.toArray(new ContentValues[forecast.size()]),
+                    warmerForecast.toArray(new ContentValues[warmerForecast.size()])
+            };
+            resolver.bulkInsert(WeatherEntry.CONTENT_URI, forecasts[0]);
+
+            mStopWriting = false;
+            mWriterError = null;
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 1; !mStopWriting; i++) {
+                            resolver.bulkInsert(WeatherEntry.CONTENT_URI, forecasts[i % 2]);
+                        }
+                    } catch (Throwable t) {
+                        mWriterError = t;
+                    }
+                }
+            });
+            writer.start();
+
+            long[] readMicros = new long[BENCHMARK_READS];
+            try {
+                for (int i = 0; i < WARM_UP_READS + BENCHMARK_READS; i++) {
+                    long start = System.nanoTime();
+                    readMaxTemps(resolver, selectionArgs);
+                    if (i >= WARM_UP_READS) {
+                        readMicros[i - WARM_UP_READS] = (System.nanoTime() - start) / 1000;
+                    }
+                    // Let the writer get a transaction in between.
+                    Thread.sleep(1);
+                }
+            } finally {
+                mStopWriting = true;
+                writer.join();
+            }
+            if (mWriterError != null) {
+                throw new AssertionError(mWriterError);
+            }
+
+            Arrays.sort(readMicros);
+            return new long[]{readMicros[BENCHMARK_READS / 2],
+                    readMicros[BENCHMARK_READS * 95 / 100]};
+        } finally {
+            // ContentProvider.shutdown() came with Honeycomb.
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                provider.shutdown();
+            }
+        }
+    }
+
+    public void testReadsDuringApplyBatch() throws Exception {
+        // Older platforms keep the rollback journal, where a read does wait for the write.
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        final TestUtilities.BlockingWeatherProvider provider =
+                TestUtilities.BlockingWeatherProvider.create(mContext);
+        final ContentResolver resolver = provider.getContentResolver();
+        try {
+            Uri locationUri = resolver.insert(LocationEntry.CONTENT_URI,
+                    TestUtilities.createNorthPoleLocationValues());
+            long locationRowId = ContentUris.parseId(locationUri);
+            ContentValues[] forecast = TestProvider.createBulkInsertWeatherValues(locationRowId);
+            assertEquals(forecast.length, resolver.bulkInsert(WeatherEntry.CONTENT_URI, forecast));
+
+            final ArrayList<ContentProviderOperation> batch =
+                    new ArrayList<ContentProviderOperation>();
+            for (ContentValues values : forecast) {
+                ContentValues warmer = new ContentValues(values);
+                warmer.put(WeatherEntry.COLUMN_MAX_TEMP,
+                        values.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP) + WARMER);
+                batch.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                        .withValues(warmer)
+                        .build());
+            }
+            final String[] selectionArgs = {Long.toString(locationRowId)};
+
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        resolver.applyBatch(WeatherContract.CONTENT_AUTHORITY, batch);
+                    } catch (Throwable t) {
+                        mBatchError = t;
+                    }
+                }
+            });
+            writer.start();
+
+            final double[][] readMaxTemps = new double[READS][];
+            final long[] readMicros = new long[READS];
+            final CountDownLatch readsDone = new CountDownLatch(1);
+            try {
+                assertTrue("Error: the batch never got to its last operation",
+                        provider.mBatchOpen.await(10, TimeUnit.SECONDS));
+                // Read on a thread of its own, so that a read stuck behind the batch fails the
+                // test rather than hanging it.
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < READS; i++) {
+                                long start = System.nanoTime();
+                                readMaxTemps[i] = readMaxTemps(resolver, selectionArgs);
+                                readMicros[i] = (System.nanoTime() - start) / 1000;
+                            }
+                        } catch (Throwable t) {
+                            mReaderError = t;
+                        } finally {
+                            readsDone.countDown();
+                        }
+                    }
+                }).start();
+                assertTrue("Error: reads waited for the batch to finish",
+                        readsDone.await(10, TimeUnit.SECONDS));
+                assertTrue("Error: the batch should still have been open", writer.isAlive());
+            } finally {
+                provider.mRelease.countDown();
+                writer.join();
+            }
+            if (mReaderError != null) {
+                throw new AssertionError(mReaderError);
+            }
+            if (mBatchError != null) {
+                throw new AssertionError(mBatchError);
+            }
+
+            for (double[] maxTemps : readMaxTemps) {
+                assertEquals("Error: a read saw part of the batch", forecast.length, maxTemps.length);
+                for (int day = 0; day < forecast.length; day++) {
+                    assertEquals("Error: a read saw the batch before it committed",
+                            forecast[day].getAsDouble(WeatherEntry.COLUMN_MAX_TEMP),
+                            maxTemps[day], 0.001);
+                }
+            }
+            double[] maxTemps = readMaxTemps(resolver, selectionArgs);
+            for (int day = 0; day < forecast.length; day++) {
+                assertEquals("Error: the batch should have committed",
+                        forecast[day].getAsDouble(WeatherEntry.COLUMN_MAX_TEMP) + WARMER,
+                        maxTemps[day], 0.001);
+            }
+
+            Arrays.sort(readMicros);
+            Log.i(LOG_TAG, "Read while a batch was open, median and slowest: "
+                    + readMicros[READS / 2] + "us and " + readMicros[READS - 1] + "us");
+        } finally {
+            provider.shutdown();
+        }
+    }
+
+    /**
+     * @return the location's highs, by date.  Read from the weather table each time; the
+     * provider only keeps the location's forecast queries in memory.
+     */
+    private static double[] readMaxTemps(ContentResolver resolver, String[] selectionArgs) {
+        Cursor cursor = resolver.query(WeatherEntry.CONTENT_URI, FORECAST_PROJECTION,
+                WeatherEntry.COLUMN_LOC_KEY + " = ?", selectionArgs,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        try {
+            double[] maxTemps = new double[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                maxTemps[i] = cursor.getDouble(COL_MAX_TEMP);
+            }
+            return maxTemps;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+        A WeatherProvider on a database of its own, with or without the write-ahead log, and
+        a resolver that reaches it.
+     */
+    private static class BenchmarkProvider extends WeatherProvider {
+        private final boolean mWriteAheadLogging;
+        private final MockContentResolver mResolver = new MockContentResolver();
+
+        BenchmarkProvider(Context context, boolean writeAheadLogging) {
+            mWriteAheadLogging = writeAheadLogging;
+            attachInfo(context, null);
+            mResolver.addProvider(WeatherContract.CONTENT_AUTHORITY, this);
+        }
+
+        ContentResolver getContentResolver() {
+            return mResolver;
+        }
+
+        @Override
+        WeatherDbHelper createOpenHelper(Context context) {
+            return new WeatherDbHelper(context, BENCHMARK_DATABASE_NAME, mWriteAheadLogging);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyWeatherEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncHistoryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/*
+    Builds a database as each past version of the app left it, fills it, and checks that
+    WeatherDbHelper upgrades it to the schema a fresh install gets without losing the stored
+    locations and weather.  The upgrade and the first forecast read after it are timed, and
+    the numbers written to logcat under this class's tag.
+
+    When DATABASE_VERSION goes up, add the statements the new version replaces to schemaAt(),
+    as they were; testEveryVersionIsCovered fails until then.
+ */
+public class TestDbMigrations extends AndroidTestCase {
+
+    private static final String LOG_TAG = TestDbMigrations.class.getSimpleName();
+
+    private static final String MIGRATION_DATABASE_NAME = "migration_weather.db";
+    private static final String FRESH_DATABASE_NAME = "fresh_weather.db";
+
+    // The newest version schemaAt() knows.
+    private static final int LAST_PAST_VERSION = 5;
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(MIGRATION_DATABASE_NAME);
+        mContext.deleteDatabase(FRESH_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    /**
+     * @return the statements that created the database at the version, frozen as they were
+     * then.  These must not change with WeatherDbHelper.
+     */
+    private static List<String> schemaAt(int version) {
+        List<String> statements = new ArrayList<String>();
+        statements.add("CREATE TABLE location (_id INTEGER PRIMARY KEY," +
+                "location_setting TEXT UNIQUE NOT NULL, city_name TEXT NOT NULL, " +
+                "coord_lat REAL NOT NULL, coord_long REAL NOT NULL  );");
+        statements.add("CREATE TABLE weather (_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "location_id INTEGER NOT NULL, date INTEGER NOT NULL, " +
+                "short_desc TEXT NOT NULL, weather_id INTEGER NOT NULL," +
+                "min REAL NOT NULL, max REAL NOT NULL, humidity REAL NOT NULL, " +
+                "pressure REAL NOT NULL, wind REAL NOT NULL, degrees REAL NOT NULL, " +
+                " FOREIGN KEY (location_id) REFERENCES location (_id),  " +
+                "UNIQUE (date, location_id) ON CONFLICT REPLACE);");
+        if (version >= 3) {
+            statements.add("CREATE TABLE sync_history (_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    "location_setting TEXT NOT NULL, started INTEGER NOT NULL, " +
+                    "outcome INTEGER NOT NULL, connect_ms INTEGER, first_byte_ms INTEGER, " +
+                    "download_ms INTEGER, parse_ms INTEGER, db_write_ms INTEGER, " +
+                    "fan_out_ms INTEGER, total_ms INTEGER NOT NULL, " +
+                    "bytes_received INTEGER, rows_changed INTEGER  );");
+        }
+        if (version >= 4) {
+            statements.add("CREATE TABLE hourly_weather (_id INTEGER PRIMARY KEY," +
+                    "location_id INTEGER NOT NULL, time INTEGER NOT NULL, " +
+                    "weather_id INTEGER NOT NULL, temp INTEGER NOT NULL, " +
+                    "humidity INTEGER NOT NULL, wind INTEGER NOT NULL, " +
+                    " FOREIGN KEY (location_id) REFERENCES location (_id),  " +
+                    "UNIQUE (location_id, time) ON CONFLICT REPLACE);");
+        }
+        if (version >= 5) {
+            statements.add("CREATE TABLE location_alias (_id INTEGER PRIMARY KEY," +
+                    "alias TEXT UNIQUE NOT NULL ON CONFLICT REPLACE, " +
+                    "location_id INTEGER NOT NULL, " +
+                    " FOREIGN KEY (location_id) REFERENCES location (_id));");
+        }
+        return statements;
+    }
+
+    public void testEveryVersionIsCovered() {
+        mContext.deleteDatabase(FRESH_DATABASE_NAME);
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext, FRESH_DATABASE_NAME, false);
+        assertEquals("Error: TestDbMigrations doesn't know the schema of the last version",
+                LAST_PAST_VERSION + 1, dbHelper.getReadableDatabase().getVersion());
+        dbHelper.close();
+    }
+
+    public void testUpgradeFromEveryVersion() {
+        mContext.deleteDatabase(FRESH_DATABASE_NAME);
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext, FRESH_DATABASE_NAME, false);
+        String freshSchema = describe(dbHelper.getReadableDatabase());
+        dbHelper.close();
+
+        for (int version = WeatherDbHelper.FIRST_MIGRATED_VERSION;
+                version <= LAST_PAST_VERSION; version++) {
+            checkUpgradeFrom(version, freshSchema);
+        }
+    }
+
+    public void testUpgradeCanonicalizesLocationSettings() {
+        SQLiteDatabase db = createDatabaseAt(4);
+        long locationRowId = insertLocation(db, " " + TestUtilities.TEST_LOCATION + " ");
+        // The same place synced a second time, under another spelling.
+        long duplicateRowId = insertLocation(db, TestUtilities.TEST_LOCATION);
+        insertWeather(db, locationRowId);
+        insertWeather(db, duplicateRowId);
+        db.close();
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext, MIGRATION_DATABASE_NAME, false);
+        db = dbHelper.getReadableDatabase();
+        Cursor cursor = db.query(LocationEntry.TABLE_NAME,
+                new String[]{LocationEntry.COLUMN_LOCATION_SETTING}, null, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals(TestUtilities.TEST_LOCATION, cursor.getString(0));
+        cursor.close();
+        assertEquals(TestProvider.createBulkInsertWeatherValues(0).length,
+                count(db, WeatherEntry.TABLE_NAME));
+        dbHelper.close();
+    }
+
+    private void checkUpgradeFrom(int version, String freshSchema) {
+        SQLiteDatabase db = createDatabaseAt(version);
+        long locationRowId = insertLocation(db, TestUtilities.TEST_LOCATION);
+        ContentValues[] weatherValues = insertWeather(db, locationRowId);
+        if (version >= 3) {
+            ContentValues syncValues = new ContentValues();
+            syncValues.put(SyncHistoryEntry.COLUMN_LOCATION_SETTING, TestUtilities.TEST_LOCATION);
+            syncValues.put(SyncHistoryEntry.COLUMN_STARTED, TestUtilities.TEST_DATE);
+            syncValues.put(SyncHistoryEntry.COLUMN_OUTCOME, SyncHistoryEntry.OUTCOME_CHANGED);
+            syncValues.put(SyncHistoryEntry.COLUMN_TOTAL_MILLIS, 1000);
+            assertTrue(db.insert(SyncHistoryEntry.TABLE_NAME, null, syncValues) != -1);
+        }
+        if (version >= 4) {
+            ContentValues hourlyValues = new ContentValues();
+            hourlyValues.put(HourlyWeatherEntry.COLUMN_LOC_KEY, locationRowId);
+            hourlyValues.put(HourlyWeatherEntry.COLUMN_TIME, TestUtilities.TEST_DATE / 1000);
+            hourlyValues.put(HourlyWeatherEntry.COLUMN_WEATHER_ID, 321);
+            hourlyValues.put(HourlyWeatherEntry.COLUMN_TEMP, 20);
+            hourlyValues.put(HourlyWeatherEntry.COLUMN_HUMIDITY, 80);
+            hourlyValues.put(HourlyWeatherEntry.COLUMN_WIND_SPEED, 5);
+            assertTrue(db.insert(HourlyWeatherEntry.TABLE_NAME, null, hourlyValues) != -1);
+        }
+        db.close();
+
+        long start = System.nanoTime();
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext, MIGRATION_DATABASE_NAME, false);
+        db = dbHelper.getReadableDatabase();
+        long upgradeNanos = System.nanoTime() - start;
+        assertEquals(version, WeatherDbHelper.getUpgradedFromVersion());
+
+        start = System.nanoTime();
+        Cursor cursor = db.query(WeatherEntry.TABLE_NAME, null,
+                WeatherEntry.COLUMN_LOC_KEY + " = ?", new String[]{Long.toString(locationRowId)},
+                null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals("Error: weather lost upgrading from version " + version,
+                weatherValues.length, cursor.getCount());
+        long firstReadNanos = System.nanoTime() - start;
+        for (int i = 0; cursor.moveToNext(); i++) {
+            TestUtilities.validateCurrentRecord("Error: weather changed upgrading from version "
+                    + version, cursor, weatherValues[i]);
+        }
+        cursor.close();
+        Log.i(LOG_TAG, "From version " + version + ": upgrade " + (upgradeNanos / 1000)
+                + "us, first forecast read " + (firstReadNanos / 1000) + "us");
+
+        assertEquals(1, count(db, LocationEntry.TABLE_NAME));
+        assertEquals(version >= 3 ? 1 : 0, count(db, SyncHistoryEntry.TABLE_NAME));
+        assertEquals(version >= 4 ? 1 : 0, count(db, HourlyWeatherEntry.TABLE_NAME));
+        assertEquals("Error: schema upgraded from version " + version
+                + " differs from a fresh one", freshSchema, describe(db));
+        dbHelper.close();
+    }
+
+    private SQLiteDatabase createDatabaseAt(int version) {
+        mContext.deleteDatabase(MIGRATION_DATABASE_NAME);
+        SQLiteDatabase db = mContext.openOrCreateDatabase(MIGRATION_DATABASE_NAME, 0, null);
+        for (String statement : schemaAt(version)) {
+            db.execSQL(statement);
+        }
+        db.setVersion(version);
+        return db;
+    }
+
+    private static long insertLocation(SQLiteDatabase db, String locationSetting) {
+        ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+        locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        long locationRowId = db.insert(LocationEntry.TABLE_NAME, null, locationValues);
+        assertTrue(locationRowId != -1);
+        return locationRowId;
+    }
+
+    private static ContentValues[] insertWeather(SQLiteDatabase db, long locationRowId) {
+        ContentValues[] weatherValues = TestProvider.createBulkInsertWeatherValues(locationRowId);
+        for (ContentValues values : weatherValues) {
+            assertTrue(db.insert(WeatherEntry.TABLE_NAME, null, values) != -1);
+        }
+        return weatherValues;
+    }
+
+    private static int count(SQLiteDatabase db, String table) {
+        Cursor cursor = db.query(table, null, null, null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    /**
+     * @return every table's columns and every index's columns, in a stable order, so two
+     * databases can be compared however their tables came to be.
+     */
+    private static String describe(SQLiteDatabase db) {
+        TreeSet<String> entries = new TreeSet<String>();
+        Cursor master = db.rawQuery("SELECT type, name FROM sqlite_master" +
+                " WHERE type IN ('table', 'index') AND name != 'android_metadata'", null);
+        while (master.moveToNext()) {
+            String type = master.getString(0);
+            String name = master.getString(1);
+            StringBuilder entry = new StringBuilder(type).append(' ').append(name).append(':');
+            Cursor info = db.rawQuery(("table".equals(type) ? "PRAGMA table_info("
+                    : "PRAGMA index_info(") + name + ")", null);
+            int nameIndex = info.getColumnIndex("name");
+            while (info.moveToNext()) {
+                entry.append(' ').append(info.getString(nameIndex));
+                if ("table".equals(type)) {
+                    entry.append(' ').append(info.getString(info.getColumnIndex("type")))
+                            .append(info.getInt(info.getColumnIndex("notnull")) != 0 ? " NN" : "")
+                            .append(info.getInt(info.getColumnIndex("pk")) != 0 ? " PK" : "");
+                }
+                entry.append(',');
+            }
+            info.close();
+            entries.add(entry.toString());
+        }
+        master.close();
+        return entries.toString();
+    }
+}
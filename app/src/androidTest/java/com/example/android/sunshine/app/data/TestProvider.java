@@ -16,6 +16,10 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.pm.PackageManager;
@@ -24,12 +28,20 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import com.example.android.sunshine.app.data.WeatherContract.HourlyWeatherEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncHistoryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.TodayEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
     that at least the basic functionality has been implemented correctly.
@@ -56,11 +68,21 @@ public class TestProvider extends AndroidTestCase {
                 null,
                 null
         );
+        mContext.getContentResolver().delete(
+                HourlyWeatherEntry.CONTENT_URI,
+                null,
+                null
+        );
         mContext.getContentResolver().delete(
                 LocationEntry.CONTENT_URI,
                 null,
                 null
         );
+        mContext.getContentResolver().delete(
+                SyncHistoryEntry.CONTENT_URI,
+                null,
+                null
+        );
 
         Cursor cursor = mContext.getContentResolver().query(
                 WeatherEntry.CONTENT_URI,
@@ -160,6 +182,18 @@ public class TestProvider extends AndroidTestCase {
         // vnd.android.cursor.dir/com.example.android.sunshine.app/location
         assertEquals("Error: the LocationEntry CONTENT_URI should return LocationEntry.CONTENT_TYPE",
                 LocationEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/location/setting/94074
+        type = mContext.getContentResolver().getType(LocationEntry.buildLocationSettingUri(testLocation));
+        // vnd.android.cursor.item/com.example.android.sunshine.app/location
+        assertEquals("Error: the LocationEntry setting uri should return LocationEntry.CONTENT_ITEM_TYPE",
+                LocationEntry.CONTENT_ITEM_TYPE, type);
+
+        // content://com.example.android.sunshine.app/today/94074
+        type = mContext.getContentResolver().getType(TodayEntry.buildTodayUri(testLocation));
+        // vnd.android.cursor.item/com.example.android.sunshine.app/today
+        assertEquals("Error: the TodayEntry uri should return TodayEntry.CONTENT_ITEM_TYPE",
+                TodayEntry.CONTENT_ITEM_TYPE, type);
     }
 
 
@@ -512,4 +546,731 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    // Enough for an import of a few years' history, or a sync of many saved locations.
+    static private final int BULK_INSERT_THROUGHPUT_RECORDS = 2000;
+
+    /*
+        Benchmarks bulkInsert on a large batch against inserting the same rows one
+        SQLiteDatabase.insert() at a time, the way bulkInsert used to.  The numbers are
+        written to logcat under this class's tag.
+     */
+    public void testBulkInsertThroughput() {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues[] history = new ContentValues[BULK_INSERT_THROUGHPUT_RECORDS];
+        long millisecondsInADay = 1000*60*60*24;
+        for (int i = 0; i < BULK_INSERT_THROUGHPUT_RECORDS; i++) {
+            history[i] = TestUtilities.createWeatherValues(locationRowId);
+            history[i].put(WeatherEntry.COLUMN_DATE,
+                    TestUtilities.TEST_DATE + i * millisecondsInADay);
+            history[i].put(WeatherEntry.COLUMN_MAX_TEMP, 75 + i % 20);
+        }
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        long start = System.nanoTime();
+        db.beginTransaction();
+        try {
+            for (ContentValues values : history) {
+                assertTrue(db.insert(WeatherEntry.TABLE_NAME, null, values) != -1);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        long insertNanos = System.nanoTime() - start;
+        db.delete(WeatherEntry.TABLE_NAME, null, null);
+        dbHelper.close();
+
+        start = System.nanoTime();
+        int insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, history);
+        long bulkInsertNanos = System.nanoTime() - start;
+        assertEquals(BULK_INSERT_THROUGHPUT_RECORDS, insertCount);
+
+        // Again, with every row already stored as it is.
+        start = System.nanoTime();
+        insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, history);
+        long unchangedNanos = System.nanoTime() - start;
+        assertEquals(0, insertCount);
+
+        Log.i(LOG_TAG, BULK_INSERT_THROUGHPUT_RECORDS + " rows: insert() per row "
+                + rowsPerSecond(insertNanos) + " rows/s; bulkInsert "
+                + rowsPerSecond(bulkInsertNanos) + " rows/s, "
+                + rowsPerSecond(unchangedNanos) + " rows/s unchanged");
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                new String[]{WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP},
+                null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(BULK_INSERT_THROUGHPUT_RECORDS, cursor.getCount());
+        for (int i = 0; cursor.moveToNext(); i++) {
+            assertEquals(75 + i % 20, cursor.getInt(1));
+        }
+        cursor.close();
+    }
+
+    private static long rowsPerSecond(long nanos) {
+        return BULK_INSERT_THROUGHPUT_RECORDS * 1000000000L / Math.max(1, nanos);
+    }
+
+    /*
+        Writing the same forecast twice should leave the stored rows alone, and changing one
+        day should rewrite only that row, in place.
+     */
+    public void testBulkInsertOnlyWritesChanges() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        ContentValues[] bulkInsertContentValues = createBulkInsertWeatherValues(locationRowId);
+        int insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, bulkInsertContentValues);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, insertCount);
+        long[] rowIds = getWeatherRowIds();
+
+        insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        assertEquals("Error: rewriting identical rows should change nothing", 0, insertCount);
+
+        ContentValues[] changedValues = createBulkInsertWeatherValues(locationRowId);
+        changedValues[3].put(WeatherEntry.COLUMN_MAX_TEMP, 99.5);
+        insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, changedValues);
+        assertEquals("Error: only the changed row should be written", 1, insertCount);
+
+        long[] updatedRowIds = getWeatherRowIds();
+        assertEquals(rowIds.length, updatedRowIds.length);
+        for (int i = 0; i < rowIds.length; i++) {
+            assertEquals("Error: row " + i + " was replaced instead of updated",
+                    rowIds[i], updatedRowIds[i]);
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        cursor.moveToPosition(3);
+        TestUtilities.validateCurrentRecord("testBulkInsertOnlyWritesChanges.  Error validating changed row",
+                cursor, changedValues[3]);
+        cursor.close();
+    }
+
+    private long[] getWeatherRowIds() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID},
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        long[] rowIds = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            rowIds[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        return rowIds;
+    }
+
+    /*
+        The history only keeps the most recent syncs, and percentiles are taken over the syncs
+        where the stage was measured.
+     */
+    public void testSyncHistoryPercentiles() {
+        for (int i = 1; i <= SyncHistoryEntry.MAX_ROWS + 10; i++) {
+            ContentValues values = new ContentValues();
+            values.put(SyncHistoryEntry.COLUMN_LOCATION_SETTING, "99705");
+            values.put(SyncHistoryEntry.COLUMN_STARTED, 1419033600000L + i);
+            values.put(SyncHistoryEntry.COLUMN_OUTCOME, SyncHistoryEntry.OUTCOME_CHANGED);
+            values.put(SyncHistoryEntry.COLUMN_TOTAL_MILLIS, i);
+            // Only every other sync got as far as the database.
+            if (i % 2 == 0) {
+                values.put(SyncHistoryEntry.COLUMN_DB_WRITE_MILLIS, i);
+            }
+            Uri uri = mContext.getContentResolver().insert(SyncHistoryEntry.CONTENT_URI, values);
+            assertTrue("Error: Failed to insert sync history row " + i, ContentUris.parseId(uri) > 0);
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(SyncHistoryEntry.CONTENT_URI,
+                null, null, null, SyncHistoryEntry.COLUMN_TOTAL_MILLIS + " ASC");
+        assertEquals("Error: sync history should be capped",
+                SyncHistoryEntry.MAX_ROWS, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals("Error: the oldest syncs should have been dropped",
+                11, cursor.getLong(cursor.getColumnIndex(SyncHistoryEntry.COLUMN_TOTAL_MILLIS)));
+        cursor.close();
+
+        // Totals 11..510 are left, so the median is the 250th of them.
+        assertEquals(260, queryPercentile(SyncHistoryEntry.COLUMN_TOTAL_MILLIS, 50));
+        assertEquals(485, queryPercentile(SyncHistoryEntry.COLUMN_TOTAL_MILLIS, 95));
+        assertEquals(510, queryPercentile(SyncHistoryEntry.COLUMN_TOTAL_MILLIS, 100));
+        // 250 database writes were measured, 12..510.
+        assertEquals(260, queryPercentile(SyncHistoryEntry.COLUMN_DB_WRITE_MILLIS, 50));
+
+        try {
+            queryPercentile(SyncHistoryEntry.COLUMN_LOCATION_SETTING, 50);
+            fail("Error: only the measurement columns should have percentiles");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private long queryPercentile(String column, int percentile) {
+        Cursor cursor = mContext.getContentResolver().query(
+                SyncHistoryEntry.buildPercentileUri(column, percentile), null, null, null, null);
+        assertTrue("Error: no " + column + " percentile returned", cursor.moveToFirst());
+        long value = cursor.getLong(0);
+        cursor.close();
+        return value;
+    }
+
+    static private final long THREE_HOURS_IN_SECONDS = 3 * 60 * 60;
+
+    private ContentValues[] createHourlyWeatherValues(long locationRowId, long firstTime, int count) {
+        ContentValues[] returnContentValues = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            ContentValues hourValues = new ContentValues();
+            hourValues.put(HourlyWeatherEntry.COLUMN_LOC_KEY, locationRowId);
+            hourValues.put(HourlyWeatherEntry.COLUMN_TIME, firstTime + i * THREE_HOURS_IN_SECONDS);
+            hourValues.put(HourlyWeatherEntry.COLUMN_WEATHER_ID, 321);
+            hourValues.put(HourlyWeatherEntry.COLUMN_TEMP, HourlyWeatherEntry.toScaled(-12.35 + i));
+            hourValues.put(HourlyWeatherEntry.COLUMN_HUMIDITY, 80 + i);
+            hourValues.put(HourlyWeatherEntry.COLUMN_WIND_SPEED, HourlyWeatherEntry.toScaled(5.5));
+            returnContentValues[i] = hourValues;
+        }
+        return returnContentValues;
+    }
+
+    /*
+        A day's URI returns that day's hours only, in order, and storing a newer fetch drops the
+        hours that have passed.
+     */
+    public void testHourlyWeather() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        long todayInSeconds = today / 1000;
+        // Two days' worth, starting at midnight.
+        int insertCount = mContext.getContentResolver().bulkInsert(HourlyWeatherEntry.CONTENT_URI,
+                createHourlyWeatherValues(locationRowId, todayInSeconds, 16));
+        assertEquals(16, insertCount);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                HourlyWeatherEntry.buildHourlyWeatherLocationWithDate(TestUtilities.TEST_LOCATION, today),
+                null,
+                null,
+                null,
+                null
+        );
+        assertEquals("Error: a day should have 8 three hour periods", 8, cursor.getCount());
+        int timeIndex = cursor.getColumnIndex(HourlyWeatherEntry.COLUMN_TIME);
+        int tempIndex = cursor.getColumnIndex(HourlyWeatherEntry.COLUMN_TEMP);
+        for (int i = 0; cursor.moveToNext(); i++) {
+            assertEquals(todayInSeconds + i * THREE_HOURS_IN_SECONDS, cursor.getLong(timeIndex));
+            assertEquals(-12.35 + i, HourlyWeatherEntry.fromScaled(cursor.getInt(tempIndex)), 0.001);
+        }
+        cursor.close();
+
+        // A fetch six hours later: the first two periods have passed.
+        insertCount = mContext.getContentResolver().bulkInsert(HourlyWeatherEntry.CONTENT_URI,
+                createHourlyWeatherValues(locationRowId,
+                        todayInSeconds + 2 * THREE_HOURS_IN_SECONDS, 16));
+        assertEquals(16, insertCount);
+
+        cursor = mContext.getContentResolver().query(
+                HourlyWeatherEntry.buildHourlyWeatherLocation(TestUtilities.TEST_LOCATION),
+                null,
+                null,
+                null,
+                null
+        );
+        assertEquals("Error: passed hours should have been dropped", 16, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals(todayInSeconds + 2 * THREE_HOURS_IN_SECONDS,
+                cursor.getLong(cursor.getColumnIndex(HourlyWeatherEntry.COLUMN_TIME)));
+        cursor.close();
+    }
+
+    /*
+        Hours handed over a primitive array per column are stored as bulkInsert stores them.
+     */
+    public void testHourlyWeatherCall() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        long todayInSeconds = WeatherContract.normalizeDate(System.currentTimeMillis()) / 1000;
+        int count = 8;
+        long[] locationIds = new long[count];
+        long[] times = new long[count];
+        int[] weatherIds = new int[count];
+        int[] temps = new int[count];
+        int[] humidities = new int[count];
+        int[] windSpeeds = new int[count];
+        for (int i = 0; i < count; i++) {
+            locationIds[i] = locationRowId;
+            times[i] = todayInSeconds + i * THREE_HOURS_IN_SECONDS;
+            weatherIds[i] = 321;
+            temps[i] = HourlyWeatherEntry.toScaled(-12.35 + i);
+            humidities[i] = 80 + i;
+            windSpeeds[i] = HourlyWeatherEntry.toScaled(5.5);
+        }
+        Bundle extras = new Bundle();
+        extras.putLongArray(HourlyWeatherEntry.COLUMN_LOC_KEY, locationIds);
+        extras.putLongArray(HourlyWeatherEntry.COLUMN_TIME, times);
+        extras.putIntArray(HourlyWeatherEntry.COLUMN_WEATHER_ID, weatherIds);
+        extras.putIntArray(HourlyWeatherEntry.COLUMN_TEMP, temps);
+        extras.putIntArray(HourlyWeatherEntry.COLUMN_HUMIDITY, humidities);
+        extras.putIntArray(HourlyWeatherEntry.COLUMN_WIND_SPEED, windSpeeds);
+        Bundle result = mContext.getContentResolver().call(HourlyWeatherEntry.CONTENT_URI,
+                HourlyWeatherEntry.METHOD_REPLACE, null, extras);
+        assertEquals(count, result.getInt(HourlyWeatherEntry.EXTRA_COUNT));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                HourlyWeatherEntry.buildHourlyWeatherLocation(TestUtilities.TEST_LOCATION),
+                null,
+                null,
+                null,
+                null
+        );
+        assertEquals(count, cursor.getCount());
+        ContentValues[] expected = createHourlyWeatherValues(locationRowId, todayInSeconds, count);
+        for (int i = 0; cursor.moveToNext(); i++) {
+            TestUtilities.validateCurrentRecord("testHourlyWeatherCall. Error validating hour " + i,
+                    cursor, expected[i]);
+        }
+        cursor.close();
+    }
+
+    /*
+        A bulk insert naming a column the table doesn't have is refused as a whole, rather than
+        stored without that value.
+     */
+    public void testBulkInsertRejectsUnknownColumns() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        ContentValues[] weatherValues = createBulkInsertWeatherValues(locationRowId);
+        weatherValues[weatherValues.length - 1].put("dew_point", 1.5);
+        try {
+            mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, weatherValues);
+            fail("Error: a weather column that doesn't exist should have been refused");
+        } catch (IllegalArgumentException expected) {
+        }
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI, null, null, null, null);
+        assertEquals("Error: a refused bulk insert should have written nothing",
+                0, cursor.getCount());
+        cursor.close();
+
+        ContentValues[] hourlyValues = createHourlyWeatherValues(locationRowId,
+                WeatherContract.normalizeDate(System.currentTimeMillis()) / 1000, 8);
+        hourlyValues[0].put("feels_like", 100);
+        try {
+            mContext.getContentResolver().bulkInsert(HourlyWeatherEntry.CONTENT_URI, hourlyValues);
+            fail("Error: an hourly column that doesn't exist should have been refused");
+        } catch (IllegalArgumentException expected) {
+        }
+        cursor = mContext.getContentResolver().query(
+                HourlyWeatherEntry.buildHourlyWeatherLocation(TestUtilities.TEST_LOCATION),
+                null, null, null, null);
+        assertEquals("Error: a refused bulk insert should have written nothing",
+                0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        Inserting a location that is already stored hands back the stored row, and weather
+        queries that don't ask for location columns give the same rows as the join.
+     */
+    public void testLocationInsertIsUpsert() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        ContentValues renamedValues = new ContentValues(testValues);
+        renamedValues.put(LocationEntry.COLUMN_CITY_NAME, "Santa's Village");
+        Uri secondUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, renamedValues);
+        assertEquals("Error: the stored location should have been returned",
+                locationRowId, ContentUris.parseId(secondUri));
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                null, null, null, null);
+        TestUtilities.validateCursor("testLocationInsertIsUpsert.  Error validating location",
+                cursor, testValues);
+        cursor.close();
+
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        Uri weatherUri = WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION);
+        String[] weatherOnly = {WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP};
+        String[] withLocation = {WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP,
+                LocationEntry.COLUMN_COORD_LAT};
+        Cursor direct = mContext.getContentResolver().query(weatherUri, weatherOnly, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        Cursor joined = mContext.getContentResolver().query(weatherUri, withLocation, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, direct.getCount());
+        assertEquals(joined.getCount(), direct.getCount());
+        while (direct.moveToNext() && joined.moveToNext()) {
+            assertEquals(joined.getLong(0), direct.getLong(0));
+            assertEquals(joined.getDouble(1), direct.getDouble(1));
+        }
+        direct.close();
+        joined.close();
+
+        // An unknown location has no weather, with or without the join.
+        Uri unknownUri = WeatherEntry.buildWeatherLocation("no such place");
+        cursor = mContext.getContentResolver().query(unknownUri, weatherOnly, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testLocationVariantsShareOneLocation() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        long locationRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues));
+
+        // The same setting typed differently is the same location.
+        ContentValues spacedValues = new ContentValues(testValues);
+        spacedValues.put(LocationEntry.COLUMN_LOCATION_SETTING, " " + TestUtilities.TEST_LOCATION);
+        assertEquals(locationRowId, ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, spacedValues)));
+
+        // So is another setting that openweathermap places in the same city.
+        ContentValues pickedValues = new ContentValues(testValues);
+        pickedValues.put(LocationEntry.COLUMN_LOCATION_SETTING, "North  Pole, AK");
+        pickedValues.put(LocationEntry.COLUMN_COORD_LAT, 64.7511);
+        pickedValues.put(LocationEntry.COLUMN_COORD_LONG, -147.3494);
+        assertEquals(locationRowId, ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, pickedValues)));
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals("Error: the variants should share one location row", 1, cursor.getCount());
+        cursor.close();
+
+        // All of them find the one forecast.
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        String[] projection = {WeatherEntry.COLUMN_DATE, LocationEntry.COLUMN_CITY_NAME};
+        for (String locationSetting : new String[]{TestUtilities.TEST_LOCATION,
+                " " + TestUtilities.TEST_LOCATION, "north pole, ak", "North Pole,  AK "}) {
+            cursor = mContext.getContentResolver().query(
+                    WeatherEntry.buildWeatherLocation(locationSetting),
+                    projection, null, null, null);
+            assertEquals("Error: no forecast for \"" + locationSetting + "\"",
+                    BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+            cursor.close();
+
+            // And the one location row.
+            cursor = mContext.getContentResolver().query(
+                    LocationEntry.buildLocationSettingUri(locationSetting),
+                    new String[]{LocationEntry._ID}, null, null, null);
+            assertTrue("Error: no location for \"" + locationSetting + "\"", cursor.moveToFirst());
+            assertEquals(locationRowId, cursor.getLong(0));
+            cursor.close();
+        }
+
+        // A location a few kilometres away is a location of its own.
+        ContentValues nearbyValues = new ContentValues(testValues);
+        nearbyValues.put(LocationEntry.COLUMN_LOCATION_SETTING, "fairbanks");
+        nearbyValues.put(LocationEntry.COLUMN_COORD_LAT, 64.8378);
+        assertTrue(locationRowId != ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, nearbyValues)));
+    }
+
+    /*
+        Today's row is the first day of the forecast on or after today, and follows the writes
+        to the location's weather.
+     */
+    public void testTodaySnapshot() {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        long millisecondsInADay = 1000*60*60*24;
+
+        // A forecast from yesterday on.
+        ContentValues[] forecast = createBulkInsertWeatherValues(locationRowId);
+        for (int i = 0; i < forecast.length; i++) {
+            forecast[i].put(WeatherEntry.COLUMN_DATE, today + (i - 1) * millisecondsInADay);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, forecast);
+
+        Uri todayUri = TodayEntry.buildTodayUri(TestUtilities.TEST_LOCATION);
+        String[] projection = {WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+                WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP,
+                LocationEntry.COLUMN_CITY_NAME};
+        Cursor cursor = mContext.getContentResolver().query(todayUri, projection, null, null, null);
+        assertTrue("Error: no row for today", cursor.moveToFirst());
+        assertEquals(1, cursor.getCount());
+        assertEquals(today, cursor.getLong(1));
+        assertEquals(forecast[1].getAsDouble(WeatherEntry.COLUMN_MAX_TEMP), cursor.getDouble(2));
+        assertEquals(TestUtilities.createNorthPoleLocationValues()
+                .getAsString(LocationEntry.COLUMN_CITY_NAME), cursor.getString(3));
+        cursor.close();
+
+        // A new forecast for today is there as soon as it is written, and observers hear of it.
+        TestUtilities.TestContentObserver todayObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(todayUri, false, todayObserver);
+        forecast[1].put(WeatherEntry.COLUMN_MAX_TEMP, 99.5);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, forecast);
+        todayObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(todayObserver);
+        cursor = mContext.getContentResolver().query(todayUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(99.5, cursor.getDouble(2));
+        cursor.close();
+
+        // Without today, tomorrow is the first day.
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_DATE + " <= ?", new String[]{Long.toString(today)});
+        cursor = mContext.getContentResolver().query(todayUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(today + millisecondsInADay, cursor.getLong(1));
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(TodayEntry.buildTodayUri("no such place"),
+                projection, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        A location's forecast is answered from memory the second time it is asked for, until
+        the dates it covers are written.
+     */
+    public void testQueryCache() {
+        if (!QueryCache.isSupported()) {
+            return;
+        }
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues[] forecast = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, forecast);
+
+        ContentProviderClient client = mContext.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        QueryCache cache = ((WeatherProvider) client.getLocalContentProvider()).getQueryCache();
+        client.release();
+
+        long millisecondsInADay = 1000*60*60*24;
+        long lastDate = TestUtilities.TEST_DATE + 9 * millisecondsInADay;
+        Uri listUri = WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE);
+        Uri lastDayUri = WeatherEntry.buildWeatherLocationWithDate(
+                TestUtilities.TEST_LOCATION, lastDate);
+        String[] projection = {WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_SHORT_DESC,
+                WeatherEntry.COLUMN_MAX_TEMP, LocationEntry.COLUMN_CITY_NAME};
+        String sortOrder = WeatherEntry.COLUMN_DATE + " ASC";
+
+        long misses = cache.getMissCount();
+        long hits = cache.getHitCount();
+        Cursor cursor = mContext.getContentResolver().query(listUri, projection, null, null, sortOrder);
+        cursor.close();
+        cursor = mContext.getContentResolver().query(lastDayUri, projection, null, null, null);
+        cursor.close();
+        assertEquals(misses + 2, cache.getMissCount());
+
+        cursor = mContext.getContentResolver().query(listUri, projection, null, null, sortOrder);
+        assertEquals(hits + 1, cache.getHitCount());
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        for (int i = 0; cursor.moveToNext(); i++) {
+            assertEquals(forecast[i].getAsLong(WeatherEntry.COLUMN_DATE).longValue(),
+                    cursor.getLong(0));
+            assertEquals("Asteroids", cursor.getString(1));
+            assertEquals(forecast[i].getAsDouble(WeatherEntry.COLUMN_MAX_TEMP), cursor.getDouble(2));
+            assertEquals("North Pole", cursor.getString(3));
+        }
+        cursor.close();
+
+        // Changing the fourth day drops the list, which covers it, but not the last day.
+        forecast[3].put(WeatherEntry.COLUMN_MAX_TEMP, 99.5);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, forecast);
+        misses = cache.getMissCount();
+        hits = cache.getHitCount();
+        cursor = mContext.getContentResolver().query(lastDayUri, projection, null, null, null);
+        cursor.close();
+        assertEquals(hits + 1, cache.getHitCount());
+        cursor = mContext.getContentResolver().query(listUri, projection, null, null, sortOrder);
+        assertEquals(misses + 1, cache.getMissCount());
+        cursor.moveToPosition(3);
+        assertEquals(99.5, cursor.getDouble(2));
+        cursor.close();
+
+        // Only the most recently used results are kept.
+        for (int i = 1; i <= QueryCache.MAX_ENTRIES; i++) {
+            cursor = mContext.getContentResolver().query(
+                    WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                            TestUtilities.TEST_DATE + i * millisecondsInADay),
+                    projection, null, null, sortOrder);
+            cursor.close();
+        }
+        misses = cache.getMissCount();
+        cursor = mContext.getContentResolver().query(listUri, projection, null, null, sortOrder);
+        cursor.close();
+        assertEquals(misses + 1, cache.getMissCount());
+    }
+
+    // The location, its forecast and the purge of older days, the way the sync writes them.
+    static ArrayList<ContentProviderOperation> createForecastBatch(ContentValues locationValues) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(locationValues)
+                .build());
+        for (ContentValues weatherValues : createBulkInsertWeatherValues(0)) {
+            weatherValues.remove(WeatherEntry.COLUMN_LOC_KEY);
+            operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                    .withValues(weatherValues)
+                    .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                    .build());
+        }
+        operations.add(ContentProviderOperation.newDelete(WeatherEntry.CONTENT_URI)
+                .withSelection(WeatherEntry.COLUMN_DATE + " < ?",
+                        new String[]{Long.toString(TestUtilities.TEST_DATE)})
+                .build());
+        return operations;
+    }
+
+    /*
+        A query doesn't wait on a batch.  While a batch's transaction is open, a location's id
+        is found from memory or read alongside the transaction, without the provider taking a
+        lock that the batch holds.  Reading alongside a transaction needs the write-ahead log,
+        which came with Jelly Bean.
+     */
+    public void testQueryDuringApplyBatch() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        final TestUtilities.BlockingWeatherProvider provider =
+                TestUtilities.BlockingWeatherProvider.create(mContext);
+        final ContentResolver resolver = provider.getContentResolver();
+        try {
+            final ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+            resolver.insert(LocationEntry.CONTENT_URI, locationValues);
+
+            final Throwable[] batchError = new Throwable[1];
+            Thread batch = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        resolver.applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                                createForecastBatch(locationValues));
+                    } catch (Throwable t) {
+                        batchError[0] = t;
+                    }
+                }
+            });
+            batch.start();
+
+            final int[] counts = new int[2];
+            final CountDownLatch queried = new CountDownLatch(1);
+            try {
+                assertTrue("Error: the batch never got to its last operation",
+                        provider.mBatchOpen.await(10, TimeUnit.SECONDS));
+                // Queried on a thread of its own, so that a query stuck behind the batch fails
+                // the test rather than hanging it.
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        // A location the provider remembers, and one it has to look for.
+                        Cursor cursor = resolver.query(
+                                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                                null, null, null, null);
+                        counts[0] = cursor.getCount();
+                        cursor.close();
+                        cursor = resolver.query(WeatherEntry.buildWeatherLocation("elsewhere"),
+                                null, null, null, null);
+                        counts[1] = cursor.getCount();
+                        cursor.close();
+                        queried.countDown();
+                    }
+                }).start();
+                assertTrue("Error: a query waited for the batch to finish",
+                        queried.await(5, TimeUnit.SECONDS));
+                assertTrue("Error: the batch should still have been open", batch.isAlive());
+            } finally {
+                provider.mRelease.countDown();
+                batch.join();
+            }
+            if (batchError[0] != null) {
+                throw new AssertionError(batchError[0]);
+            }
+            assertEquals("Error: a query saw the batch before it committed", 0, counts[0]);
+            assertEquals(0, counts[1]);
+
+            Cursor cursor = resolver.query(
+                    WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                    null, null, null, null);
+            assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+            cursor.close();
+        } finally {
+            provider.shutdown();
+        }
+    }
+
+    public void testApplyBatch() throws Exception {
+        ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), true,
+                weatherObserver);
+
+        ContentProviderResult[] results = mContext.getContentResolver().applyBatch(
+                WeatherContract.CONTENT_AUTHORITY, createForecastBatch(locationValues));
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+        long locationRowId = ContentUris.parseId(results[0].uri);
+        for (int i = 1; i <= BULK_INSERT_RECORDS_TO_INSERT; i++) {
+            assertNotNull("Error: an inserted weather row should have a uri", results[i].uri);
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(locationRowId)}, null);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.close();
+
+        // The same forecast again changes nothing, and says so.
+        results = mContext.getContentResolver().applyBatch(
+                WeatherContract.CONTENT_AUTHORITY, createForecastBatch(locationValues));
+        assertEquals(locationRowId, ContentUris.parseId(results[0].uri));
+        for (int i = 1; i <= BULK_INSERT_RECORDS_TO_INSERT; i++) {
+            assertNull("Error: an unchanged weather row should have no uri", results[i].uri);
+            assertEquals(Integer.valueOf(0), results[i].count);
+        }
+
+        // A batch that fails half way leaves nothing behind, not even the new location.
+        ContentValues otherLocation = new ContentValues(locationValues);
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, "elsewhere");
+        otherLocation.put(LocationEntry.COLUMN_COORD_LAT, 0.0);
+        ArrayList<ContentProviderOperation> failing = createForecastBatch(otherLocation);
+        failing.add(ContentProviderOperation.newInsert(
+                WeatherContract.BASE_CONTENT_URI.buildUpon().appendPath("nowhere").build())
+                .withValues(locationValues)
+                .build());
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, failing);
+            fail("Error: a batch with an unknown uri should fail");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI, null,
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", new String[]{"elsewhere"}, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        cursor = mContext.getContentResolver().query(WeatherEntry.buildWeatherLocation("elsewhere"),
+                new String[]{WeatherEntry.COLUMN_DATE}, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
 }
@@ -0,0 +1,178 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyWeatherEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncHistoryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/*
+    Asks SQLite how it would run the query behind each of the provider's uris, the way the app
+    uses them, and fails if one of them reads a whole table or sorts its results on the side.
+    These are the queries that run on every scroll and every sync, so an index dropped or a
+    selection rewritten shows up here rather than as jank.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+
+    private static final String LOG_TAG = TestQueryPlans.class.getSimpleName();
+
+    // What the forecast list asks for, as in ForecastFragment.
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+
+    private long mLocationRowId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(HourlyWeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mLocationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                TestProvider.createBulkInsertWeatherValues(mLocationRowId));
+    }
+
+    public void testForecastListIsCovered() {
+        List<String> plan = explain(
+                WeatherEntry.buildWeatherLocationWithStartDate(
+                        TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE),
+                FORECAST_COLUMNS, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertNoScan(plan, WeatherEntry.TABLE_NAME, LocationEntry.TABLE_NAME);
+        assertNoSort(plan);
+        assertUses(plan, WeatherEntry.TABLE_NAME,
+                "COVERING INDEX " + WeatherEntry.INDEX_LOCATION_DATE);
+    }
+
+    public void testWeatherWithLocation() {
+        Uri uri = WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION);
+        // With the join, and from the weather table alone.
+        List<String> plan = explain(uri, null, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertNoScan(plan, WeatherEntry.TABLE_NAME, LocationEntry.TABLE_NAME);
+        assertNoSort(plan);
+        plan = explain(uri, new String[]{WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP},
+                null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertNoScan(plan, WeatherEntry.TABLE_NAME);
+        assertNoSort(plan);
+    }
+
+    public void testWeatherWithLocationAndDate() {
+        Uri uri = WeatherEntry.buildWeatherLocationWithDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE);
+        assertNoScan(explain(uri, null, null, null, null),
+                WeatherEntry.TABLE_NAME, LocationEntry.TABLE_NAME);
+        assertNoScan(explain(uri, new String[]{WeatherEntry.COLUMN_HUMIDITY}, null, null, null),
+                WeatherEntry.TABLE_NAME);
+    }
+
+    public void testWeatherByLocationId() {
+        // As TestProvider reads a location's rows back.
+        List<String> plan = explain(WeatherEntry.CONTENT_URI, null,
+                WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(mLocationRowId)}, WeatherEntry.COLUMN_DATE + " ASC");
+        assertNoScan(plan, WeatherEntry.TABLE_NAME);
+        assertNoSort(plan);
+    }
+
+    public void testLocationBySetting() {
+        assertNoScan(explain(LocationEntry.CONTENT_URI, null,
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{TestUtilities.TEST_LOCATION}, null),
+                LocationEntry.TABLE_NAME);
+    }
+
+    public void testHourlyWeather() {
+        Uri uri = HourlyWeatherEntry.buildHourlyWeatherLocation(TestUtilities.TEST_LOCATION);
+        List<String> plan = explain(uri, null, null, null, null);
+        assertNoScan(plan, HourlyWeatherEntry.TABLE_NAME);
+        assertNoSort(plan);
+
+        uri = HourlyWeatherEntry.buildHourlyWeatherLocationWithDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE);
+        plan = explain(uri, null, null, null, null);
+        assertNoScan(plan, HourlyWeatherEntry.TABLE_NAME);
+        assertNoSort(plan);
+
+        plan = explain(HourlyWeatherEntry.CONTENT_URI, null,
+                HourlyWeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(mLocationRowId)}, null);
+        assertNoScan(plan, HourlyWeatherEntry.TABLE_NAME);
+    }
+
+    public void testSyncHistory() {
+        // The history is capped at SyncHistoryEntry.MAX_ROWS, so walking it is fine, but the
+        // latest entries come straight off the rowid.
+        List<String> plan = explain(SyncHistoryEntry.CONTENT_URI, null, null, null,
+                SyncHistoryEntry._ID + " DESC");
+        assertNoSort(plan);
+
+        // A percentile has to sort the column, over no more than MAX_ROWS rows.
+        plan = explain(SyncHistoryEntry.buildPercentileUri(
+                SyncHistoryEntry.COLUMN_TOTAL_MILLIS, 90), null, null, null, null);
+        assertNoScan(plan, WeatherEntry.TABLE_NAME, LocationEntry.TABLE_NAME);
+    }
+
+    private List<String> explain(Uri uri, String[] projection, String selection,
+                                 String[] selectionArgs, String sortOrder) {
+        Cursor cursor = mContext.getContentResolver().query(WeatherContract.buildExplainUri(uri),
+                projection, selection, selectionArgs, sortOrder);
+        assertNotNull(cursor);
+        List<String> plan = new ArrayList<String>();
+        int detailIndex = cursor.getColumnIndexOrThrow("detail");
+        while (cursor.moveToNext()) {
+            plan.add(cursor.getString(detailIndex));
+        }
+        cursor.close();
+        Log.d(LOG_TAG, uri + ": " + plan);
+        assertFalse("Error: no plan for " + uri, plan.isEmpty());
+        return plan;
+    }
+
+    // Older SQLite says "SCAN TABLE weather", newer just "SCAN weather".  A scan of a covering
+    // index is still a scan of every row.
+    private static void assertNoScan(List<String> plan, String... tables) {
+        for (String table : tables) {
+            Pattern scan = Pattern.compile("^SCAN (TABLE )?" + table + "\\b");
+            for (String step : plan) {
+                assertFalse("Error: full scan of " + table + " in " + plan,
+                        scan.matcher(step).find());
+            }
+        }
+    }
+
+    private static void assertNoSort(List<String> plan) {
+        for (String step : plan) {
+            assertFalse("Error: the results are sorted on the side in " + plan,
+                    step.contains("TEMP B-TREE"));
+        }
+    }
+
+    private static void assertUses(List<String> plan, String table, String index) {
+        Pattern search = Pattern.compile("^SEARCH (TABLE )?" + table + "\\b.*" + index + "\\b");
+        for (String step : plan) {
+            if (search.matcher(step).find()) {
+                return;
+            }
+        }
+        fail("Error: " + table + " isn't read with " + index + " in " + plan);
+    }
+}
@@ -36,6 +36,19 @@ public class TestUriMatcher extends AndroidTestCase {
     private static final Uri TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(LOCATION_QUERY, TEST_DATE);
     // content://com.example.android.sunshine.app/location"
     private static final Uri TEST_LOCATION_DIR = WeatherContract.LocationEntry.CONTENT_URI;
+    // content://com.example.android.sunshine.app/location/setting/London, UK"
+    private static final Uri TEST_LOCATION_WITH_SETTING_ITEM = WeatherContract.LocationEntry.buildLocationSettingUri(LOCATION_QUERY);
+    // content://com.example.android.sunshine.app/hourly_weather"
+    private static final Uri TEST_HOURLY_WEATHER_DIR = WeatherContract.HourlyWeatherEntry.CONTENT_URI;
+    private static final Uri TEST_HOURLY_WEATHER_WITH_LOCATION_DIR = WeatherContract.HourlyWeatherEntry.buildHourlyWeatherLocation(LOCATION_QUERY);
+    private static final Uri TEST_HOURLY_WEATHER_WITH_LOCATION_AND_DATE_DIR = WeatherContract.HourlyWeatherEntry.buildHourlyWeatherLocationWithDate(LOCATION_QUERY, TEST_DATE);
+    // content://com.example.android.sunshine.app/today/London, UK"
+    private static final Uri TEST_TODAY_ITEM = WeatherContract.TodayEntry.buildTodayUri(LOCATION_QUERY);
+    // content://com.example.android.sunshine.app/sync_history"
+    private static final Uri TEST_SYNC_HISTORY_DIR = WeatherContract.SyncHistoryEntry.CONTENT_URI;
+    private static final Uri TEST_SYNC_HISTORY_ITEM = WeatherContract.SyncHistoryEntry.buildSyncHistoryUri(TEST_LOCATION_ID);
+    private static final Uri TEST_SYNC_HISTORY_PERCENTILE = WeatherContract.SyncHistoryEntry.buildPercentileUri(
+            WeatherContract.SyncHistoryEntry.COLUMN_TOTAL_MILLIS, 95);
 
     /*
         Students: This function tests that your UriMatcher returns the correct integer value
@@ -53,5 +66,21 @@ public class TestUriMatcher extends AndroidTestCase {
                 testMatcher.match(TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR), WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE);
         assertEquals("Error: The LOCATION URI was matched incorrectly.",
                 testMatcher.match(TEST_LOCATION_DIR), WeatherProvider.LOCATION);
+        assertEquals("Error: The LOCATION WITH SETTING URI was matched incorrectly.",
+                testMatcher.match(TEST_LOCATION_WITH_SETTING_ITEM), WeatherProvider.LOCATION_WITH_SETTING);
+        assertEquals("Error: The HOURLY WEATHER URI was matched incorrectly.",
+                testMatcher.match(TEST_HOURLY_WEATHER_DIR), WeatherProvider.HOURLY_WEATHER);
+        assertEquals("Error: The HOURLY WEATHER WITH LOCATION URI was matched incorrectly.",
+                testMatcher.match(TEST_HOURLY_WEATHER_WITH_LOCATION_DIR), WeatherProvider.HOURLY_WEATHER_WITH_LOCATION);
+        assertEquals("Error: The HOURLY WEATHER WITH LOCATION AND DATE URI was matched incorrectly.",
+                testMatcher.match(TEST_HOURLY_WEATHER_WITH_LOCATION_AND_DATE_DIR), WeatherProvider.HOURLY_WEATHER_WITH_LOCATION_AND_DATE);
+        assertEquals("Error: The TODAY URI was matched incorrectly.",
+                testMatcher.match(TEST_TODAY_ITEM), WeatherProvider.TODAY);
+        assertEquals("Error: The SYNC HISTORY URI was matched incorrectly.",
+                testMatcher.match(TEST_SYNC_HISTORY_DIR), WeatherProvider.SYNC_HISTORY);
+        assertEquals("Error: The SYNC HISTORY ID URI was matched incorrectly.",
+                testMatcher.match(TEST_SYNC_HISTORY_ITEM), WeatherProvider.SYNC_HISTORY_ID);
+        assertEquals("Error: The SYNC HISTORY PERCENTILE URI was matched incorrectly.",
+                testMatcher.match(TEST_SYNC_HISTORY_PERCENTILE), WeatherProvider.SYNC_HISTORY_PERCENTILE);
     }
 }
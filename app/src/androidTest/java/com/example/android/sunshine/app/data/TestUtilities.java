@@ -15,8 +15,12 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
@@ -24,11 +28,15 @@ import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
 
 import com.example.android.sunshine.app.utils.PollingCheck;
 
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /*
     Students: These are functions and some test data to make it easier to test your database and
@@ -163,4 +171,78 @@ public class TestUtilities extends AndroidTestCase {
     static TestContentObserver getTestContentObserver() {
         return TestContentObserver.getTestContentObserver();
     }
+
+    /*
+        A WeatherProvider whose applyBatch stops once it has applied its last operation, with
+        its transaction still open, until the test lets it go.  It has a resolver of its own,
+        so a test can query it through a ContentResolver while a batch is held open.
+     */
+    static class BlockingWeatherProvider extends WeatherProvider {
+        // How long a batch is held open at most, should a test never let it go.
+        private static final long MAX_BLOCK_SECONDS = 30;
+
+        final CountDownLatch mBatchOpen = new CountDownLatch(1);
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        private final MockContentResolver mResolver = new MockContentResolver();
+        private volatile Thread mBatchThread;
+        private int mOperationsLeft;
+
+        static BlockingWeatherProvider create(Context context) {
+            BlockingWeatherProvider provider = new BlockingWeatherProvider();
+            provider.attachInfo(context, null);
+            provider.mResolver.addProvider(WeatherContract.CONTENT_AUTHORITY, provider);
+            return provider;
+        }
+
+        ContentResolver getContentResolver() {
+            return mResolver;
+        }
+
+        @Override
+        public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+            mOperationsLeft = operations.size();
+            mBatchThread = Thread.currentThread();
+            try {
+                return super.applyBatch(operations);
+            } finally {
+                mBatchThread = null;
+            }
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            Uri returnUri = super.insert(uri, values);
+            operationApplied();
+            return returnUri;
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            int rowsDeleted = super.delete(uri, selection, selectionArgs);
+            operationApplied();
+            return rowsDeleted;
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+            int rowsUpdated = super.update(uri, values, selection, selectionArgs);
+            operationApplied();
+            return rowsUpdated;
+        }
+
+        private void operationApplied() {
+            if (Thread.currentThread() != mBatchThread || --mOperationsLeft > 0) {
+                return;
+            }
+            mBatchOpen.countDown();
+            try {
+                if (!mRelease.await(MAX_BLOCK_SECONDS, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Batch held open for too long");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 }
@@ -0,0 +1,183 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.util.Vector;
+
+/*
+    Checks that the streaming ForecastParser reads the same values as the JSONObject based
+    parsing it replaced, and benchmarks the two on 14 and 16 day payloads.  The numbers are
+    written to logcat under this class's tag.
+ */
+public class TestForecastParser extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastParser.class.getSimpleName();
+
+    private static final int WARM_UP_ITERATIONS = 20;
+    private static final int BENCHMARK_ITERATIONS = 200;
+
+    private static final String[] DESCRIPTIONS = {"Clear", "Clouds", "Rain", "Snow"};
+    private static final int[] WEATHER_IDS = {800, 803, 500, 600};
+
+    static String createForecastJson(int numDays) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"city\":{\"id\":5375480,\"name\":\"Mountain View\",")
+                .append("\"coord\":{\"lon\":-122.083847,\"lat\":37.386051},")
+                .append("\"country\":\"US\",\"population\":0},")
+                .append("\"cod\":\"200\",\"message\":0.0132,\"cnt\":").append(numDays)
+                .append(",\"list\":[");
+        for (int i = 0; i < numDays; i++) {
+            if (i > 0) json.append(',');
+            int kind = i % DESCRIPTIONS.length;
+            json.append("{\"dt\":").append(1419120000L + i * 86400L)
+                    .append(",\"temp\":{\"day\":").append(14.2 + i)
+                    .append(",\"min\":").append(8.25 - i * 0.5)
+                    .append(",\"max\":").append(16.75 + i * 0.5)
+                    .append(",\"night\":8.25,\"eve\":12.1,\"morn\":9.02},")
+                    .append("\"pressure\":").append(1013.45 - i)
+                    .append(",\"humidity\":").append(60 + i)
+                    .append(",\"weather\":[{\"id\":").append(WEATHER_IDS[kind])
+                    .append(",\"main\":\"").append(DESCRIPTIONS[kind])
+                    .append("\",\"description\":\"some ").append(DESCRIPTIONS[kind])
+                    .append("\",\"icon\":\"01d\"}],")
+                    .append("\"speed\":").append(2.5 + i * 0.1)
+                    .append(",\"deg\":").append(270 - i)
+                    .append(",\"clouds\":").append(i * 5)
+                    .append("}");
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    /*
+        This is the parsing the sync adapter used to do: build the whole JSONObject tree, then
+        copy every day into a ContentValues kept in a Vector.
+     */
+    static Vector<ContentValues> parseWithJsonObject(String forecastJsonStr) throws JSONException {
+        JSONObject forecastJson = new JSONObject(forecastJsonStr);
+        JSONArray weatherArray = forecastJson.getJSONArray("list");
+        JSONObject cityJson = forecastJson.getJSONObject("city");
+        cityJson.getString("name");
+        JSONObject cityCoord = cityJson.getJSONObject("coord");
+        cityCoord.getDouble("lat");
+        cityCoord.getDouble("lon");
+
+        Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
+        for (int i = 0; i < weatherArray.length(); i++) {
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+            JSONObject weatherObject = dayForecast.getJSONArray("weather").getJSONObject(0);
+            JSONObject temperatureObject = dayForecast.getJSONObject("temp");
+
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, dayForecast.getInt("humidity"));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, dayForecast.getDouble("pressure"));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, dayForecast.getDouble("speed"));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, dayForecast.getDouble("deg"));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, temperatureObject.getDouble("max"));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, temperatureObject.getDouble("min"));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, weatherObject.getString("main"));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherObject.getInt("id"));
+            cVVector.add(weatherValues);
+        }
+        return cVVector;
+    }
+
+    public void testParserMatchesJsonObject() throws Exception {
+        String json = createForecastJson(14);
+        Vector<ContentValues> expected = parseWithJsonObject(json);
+
+        Forecast forecast = new ForecastParser().parse(
+                new ByteArrayInputStream(json.getBytes("UTF-8")), new Forecast());
+
+        assertEquals("Error: wrong city name", "Mountain View", forecast.cityName);
+        assertEquals("Error: wrong latitude", 37.386051, forecast.cityLatitude, 1e-9);
+        assertEquals("Error: wrong longitude", -122.083847, forecast.cityLongitude, 1e-9);
+        assertEquals("Error: wrong number of days", expected.size(), forecast.dayCount);
+        for (int i = 0; i < forecast.dayCount; i++) {
+            ContentValues values = expected.get(i);
+            Forecast.Day day = forecast.days[i];
+            assertEquals(values.getAsInteger(WeatherContract.WeatherEntry.COLUMN_HUMIDITY).intValue(), day.humidity);
+            assertEquals(values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_PRESSURE), day.pressure, 1e-9);
+            assertEquals(values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED), day.windSpeed, 1e-9);
+            assertEquals(values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_DEGREES), day.windDirection, 1e-9);
+            assertEquals(values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP), day.high, 1e-9);
+            assertEquals(values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP), day.low, 1e-9);
+            assertEquals(values.getAsString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC), day.description);
+            assertEquals(values.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID).intValue(), day.weatherId);
+        }
+    }
+
+    public void testParserReportsErrorCode() throws Exception {
+        String json = "{\"cod\":\"404\",\"message\":\"Error: Not found city\"}";
+        Forecast forecast = new ForecastParser().parse(
+                new ByteArrayInputStream(json.getBytes("UTF-8")), new Forecast());
+        assertEquals(404, forecast.code);
+        assertEquals(0, forecast.dayCount);
+    }
+
+    public void testBenchmark14Days() throws Exception {
+        benchmark(14);
+    }
+
+    public void testBenchmark16Days() throws Exception {
+        benchmark(16);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void benchmark(int numDays) throws Exception {
+        // The old path was handed the body as a String; the new one reads the bytes.  Both
+        // start from the bytes here, so the String decode is part of the old path's cost.
+        byte[] body = createForecastJson(numDays).getBytes("UTF-8");
+        ForecastParser parser = new ForecastParser();
+        Forecast forecast = new Forecast();
+
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            parseWithJsonObject(new String(body, "UTF-8"));
+            parser.parse(new ByteArrayInputStream(body), forecast);
+        }
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            long start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                parseWithJsonObject(new String(body, "UTF-8"));
+            }
+            long jsonObjectNanos = System.nanoTime() - start;
+            int jsonObjectAllocs = Debug.getThreadAllocCount();
+
+            Debug.resetThreadAllocCount();
+            start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                parser.parse(new ByteArrayInputStream(body), forecast);
+            }
+            long streamingNanos = System.nanoTime() - start;
+            int streamingAllocs = Debug.getThreadAllocCount();
+
+            Log.i(LOG_TAG, numDays + " days, " + body.length + " bytes: JSONObject "
+                    + (jsonObjectNanos / BENCHMARK_ITERATIONS / 1000) + "us and "
+                    + (jsonObjectAllocs / BENCHMARK_ITERATIONS) + " allocations per parse; "
+                    + "ForecastParser " + (streamingNanos / BENCHMARK_ITERATIONS / 1000) + "us and "
+                    + (streamingAllocs / BENCHMARK_ITERATIONS) + " allocations per parse");
+
+            assertEquals(numDays, forecast.dayCount);
+            // Not every runtime implements allocation counting; only compare when it does.
+            if (jsonObjectAllocs > 0) {
+                assertTrue("Error: streaming parse allocated more than JSONObject parse",
+                        streamingAllocs < jsonObjectAllocs);
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.utils.FakeForecastServer;
+import com.example.android.sunshine.app.utils.PollingCheck;
+
+/*
+    Cancels a sync that is stuck waiting on a stalled download, and measures how long it takes
+    to stop.  Without the cancel it would sit there until the read timeout.
+ */
+public class TestSyncCancellation extends AndroidTestCase {
+
+    private static final String LOG_TAG = TestSyncCancellation.class.getSimpleName();
+
+    // Well under the read timeout, which is what an uncancelled sync would wait for.
+    private static final long MAX_CANCEL_LATENCY_MILLIS = 1000;
+
+    private FakeForecastServer mServer;
+    private SunshineSyncAdapter mSyncAdapter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        clearRetryState();
+        mServer = new FakeForecastServer();
+        mSyncAdapter = new SunshineSyncAdapter(mContext, false);
+        mSyncAdapter.setForecastBaseUrl(mServer.getUrl());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        clearRetryState();
+        super.tearDown();
+    }
+
+    private void clearRetryState() {
+        mContext.getSharedPreferences(SyncRetryPolicy.PREFS_NAME, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+    }
+
+    public void testCancelStopsStalledDownload() throws Exception {
+        mServer.setResponse(200, TestForecastParser.createForecastJson(14));
+        mServer.setStallAfter(100);
+
+        final SyncResult syncResult = new SyncResult();
+        Thread syncThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Bundle extras = new Bundle();
+                extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+                mSyncAdapter.onPerformSync(null, extras,
+                        mContext.getString(R.string.content_authority), null, syncResult);
+            }
+        });
+        syncThread.start();
+
+        // Once the server has the request, the sync is blocked reading the response.
+        new PollingCheck(5000) {
+            @Override
+            protected boolean check() {
+                return mServer.getRequestCount() > 0;
+            }
+        }.run();
+
+        long cancelStart = SystemClock.elapsedRealtime();
+        mSyncAdapter.onSyncCanceled();
+        syncThread.join(SyncHttpClient.READ_TIMEOUT_MILLIS);
+        long latency = SystemClock.elapsedRealtime() - cancelStart;
+        Log.d(LOG_TAG, "Cancel took effect after " + latency + "ms");
+
+        assertFalse("Error: the sync is still running", syncThread.isAlive());
+        assertTrue("Error: cancelling took " + latency + "ms",
+                latency < MAX_CANCEL_LATENCY_MILLIS);
+
+        // A cancelled sync says nothing about the server.
+        assertFalse(syncResult.hasError());
+        assertEquals(0, SyncRetryPolicy.load(mContext).failures);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.SyncHistoryEntry.CONTENT_URI,
+                new String[]{WeatherContract.SyncHistoryEntry.COLUMN_OUTCOME},
+                null, null, WeatherContract.SyncHistoryEntry._ID + " DESC");
+        assertTrue("Error: the cancelled sync wasn't recorded", cursor.moveToFirst());
+        assertEquals(WeatherContract.SyncHistoryEntry.OUTCOME_CANCELED, cursor.getInt(0));
+        cursor.close();
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+/*
+    Checks which sync requests SyncCoalescer lets through to SyncManager.
+ */
+public class TestSyncCoalescer extends AndroidTestCase {
+
+    private static final String TEST_LOCATION = "coalescer-test";
+    private static final String OTHER_LOCATION = "coalescer-other";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        clearState();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        clearState();
+        super.tearDown();
+    }
+
+    private void clearState() {
+        SyncCoalescer.onSyncFinished(TEST_LOCATION);
+        SyncCoalescer.onSyncFinished(OTHER_LOCATION);
+        mContext.getSharedPreferences(ForecastValidators.PREFS_NAME, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    public void testRequestsWithinWindowAreMerged() {
+        assertTrue(SyncCoalescer.shouldRequest(mContext, TEST_LOCATION, false));
+        assertFalse("Error: a second request in the window should be merged",
+                SyncCoalescer.shouldRequest(mContext, TEST_LOCATION, false));
+        assertTrue("Error: another location shouldn't be merged",
+                SyncCoalescer.shouldRequest(mContext, OTHER_LOCATION, false));
+    }
+
+    public void testRequestDuringSyncIsAttached() {
+        SyncCoalescer.onSyncStarted(TEST_LOCATION);
+        assertFalse("Error: a request during the sync should attach to it",
+                SyncCoalescer.shouldRequest(mContext, TEST_LOCATION, false));
+
+        // The sync failed, so nothing was marked fresh: the next request goes through.
+        SyncCoalescer.onSyncFinished(TEST_LOCATION);
+        assertTrue(SyncCoalescer.shouldRequest(mContext, TEST_LOCATION, false));
+    }
+
+    public void testFreshLocationIsDropped() {
+        ForecastValidators.load(mContext, TEST_LOCATION).markSynced(mContext);
+        assertFalse("Error: a fresh location shouldn't be synced again",
+                SyncCoalescer.shouldRequest(mContext, TEST_LOCATION, false));
+        assertTrue("Error: freshness of one location says nothing about the others",
+                SyncCoalescer.shouldRequest(mContext, TEST_LOCATION, true));
+    }
+
+    public void testAliasesShareOneKey() {
+        String key = SyncTarget.getLocationKey(mContext, TEST_LOCATION);
+        assertEquals("Error: spellings of a location not stored yet should share a key",
+                key, SyncTarget.getLocationKey(mContext, " Coalescer-Test "));
+
+        ContentValues values = new ContentValues();
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, TEST_LOCATION);
+        values.put(LocationEntry.COLUMN_CITY_NAME, "North Pole");
+        values.put(LocationEntry.COLUMN_COORD_LAT, 64.7488);
+        values.put(LocationEntry.COLUMN_COORD_LONG, -147.353);
+        mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, values);
+        // Another setting for the same place is stored as an alias of it.
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, OTHER_LOCATION);
+        mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, values);
+        assertEquals("Error: an alias should share its location's key",
+                key, SyncTarget.getLocationKey(mContext, OTHER_LOCATION));
+
+        SyncCoalescer.onSyncStarted(key);
+        assertFalse("Error: a request for an alias should attach to the location's sync",
+                SyncCoalescer.shouldRequest(mContext,
+                        SyncTarget.getLocationKey(mContext, OTHER_LOCATION), false));
+    }
+}
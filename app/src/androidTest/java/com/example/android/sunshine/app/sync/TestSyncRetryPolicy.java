@@ -0,0 +1,113 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SyncResult;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.utils.FakeForecastServer;
+
+/*
+    Runs the sync adapter against a local fake server to check how failures are reported to
+    SyncManager, how the wait between attempts grows, and when the circuit opens and closes.
+ */
+public class TestSyncRetryPolicy extends AndroidTestCase {
+
+    private FakeForecastServer mServer;
+    private SunshineSyncAdapter mSyncAdapter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        clearRetryState();
+        mServer = new FakeForecastServer();
+        mSyncAdapter = new SunshineSyncAdapter(mContext, false);
+        mSyncAdapter.setForecastBaseUrl(mServer.getUrl());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        clearRetryState();
+        super.tearDown();
+    }
+
+    private void clearRetryState() {
+        mContext.getSharedPreferences(SyncRetryPolicy.PREFS_NAME, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+    }
+
+    private SyncResult sync(boolean manual) {
+        Bundle extras = new Bundle();
+        extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, manual);
+        SyncResult syncResult = new SyncResult();
+        mSyncAdapter.onPerformSync(null, extras, mContext.getString(R.string.content_authority),
+                null, syncResult);
+        return syncResult;
+    }
+
+    public void testBackoffGrowsWithJitter() {
+        SyncRetryPolicy policy = SyncRetryPolicy.load(mContext);
+        long now = 1000000L;
+        long expected = SyncRetryPolicy.INITIAL_BACKOFF_MILLIS;
+        for (int i = 1; i < SyncRetryPolicy.FAILURES_TO_OPEN_CIRCUIT; i++, expected *= 2) {
+            long delay = policy.onFailure(mContext, now) - now;
+            assertTrue("Error: failure " + i + " waited " + delay + "ms",
+                    delay >= expected / 2 && delay <= expected);
+            assertFalse(policy.isCircuitOpen());
+        }
+
+        long delay = policy.onFailure(mContext, now) - now;
+        assertTrue("Error: circuit should have opened", policy.isCircuitOpen());
+        assertTrue(delay >= SyncRetryPolicy.INITIAL_OPEN_MILLIS / 2);
+
+        // It has to survive a process restart.
+        SyncRetryPolicy reloaded = SyncRetryPolicy.load(mContext);
+        assertEquals(SyncRetryPolicy.FAILURES_TO_OPEN_CIRCUIT, reloaded.failures);
+        assertEquals(policy.nextAttemptAt, reloaded.nextAttemptAt);
+        assertTrue(reloaded.isCircuitOpen());
+
+        reloaded.onSuccess(mContext);
+        assertFalse(SyncRetryPolicy.load(mContext).isCircuitOpen());
+        assertEquals(0, SyncRetryPolicy.load(mContext).failures);
+    }
+
+    public void testFailingServerOpensCircuit() throws Exception {
+        mServer.setResponse(503, "");
+
+        for (int i = 1; i <= SyncRetryPolicy.FAILURES_TO_OPEN_CIRCUIT; i++) {
+            SyncResult syncResult = sync(true);
+            assertEquals("Error: failure should be reported as an I/O error",
+                    1, syncResult.stats.numIoExceptions);
+            assertTrue("Error: SyncManager should be told to wait",
+                    syncResult.delayUntil * 1000 > System.currentTimeMillis());
+            assertEquals(i, mServer.getRequestCount());
+        }
+        assertTrue(SyncRetryPolicy.load(mContext).isCircuitOpen());
+
+        // A periodic sync while the circuit is open leaves the server alone.
+        SyncResult syncResult = sync(false);
+        assertEquals(SyncRetryPolicy.FAILURES_TO_OPEN_CIRCUIT, mServer.getRequestCount());
+        assertEquals(0, syncResult.stats.numIoExceptions);
+        assertTrue(syncResult.delayUntil * 1000 > System.currentTimeMillis());
+
+        // Once the server is back, a successful attempt closes the circuit.
+        mServer.setResponse(200, TestForecastParser.createForecastJson(14));
+        syncResult = sync(true);
+        assertFalse(syncResult.hasError());
+        assertFalse(SyncRetryPolicy.load(mContext).isCircuitOpen());
+        assertEquals(0, SyncRetryPolicy.load(mContext).failures);
+    }
+
+    public void testInvalidResponseIsHardError() throws Exception {
+        mServer.setResponse(200, "{\"cod\":\"200\",\"list\":[}");
+
+        SyncResult syncResult = sync(true);
+        assertEquals(1, syncResult.stats.numParseExceptions);
+        assertTrue(syncResult.hasHardError());
+        // Retrying won't fix a bad response, so it doesn't count against the server.
+        assertEquals(0, SyncRetryPolicy.load(mContext).failures);
+    }
+}
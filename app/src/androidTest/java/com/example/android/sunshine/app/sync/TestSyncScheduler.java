@@ -0,0 +1,51 @@
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+/*
+    Checks the direction SyncScheduler moves the sync interval in for each of its inputs.
+ */
+public class TestSyncScheduler extends AndroidTestCase {
+
+    private static final int CURRENT_HOUR = 8;
+    private static final long DEFAULT_CADENCE = SyncScheduler.DEFAULT_UPSTREAM_CADENCE_MILLIS;
+
+    public void testModerateVolatilityKeepsDefaultInterval() {
+        assertEquals(SunshineSyncAdapter.SYNC_INTERVAL,
+                SyncScheduler.computeInterval(0.25f, new float[24], CURRENT_HOUR, DEFAULT_CADENCE));
+    }
+
+    public void testVolatilityMovesInterval() {
+        int stable = SyncScheduler.computeInterval(0f, new float[24], CURRENT_HOUR, DEFAULT_CADENCE);
+        int shifting = SyncScheduler.computeInterval(0.5f, new float[24], CURRENT_HOUR, DEFAULT_CADENCE);
+        assertTrue("Error: a stable forecast should be synced less often",
+                stable > SunshineSyncAdapter.SYNC_INTERVAL);
+        assertTrue("Error: a shifting forecast should be synced more often",
+                shifting < SunshineSyncAdapter.SYNC_INTERVAL);
+    }
+
+    public void testAppOpensMoveInterval() {
+        float[] opensNow = new float[24];
+        opensNow[CURRENT_HOUR + 1] = 20f;
+        assertTrue("Error: should sync more often before the user usually looks",
+                SyncScheduler.computeInterval(0.25f, opensNow, CURRENT_HOUR, DEFAULT_CADENCE)
+                        < SunshineSyncAdapter.SYNC_INTERVAL);
+
+        float[] opensLater = new float[24];
+        opensLater[CURRENT_HOUR + 12] = 20f;
+        assertTrue("Error: should sync less often in hours the user never looks",
+                SyncScheduler.computeInterval(0.25f, opensLater, CURRENT_HOUR, DEFAULT_CADENCE)
+                        > SunshineSyncAdapter.SYNC_INTERVAL);
+    }
+
+    public void testUpstreamCadenceBoundsInterval() {
+        long sixHours = 6 * 60 * 60 * 1000L;
+        int interval = SyncScheduler.computeInterval(1f, new float[24], CURRENT_HOUR, sixHours);
+        assertEquals("Error: shouldn't sync faster than every half publication cycle",
+                sixHours / 2000, interval);
+
+        interval = SyncScheduler.computeInterval(0f, new float[24], CURRENT_HOUR, DEFAULT_CADENCE);
+        assertTrue(interval <= SyncScheduler.MAX_INTERVAL);
+        assertTrue(interval >= SyncScheduler.MIN_INTERVAL);
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.android.sunshine.app.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    A tiny HTTP server on the loopback interface that answers every request with the same
+    status and body, and counts the requests it has seen.  Just enough to point the sync
+    adapter at from a test.
+ */
+public class FakeForecastServer {
+
+    private final ServerSocket mServerSocket;
+    private final Thread mThread;
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+
+    private volatile int mStatusCode = 200;
+    private volatile byte[] mBody = new byte[0];
+    // -1, or how much of the body to send before going quiet until shutdown().
+    private volatile int mStallAfter = -1;
+    private final CountDownLatch mShutdown = new CountDownLatch(1);
+
+    public FakeForecastServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try {
+                        Socket socket = mServerSocket.accept();
+                        try {
+                            serve(socket);
+                        } finally {
+                            socket.close();
+                        }
+                    } catch (IOException e) {
+                        // closed by shutdown(), or the client went away
+                    }
+                }
+            }
+        });
+        mThread.start();
+    }
+
+    /**
+     * @return a base URL for the forecast request, ready for query parameters.
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/data/2.5/forecast/daily?";
+    }
+
+    public void setResponse(int statusCode, String body) throws IOException {
+        mStatusCode = statusCode;
+        mBody = body.getBytes("UTF-8");
+    }
+
+    /**
+     * Makes the server send the headers and the first bytes of the body, then hold the
+     * connection open without sending anything more, like a network that has stalled.
+     */
+    public void setStallAfter(int bytes) {
+        mStallAfter = bytes;
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public void shutdown() throws IOException, InterruptedException {
+        mShutdown.countDown();
+        mServerSocket.close();
+        mThread.join();
+    }
+
+    private void serve(Socket socket) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+        String line;
+        // Read the request line and the headers; there is never a body.
+        while ((line = reader.readLine()) != null && line.length() > 0) {
+            // skip
+        }
+        mRequestCount.incrementAndGet();
+
+        byte[] body = mBody;
+        String head = "HTTP/1.1 " + mStatusCode + " Fake\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: close\r\n"
+                + "\r\n";
+        OutputStream out = socket.getOutputStream();
+        out.write(head.getBytes("US-ASCII"));
+        int stallAfter = mStallAfter;
+        if (stallAfter >= 0 && stallAfter < body.length) {
+            out.write(body, 0, stallAfter);
+            out.flush();
+            try {
+                mShutdown.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        out.write(body);
+        out.flush();
+    }
+}
@@ -24,6 +24,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.design.widget.AppBarLayout;
 import android.support.v4.app.Fragment;
@@ -46,6 +47,7 @@ import android.widget.AbsListView;
 import android.widget.TextView;
 
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherDbHelper;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 
 /**
@@ -59,6 +61,8 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
     private int mChoiceMode;
     private boolean mHoldForTransition;
     private long mInitialSelectedDate = -1;
+    // When this fragment was created, until the first frame showing the forecast is drawn.
+    private long mCreatedMillis = -1;
 
     private static final String SELECTED_KEY = "selected_position";
 
@@ -115,6 +119,7 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         super.onCreate(savedInstanceState);
         // Add this line in order for this fragment to handle menu events.
         setHasOptionsMenu(true);
+        mCreatedMillis = SystemClock.elapsedRealtime();
     }
 
     @Override
@@ -338,6 +343,7 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
                     // we see Children.
                     if (mRecyclerView.getChildCount() > 0) {
                         mRecyclerView.getViewTreeObserver().removeOnPreDrawListener(this);
+                        logFirstFrameWithData();
                         int position = mForecastAdapter.getSelectedItemPosition();
                         if (position == RecyclerView.NO_POSITION &&
                                 -1 != mInitialSelectedDate) {
@@ -398,6 +404,22 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         mInitialSelectedDate = initialSelectedDate;
     }
 
+    /**
+     * Logs how long the forecast took to appear, the first time it does.  Straight after an app
+     * update, that includes upgrading the database, and shows whether the stored forecast
+     * survived it or had to be fetched again.
+     */
+    private void logFirstFrameWithData() {
+        if (mCreatedMillis == -1) {
+            return;
+        }
+        long elapsed = SystemClock.elapsedRealtime() - mCreatedMillis;
+        mCreatedMillis = -1;
+        int upgradedFrom = WeatherDbHelper.getUpgradedFromVersion();
+        Log.d(LOG_TAG, "First frame with data " + elapsed + "ms after creation"
+                + (upgradedFrom != 0 ? ", database upgraded from version " + upgradedFrom : ""));
+    }
+
     /*
         Updates the empty list view with contextually relevant information that the user can
         use to determine why they aren't seeing weather.
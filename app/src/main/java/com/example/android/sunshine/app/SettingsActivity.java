@@ -178,6 +178,11 @@ public class SettingsActivity extends PreferenceActivity
         } else if ( key.equals(getString(R.string.pref_art_pack_key)) ) {
             // art pack have changed. update lists of weather entries accordingly
             getContentResolver().notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
+        } else if ( key.equals(getString(R.string.pref_sync_all_locations_key)) ) {
+            // bring the other saved locations up to date right away
+            if (Utility.isSyncAllLocationsEnabled(this)) {
+                SunshineSyncAdapter.syncImmediately(this);
+            }
         }
     }
 
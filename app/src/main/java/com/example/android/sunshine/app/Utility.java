@@ -22,6 +22,7 @@ import android.net.NetworkInfo;
 import android.preference.PreferenceManager;
 import android.text.format.Time;
 
+import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 
 import java.text.DateFormat;
@@ -54,10 +55,21 @@ public class Utility {
                 DEFAULT_LATLONG);
     }
 
+    /**
+     * @return the preferred location in its canonical form, the one its weather is stored and
+     * synced under, whatever spacing or case it was entered with.
+     */
     public static String getPreferredLocation(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        return prefs.getString(context.getString(R.string.pref_location_key),
-                context.getString(R.string.pref_location_default));
+        return WeatherContract.LocationEntry.canonicalizeLocationSetting(
+                prefs.getString(context.getString(R.string.pref_location_key),
+                        context.getString(R.string.pref_location_default)));
+    }
+
+    public static boolean isSyncAllLocationsEnabled(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return prefs.getBoolean(context.getString(R.string.pref_sync_all_locations_key),
+                Boolean.parseBoolean(context.getString(R.string.pref_sync_all_locations_default)));
     }
 
     public static boolean isMetric(Context context) {
@@ -16,7 +16,8 @@ public class WatchfaceService extends WearableListenerService {
             if (dataEvent.getType() == DataEvent.TYPE_CHANGED) {
                 String path = dataEvent.getDataItem().getUri().getPath();
                 if (path.equals(WEATHER_URI_PATH)) {
-                    //Sync with the app's data
+                    // The watch just connected: hand it what we have, then refresh it
+                    SunshineSyncAdapter.sendForecastToWearable(this);
                     SunshineSyncAdapter.syncImmediately(this);
                 }
             }
@@ -0,0 +1,103 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Inserts rows into one table through a single compiled INSERT.  Each row's values are bound
+ * typed, by their index in the columns given, and the row is written by {@link #execute}.
+ * SQLiteDatabase.insert() builds and compiles its SQL over again for every row, and reads each
+ * value out of a map of boxed objects, which is most of what a large batch costs.
+ *
+ * A column left unbound is NULL rather than its default; none of our tables declare defaults.
+ * Use inside a transaction, and {@link #close} when done.
+ */
+class BulkInsertStatement {
+    private static final String LOG_TAG = BulkInsertStatement.class.getSimpleName();
+
+    private final String mTable;
+    private final Set<String> mColumns;
+    private final SQLiteStatement mStatement;
+
+    BulkInsertStatement(SQLiteDatabase db, String table, String[] columns) {
+        mTable = table;
+        mColumns = new HashSet<String>(Arrays.asList(columns));
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? ", " : "").append(columns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? ", ?" : "?");
+        }
+        sql.append(")");
+        mStatement = db.compileStatement(sql.toString());
+    }
+
+    /**
+     * Turns down values for a column this statement doesn't write, which db.insert() would
+     * have failed on, rather than leaving them out without a word.
+     *
+     * @throws IllegalArgumentException naming the first such column.
+     */
+    void checkColumns(ContentValues values) {
+        checkColumns(mTable, mColumns, values);
+    }
+
+    static void checkColumns(String table, Set<String> columns, ContentValues values) {
+        for (String column : values.keySet()) {
+            if (!columns.contains(column)) {
+                throw new IllegalArgumentException(
+                        "Unknown column " + column + " for " + table + ": " + values);
+            }
+        }
+    }
+
+    void bindLong(int column, long value) {
+        mStatement.bindLong(column + 1, value);
+    }
+
+    void bindDouble(int column, double value) {
+        mStatement.bindDouble(column + 1, value);
+    }
+
+    void bindString(int column, String value) {
+        if (value == null) {
+            mStatement.bindNull(column + 1);
+        } else {
+            mStatement.bindString(column + 1, value);
+        }
+    }
+
+    void bindNull(int column) {
+        mStatement.bindNull(column + 1);
+    }
+
+    /**
+     * Inserts the row bound so far, and clears the bindings for the next one.
+     *
+     * @return the _id of the new row, or -1 if it could not be inserted, as
+     * SQLiteDatabase.insert() returns.
+     */
+    long execute() {
+        try {
+            return mStatement.executeInsert();
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Error inserting into " + mTable, e);
+            return -1;
+        } finally {
+            mStatement.clearBindings();
+        }
+    }
+
+    void close() {
+        mStatement.close();
+    }
+}
@@ -0,0 +1,339 @@
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The results of the provider's most used weather queries, kept in memory so that the list,
+ * the detail pane, the widgets and Muzei asking for the same forecast over and over are
+ * answered without SQLite.  Results are copied out of the database cursor once into rows
+ * nobody changes, and every cursor handed out reads those same rows.
+ *
+ * The provider drops a result when it writes what the result was read from, once the write
+ * has committed.  A reader may have read the rows a write replaced before it committed, so
+ * every invalidation moves the generation on, and a result read under an earlier generation
+ * is handed out but not kept.  The least recently used results go first once there are
+ * {@link #MAX_ENTRIES}.
+ */
+class QueryCache {
+
+    static final int MAX_ENTRIES = 32;
+    // Bigger results are passed through as they are; a forecast is a couple of weeks.
+    static final int MAX_ROWS = 64;
+
+    // Least recently used first.  Guarded by this.
+    private final LinkedHashMap<Key, Entry> mEntries =
+            new LinkedHashMap<Key, Entry>(MAX_ENTRIES * 2, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    private long mGeneration;
+    private long mHitCount;
+    private long mMissCount;
+
+    /**
+     * Copying a result needs Cursor.getType(), which came with Honeycomb; before that nothing
+     * is cached.
+     */
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * @return a cursor over the cached result, or null if there is none.
+     */
+    synchronized Cursor get(Key key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return new RowsCursor(entry.columns, entry.rows);
+    }
+
+    /**
+     * Read before querying the database, and handed to {@link #put} with the result.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Keeps the result of a query that missed, unless something it reads has been written
+     * since the generation was read.  The cursor is closed.
+     *
+     * @return a cursor over the result, from its start.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    Cursor put(Key key, Scope scope, Cursor cursor, long generation) {
+        if (cursor.getCount() > MAX_ROWS) {
+            return cursor;
+        }
+        String[] columns = cursor.getColumnNames();
+        Object[][] rows = new Object[cursor.getCount()][];
+        try {
+            for (int i = 0; cursor.moveToNext(); i++) {
+                Object[] row = new Object[columns.length];
+                for (int column = 0; column < columns.length; column++) {
+                    switch (cursor.getType(column)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row[column] = cursor.getLong(column);
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            row[column] = cursor.getDouble(column);
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            row[column] = cursor.getString(column);
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            row[column] = cursor.getBlob(column);
+                            break;
+                        default:
+                            break;
+                    }
+                }
+                rows[i] = row;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mEntries.put(key, new Entry(scope, columns, rows));
+            }
+        }
+        return new RowsCursor(columns, rows);
+    }
+
+    /**
+     * Drops the results that read any of these dates of the location's weather.
+     */
+    synchronized void invalidateWeather(long locationId, Set<Long> dates) {
+        mGeneration++;
+        for (Iterator<Entry> it = mEntries.values().iterator(); it.hasNext(); ) {
+            Scope scope = it.next().scope;
+            if (scope.locationId != locationId) {
+                continue;
+            }
+            for (long date : dates) {
+                if (date >= scope.firstDate && date <= scope.lastDate) {
+                    it.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops every result, for writes that can't be placed.
+     */
+    synchronized void clear() {
+        mGeneration++;
+        mEntries.clear();
+    }
+
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * A query as the provider was asked it.
+     */
+    static final class Key {
+        private final String mUri;
+        private final String[] mProjection;
+        private final String mSelection;
+        private final String[] mSelectionArgs;
+        private final String mSortOrder;
+        private final int mHashCode;
+
+        Key(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+            mUri = uri.toString();
+            mProjection = projection != null ? projection.clone() : null;
+            mSelection = selection;
+            mSelectionArgs = selectionArgs != null ? selectionArgs.clone() : null;
+            mSortOrder = sortOrder;
+            mHashCode = Arrays.hashCode(new Object[]{mUri, Arrays.hashCode(mProjection),
+                    mSelection, Arrays.hashCode(mSelectionArgs), mSortOrder});
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mHashCode == other.mHashCode
+                    && mUri.equals(other.mUri)
+                    && Arrays.equals(mProjection, other.mProjection)
+                    && equal(mSelection, other.mSelection)
+                    && Arrays.equals(mSelectionArgs, other.mSelectionArgs)
+                    && equal(mSortOrder, other.mSortOrder);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    /**
+     * The weather a result was read from: one location's, from firstDate to lastDate.
+     */
+    static final class Scope {
+        final long locationId;
+        final long firstDate;
+        final long lastDate;
+
+        Scope(long locationId, long firstDate, long lastDate) {
+            this.locationId = locationId;
+            this.firstDate = firstDate;
+            this.lastDate = lastDate;
+        }
+    }
+
+    private static final class Entry {
+        final Scope scope;
+        final String[] columns;
+        final Object[][] rows;
+
+        Entry(Scope scope, String[] columns, Object[][] rows) {
+            this.scope = scope;
+            this.columns = columns;
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * Reads a cached result.  Values are converted the way SQLite's cursors convert them, near
+     * enough: a number asked for as text is its string, and null reads as 0.
+     */
+    private static final class RowsCursor extends AbstractCursor {
+        private final String[] mColumns;
+        private final Object[][] mRows;
+
+        RowsCursor(String[] columns, Object[][] rows) {
+            mColumns = columns;
+            mRows = rows;
+        }
+
+        @Override
+        public int getCount() {
+            return mRows.length;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumns;
+        }
+
+        private Object get(int column) {
+            if (column < 0 || column >= mColumns.length) {
+                throw new IllegalArgumentException("Invalid column " + column);
+            }
+            checkPosition();
+            return mRows[getPosition()][column];
+        }
+
+        private double getNumber(int column) {
+            Object value = get(column);
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            if (value instanceof String) {
+                try {
+                    return Double.parseDouble((String) value);
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = get(column);
+            return value != null ? value.toString() : null;
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = get(column);
+            if (value instanceof Long) {
+                return (Long) value;
+            }
+            return (long) getNumber(column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getNumber(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return getNumber(column);
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            Object value = get(column);
+            if (value == null || value instanceof byte[]) {
+                return (byte[]) value;
+            }
+            return value.toString().getBytes();
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return get(column) == null;
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return FIELD_TYPE_NULL;
+            } else if (value instanceof Long) {
+                return FIELD_TYPE_INTEGER;
+            } else if (value instanceof Double) {
+                return FIELD_TYPE_FLOAT;
+            } else if (value instanceof byte[]) {
+                return FIELD_TYPE_BLOB;
+            }
+            return FIELD_TYPE_STRING;
+        }
+    }
+}
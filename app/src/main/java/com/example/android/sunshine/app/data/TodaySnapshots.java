@@ -0,0 +1,197 @@
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The rows behind {@link WeatherContract.TodayEntry}: for each location, the first day of its
+ * forecast on or after today, joined with the location, held in memory.  A snapshot is only
+ * good for the day it was read on, and is read again once that day is over.
+ *
+ * The provider refreshes a location after a write to its weather has committed.  A reader
+ * may have read the rows that write replaced before it committed, so every refresh moves the
+ * generation on, and a snapshot read under an earlier generation is handed out but not kept.
+ */
+class TodaySnapshots {
+
+    // The columns of a snapshot, as TodayEntry documents them.
+    static final String[] COLUMNS = {
+            WeatherContract.WeatherEntry._ID,
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES,
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG
+    };
+    // these indices must match COLUMNS
+    private static final int INDEX_SHORT_DESC = 4;
+    private static final int INDEX_LOCATION_SETTING = 11;
+    private static final int INDEX_CITY_NAME = 12;
+
+    // What the join is asked for, in the order of COLUMNS.
+    private static final String[] sProjection = {
+            WeatherContract.WeatherEntry.TABLE_NAME + "." + WeatherContract.WeatherEntry._ID,
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES,
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG
+    };
+
+    //weather.location_id = ? AND date >= ?
+    private static final String sLocationIdWithStartDateSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
+
+    private static final Map<String, Integer> sColumnIndexes = new HashMap<String, Integer>();
+    static {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            sColumnIndexes.put(COLUMNS[i], i);
+        }
+    }
+
+    // location id -> its snapshot.  Guarded by this.
+    private final Map<Long, Snapshot> mSnapshots = new HashMap<Long, Snapshot>();
+    private long mGeneration;
+
+    /**
+     * @return the location's row for today, or no row if it has no weather from today on.
+     * Read from memory unless the location hasn't been asked for today.
+     */
+    Cursor query(SQLiteDatabase db, long locationId, String[] projection) {
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        Snapshot snapshot;
+        long generation;
+        synchronized (this) {
+            snapshot = mSnapshots.get(locationId);
+            generation = mGeneration;
+        }
+        if (snapshot == null || snapshot.day != today) {
+            snapshot = load(db, locationId, today);
+            // An unknown location may be added at any time, so it isn't remembered.
+            if (locationId != -1) {
+                keep(locationId, snapshot, generation);
+            }
+        }
+        return snapshot.toCursor(projection);
+    }
+
+    /**
+     * Reads the location's snapshot again.  Call once a write to its weather has committed.
+     */
+    void refresh(SQLiteDatabase db, long locationId) {
+        long generation;
+        synchronized (this) {
+            generation = ++mGeneration;
+            mSnapshots.remove(locationId);
+        }
+        keep(locationId, load(db, locationId,
+                WeatherContract.normalizeDate(System.currentTimeMillis())), generation);
+    }
+
+    /**
+     * Forgets every snapshot, for writes that can't be placed; each is read again when next
+     * asked for.
+     */
+    synchronized void clear() {
+        mGeneration++;
+        mSnapshots.clear();
+    }
+
+    private synchronized void keep(long locationId, Snapshot snapshot, long generation) {
+        if (generation == mGeneration) {
+            mSnapshots.put(locationId, snapshot);
+        }
+    }
+
+    private static Snapshot load(SQLiteDatabase db, long locationId, long today) {
+        Cursor cursor = db.query(WeatherProvider.sWeatherByLocationSettingTables,
+                sProjection,
+                sLocationIdWithStartDateSelection,
+                new String[]{Long.toString(locationId), Long.toString(today)},
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC",
+                "1");
+        try {
+            if (!cursor.moveToFirst()) {
+                return new Snapshot(today, null);
+            }
+            Object[] row = new Object[COLUMNS.length];
+            for (int i = 0; i < row.length; i++) {
+                if (cursor.isNull(i)) {
+                    continue;
+                }
+                if (i == INDEX_SHORT_DESC || i == INDEX_LOCATION_SETTING || i == INDEX_CITY_NAME) {
+                    row[i] = cursor.getString(i);
+                } else if (i < INDEX_SHORT_DESC) {
+                    // the ids and the date
+                    row[i] = cursor.getLong(i);
+                } else {
+                    row[i] = cursor.getDouble(i);
+                }
+            }
+            return new Snapshot(today, row);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * One location's row for one day, or none.
+     */
+    private static final class Snapshot {
+        final long day;
+        final Object[] row;
+
+        Snapshot(long day, Object[] row) {
+            this.day = day;
+            this.row = row;
+        }
+
+        Cursor toCursor(String[] projection) {
+            String[] columns = projection != null ? projection : COLUMNS;
+            int[] indexes = new int[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                // "weather._id" and the like are asked for by table, as in a join.
+                String column = columns[i].substring(columns[i].lastIndexOf('.') + 1);
+                Integer index = sColumnIndexes.get(column);
+                if (index == null) {
+                    throw new IllegalArgumentException("Unknown column: " + columns[i]);
+                }
+                indexes[i] = index;
+            }
+            MatrixCursor cursor = new MatrixCursor(columns, 1);
+            if (row != null) {
+                Object[] values = new Object[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    values[i] = row[indexes[i]];
+                }
+                cursor.addRow(values);
+            }
+            return cursor;
+        }
+    }
+}
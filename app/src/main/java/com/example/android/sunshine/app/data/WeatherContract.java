@@ -21,6 +21,8 @@ import android.net.Uri;
 import android.provider.BaseColumns;
 import android.text.format.Time;
 
+import java.util.Locale;
+
 /**
  * Defines table and column names for the weather database.
  */
@@ -43,6 +45,21 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_SYNC_HISTORY = "sync_history";
+    public static final String PATH_HOURLY_WEATHER = "hourly_weather";
+    public static final String PATH_TODAY = "today";
+
+    // Query parameter asking for the plan SQLite would run a query with, one step per row in
+    // the "detail" column, instead of its rows.  For checking that queries use their indexes.
+    public static final String PARAM_EXPLAIN = "explain";
+
+    public static Uri buildExplainUri(Uri uri) {
+        return uri.buildUpon().appendQueryParameter(PARAM_EXPLAIN, "1").build();
+    }
+
+    public static boolean isExplainUri(Uri uri) {
+        return uri.getQueryParameter(PARAM_EXPLAIN) != null;
+    }
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
@@ -81,9 +98,54 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // Locations whose coordinates, as returned by openweathermap, agree to this many
+        // decimal places (about a kilometre) are the same location.
+        public static final int COORD_DECIMALS = 2;
+
+        static final String PATH_SETTING = "setting";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
+
+        /**
+         * @return the uri of the stored location a location setting finds, whether it is the
+         * location's own setting, spelled any way, or one of its aliases.
+         */
+        public static Uri buildLocationSettingUri(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SETTING)
+                    .appendPath(locationSetting).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(2);
+        }
+
+        /**
+         * @return the key a location setting is stored and looked up under: trimmed, with runs
+         * of whitespace collapsed and in lower case, so " 94043" and "94043" are one location.
+         */
+        public static String canonicalizeLocationSetting(String locationSetting) {
+            if (locationSetting == null) {
+                return null;
+            }
+            return locationSetting.trim().replaceAll("\\s+", " ").toLowerCase(Locale.US);
+        }
+    }
+
+    /*
+        Other location settings that turned out to be a location already stored, e.g. a place
+        picked on the map in the same city as a zip code entered earlier.  Only used by the
+        provider, which looks location settings up here as well as in the location table.
+     */
+    public static final class LocationAliasEntry implements BaseColumns {
+
+        public static final String TABLE_NAME = "location_alias";
+
+        // A canonical location setting other than the location's own.
+        public static final String COLUMN_ALIAS = "alias";
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
     }
 
     /* Inner class that defines the table contents of the weather table */
@@ -99,6 +161,9 @@ public class WeatherContract {
 
         public static final String TABLE_NAME = "weather";
 
+        // The location-first covering index the forecast for a location is read from.
+        public static final String INDEX_LOCATION_DATE = "weather_location_date";
+
         // Column with the foreign key into the location table.
         public static final String COLUMN_LOC_KEY = "location_id";
         // Date, stored as long in milliseconds since the epoch
@@ -165,4 +230,177 @@ public class WeatherContract {
                 return 0;
         }
     }
+
+    /* Inner class that defines the table contents of the hourly_weather table */
+    public static final class HourlyWeatherEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HOURLY_WEATHER).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY_WEATHER;
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY_WEATHER;
+
+        public static final String TABLE_NAME = "hourly_weather";
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // Start of the three hour period, stored as int in seconds (not milliseconds) since
+        // the epoch, which is all the precision the forecast has.
+        public static final String COLUMN_TIME = "time";
+        // Weather id as returned by API, to identify the icon to be used
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+        // Temperature in hundredths of a degree, see toScaled and fromScaled
+        public static final String COLUMN_TEMP = "temp";
+        // Humidity is stored as an int representing percentage
+        public static final String COLUMN_HUMIDITY = "humidity";
+        // Windspeed in hundredths, see toScaled and fromScaled
+        public static final String COLUMN_WIND_SPEED = "wind";
+
+        // ContentResolver.call() method, Honeycomb on, that stores a fetch of hours as
+        // bulkInsert() does, without a ContentValues per hour.  The extras hold one array per
+        // column, keyed by the column name: long[] for COLUMN_LOC_KEY and COLUMN_TIME, int[]
+        // for the rest, all the same length.  The number of rows written comes back as
+        // EXTRA_COUNT.
+        public static final String METHOD_REPLACE = "replace_hourly_weather";
+        public static final String EXTRA_COUNT = "count";
+
+        // Temperature and windspeed are stored as integers this many times the real value.
+        // SQLite stores small integers in two or three bytes, where a REAL always takes eight.
+        public static final int SCALE = 100;
+
+        public static int toScaled(double value) {
+            return (int) Math.round(value * SCALE);
+        }
+
+        public static double fromScaled(int value) {
+            return value / (double) SCALE;
+        }
+
+        public static Uri buildHourlyWeatherUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id);
+        }
+
+        public static Uri buildHourlyWeatherLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        /**
+         * The hours of one (local) day, like the weather URI for the same date.
+         */
+        public static Uri buildHourlyWeatherLocationWithDate(String locationSetting, long date) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendPath(Long.toString(normalizeDate(date))).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static long getDateFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(2));
+        }
+    }
+
+    /*
+        Today's weather for a location: the first day of its forecast on or after today, with
+        the location's columns, as one row.  There is no table behind it; the provider keeps one
+        row per location in memory, brought up to date as the weather is written, so the widget,
+        Muzei and the notification don't each run the forecast query for its first row.  The
+        columns are named as in WeatherEntry and LocationEntry, _ID being the weather row's.
+     */
+    public static final class TodayEntry {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_TODAY).build();
+
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_TODAY;
+
+        public static Uri buildTodayUri(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+    }
+
+    /* Inner class that defines the table contents of the sync_history table */
+    public static final class SyncHistoryEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_HISTORY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_HISTORY;
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_HISTORY;
+
+        public static final String TABLE_NAME = "sync_history";
+
+        // Only the most recent syncs are kept; inserting more drops the oldest.
+        public static final int MAX_ROWS = 500;
+
+        static final String PATH_PERCENTILE = "percentile";
+
+        // The location that was synced, as sent to openweathermap.
+        public static final String COLUMN_LOCATION_SETTING = "location_setting";
+        // When the sync started, stored as long in milliseconds since the epoch
+        public static final String COLUMN_STARTED = "started";
+        // One of the OUTCOME_ values below
+        public static final String COLUMN_OUTCOME = "outcome";
+
+        // How long each stage took, in milliseconds.  A stage the sync never reached is null.
+        // Download is the time spent waiting for the body's bytes, parse is the rest of the
+        // time spent reading the body, which includes decompressing it.
+        public static final String COLUMN_CONNECT_MILLIS = "connect_ms";
+        public static final String COLUMN_FIRST_BYTE_MILLIS = "first_byte_ms";
+        public static final String COLUMN_DOWNLOAD_MILLIS = "download_ms";
+        public static final String COLUMN_PARSE_MILLIS = "parse_ms";
+        public static final String COLUMN_DB_WRITE_MILLIS = "db_write_ms";
+        // Filled in once every fan-out consumer has finished or timed out.
+        public static final String COLUMN_FAN_OUT_MILLIS = "fan_out_ms";
+        // From the start of the sync until its data was stored, not counting the fan-out.
+        public static final String COLUMN_TOTAL_MILLIS = "total_ms";
+
+        // Bytes received on the wire, before decompression.
+        public static final String COLUMN_BYTES_RECEIVED = "bytes_received";
+        // Weather rows inserted or changed by the sync.
+        public static final String COLUMN_ROWS_CHANGED = "rows_changed";
+
+        public static final int OUTCOME_CHANGED = 0;
+        public static final int OUTCOME_UNCHANGED = 1;
+        // The network or the server failed.
+        public static final int OUTCOME_FAILED = 2;
+        // The server sent something we couldn't use.
+        public static final int OUTCOME_INVALID_RESPONSE = 3;
+        // The server didn't know the location.
+        public static final int OUTCOME_INVALID_LOCATION = 4;
+        // The sync was cancelled, or the location stopped being wanted, before it finished.
+        public static final int OUTCOME_CANCELED = 5;
+
+        public static Uri buildSyncHistoryUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id);
+        }
+
+        /**
+         * A query on this URI returns one row with one column: the given percentile of the
+         * column's values over the stored syncs, e.g. the p95 of COLUMN_TOTAL_MILLIS.  Only the
+         * millisecond, byte and row count columns can be asked for.
+         */
+        public static Uri buildPercentileUri(String column, int percentile) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_PERCENTILE)
+                    .appendPath(column).appendPath(Integer.toString(percentile)).build();
+        }
+
+        public static String getPercentileColumnFromUri(Uri uri) {
+            return uri.getPathSegments().get(2);
+        }
+
+        public static int getPercentileFromUri(Uri uri) {
+            return Integer.parseInt(uri.getPathSegments().get(3));
+        }
+    }
 }
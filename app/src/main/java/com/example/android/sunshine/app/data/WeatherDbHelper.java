@@ -15,11 +15,19 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
+import com.example.android.sunshine.app.data.WeatherContract.HourlyWeatherEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationAliasEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncHistoryEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
 /**
@@ -28,71 +36,261 @@ import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 6;
+    // The oldest version onUpgrade migrates rather than starting over from.
+    static final int FIRST_MIGRATED_VERSION = 2;
 
     static final String DATABASE_NAME = "weather.db";
 
+    // A sync writes a few dozen pages, and the provider checkpoints once each batch of them
+    // has committed; this only bounds the log if something writes without stopping.  In pages.
+    static final int WAL_AUTOCHECKPOINT_PAGES = 1000;
+    // What the log is cut back to after a checkpoint, so one large write doesn't leave a
+    // large file behind.  In bytes.
+    static final long WAL_SIZE_LIMIT_BYTES = 512 * 1024;
+
+    private static volatile int sUpgradedFromVersion;
+
     public WeatherDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME, true);
+    }
+
+    /**
+     * @param writeAheadLogging whether to use a write-ahead log where the platform supports
+     * it.  With one, readers each get a connection of their own and carry on while a sync is
+     * writing; with the rollback journal they wait for its transaction to finish.
+     */
+    WeatherDbHelper(Context context, String name, boolean writeAheadLogging) {
+        super(context, name, null, DATABASE_VERSION);
+        if (writeAheadLogging && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
     }
 
+    // Only called from Jelly Bean on, which is also when write-ahead logging is turned on.
     @Override
-    public void onCreate(SQLiteDatabase sqLiteDatabase) {
-        // Create a table to hold locations.  A location consists of the string supplied in the
-        // location setting, the city name, and the latitude and longitude
-        final String SQL_CREATE_LOCATION_TABLE = "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
-                LocationEntry._ID + " INTEGER PRIMARY KEY," +
-                LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
-                LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
-                " );";
-
-        final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
-                // Why AutoIncrement here, and not above?
-                // Unique keys will be auto-generated in either case.  But for weather
-                // forecasting, it's reasonable to assume the user will want information
-                // for a certain date and all dates *following*, so the forecast data
-                // should be sorted accordingly.
-                WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
-
-                // the ID of the location entry associated with this weather data
-                WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
-                WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
-                WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
-                WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
-
-                WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
-
-                WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
-
-                // Set up the location column as a foreign key to location table.
-                " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
-                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
-
-                // To assure the application have just one weather entry per day
-                // per location, it's created a UNIQUE constraint with REPLACE strategy
-                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
-                WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
+    @TargetApi(16)
+    public void onConfigure(SQLiteDatabase db) {
+        if (db.isWriteAheadLoggingEnabled()) {
+            DatabaseUtils.longForQuery(db,
+                    "PRAGMA wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES, null);
+            DatabaseUtils.longForQuery(db,
+                    "PRAGMA journal_size_limit=" + WAL_SIZE_LIMIT_BYTES, null);
+        }
+    }
+
+    /**
+     * Copies what the write-ahead log holds into the database, without waiting on readers, so
+     * the log starts over small.  Called once a burst of writes has committed.
+     */
+    @TargetApi(16)
+    static void checkpoint(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN
+                || !db.isWriteAheadLoggingEnabled()) {
+            return;
+        }
+        Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Create a table to hold locations.  A location consists of the string supplied in the
+    // location setting, the city name, and the latitude and longitude
+    private static final String SQL_CREATE_LOCATION_TABLE = "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
+            LocationEntry._ID + " INTEGER PRIMARY KEY," +
+            LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
+            LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
+            LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
+            LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+            " );";
+
+    private static final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
+            // Why AutoIncrement here, and not above?
+            // Unique keys will be auto-generated in either case.  But for weather
+            // forecasting, it's reasonable to assume the user will want information
+            // for a certain date and all dates *following*, so the forecast data
+            // should be sorted accordingly.
+            WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+
+            // the ID of the location entry associated with this weather data
+            WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+            WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+
+            WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+
+            WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+
+            // Set up the location column as a foreign key to location table.
+            " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+            LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+
+            // To assure the application have just one weather entry per day
+            // per location, it's created a UNIQUE constraint with REPLACE strategy
+            " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
+            WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
+
+    // The date-first index behind the UNIQUE constraint above serves the purge of past days
+    // across every location.  Reading a location's forecast wants the location first, and
+    // with the columns the forecast list shows alongside (plus the rowid, which every index
+    // holds) it is answered from the index without reading the table.
+    private static final String SQL_CREATE_WEATHER_LOCATION_INDEX = "CREATE INDEX " +
+            WeatherEntry.INDEX_LOCATION_DATE + " ON " + WeatherEntry.TABLE_NAME + " (" +
+            WeatherEntry.COLUMN_LOC_KEY + ", " +
+            WeatherEntry.COLUMN_DATE + ", " +
+            WeatherEntry.COLUMN_WEATHER_ID + ", " +
+            WeatherEntry.COLUMN_SHORT_DESC + ", " +
+            WeatherEntry.COLUMN_MAX_TEMP + ", " +
+            WeatherEntry.COLUMN_MIN_TEMP + ");";
 
+    private static final String SQL_CREATE_LOCATION_ALIAS_TABLE = "CREATE TABLE " + LocationAliasEntry.TABLE_NAME + " (" +
+            LocationAliasEntry._ID + " INTEGER PRIMARY KEY," +
+            LocationAliasEntry.COLUMN_ALIAS + " TEXT UNIQUE NOT NULL ON CONFLICT REPLACE, " +
+            LocationAliasEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+
+            " FOREIGN KEY (" + LocationAliasEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+            LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "));";
+
+    // One row per location synced, kept for the last SyncHistoryEntry.MAX_ROWS syncs.
+    private static final String SQL_CREATE_SYNC_HISTORY_TABLE = "CREATE TABLE " + SyncHistoryEntry.TABLE_NAME + " (" +
+            SyncHistoryEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+            SyncHistoryEntry.COLUMN_LOCATION_SETTING + " TEXT NOT NULL, " +
+            SyncHistoryEntry.COLUMN_STARTED + " INTEGER NOT NULL, " +
+            SyncHistoryEntry.COLUMN_OUTCOME + " INTEGER NOT NULL, " +
+            SyncHistoryEntry.COLUMN_CONNECT_MILLIS + " INTEGER, " +
+            SyncHistoryEntry.COLUMN_FIRST_BYTE_MILLIS + " INTEGER, " +
+            SyncHistoryEntry.COLUMN_DOWNLOAD_MILLIS + " INTEGER, " +
+            SyncHistoryEntry.COLUMN_PARSE_MILLIS + " INTEGER, " +
+            SyncHistoryEntry.COLUMN_DB_WRITE_MILLIS + " INTEGER, " +
+            SyncHistoryEntry.COLUMN_FAN_OUT_MILLIS + " INTEGER, " +
+            SyncHistoryEntry.COLUMN_TOTAL_MILLIS + " INTEGER NOT NULL, " +
+            SyncHistoryEntry.COLUMN_BYTES_RECEIVED + " INTEGER, " +
+            SyncHistoryEntry.COLUMN_ROWS_CHANGED + " INTEGER " +
+            " );";
+
+    private static final String SQL_CREATE_HOURLY_WEATHER_TABLE = "CREATE TABLE " + HourlyWeatherEntry.TABLE_NAME + " (" +
+            HourlyWeatherEntry._ID + " INTEGER PRIMARY KEY," +
+            HourlyWeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+            HourlyWeatherEntry.COLUMN_TIME + " INTEGER NOT NULL, " +
+            HourlyWeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+            HourlyWeatherEntry.COLUMN_TEMP + " INTEGER NOT NULL, " +
+            HourlyWeatherEntry.COLUMN_HUMIDITY + " INTEGER NOT NULL, " +
+            HourlyWeatherEntry.COLUMN_WIND_SPEED + " INTEGER NOT NULL, " +
+
+            " FOREIGN KEY (" + HourlyWeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+            LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+
+            // Location first: the index behind this constraint is what finds one
+            // location's hours in a time range with a single seek.
+            " UNIQUE (" + HourlyWeatherEntry.COLUMN_LOC_KEY + ", " +
+            HourlyWeatherEntry.COLUMN_TIME + ") ON CONFLICT REPLACE);";
+
+    @Override
+    public void onCreate(SQLiteDatabase sqLiteDatabase) {
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_ALIAS_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_HISTORY_TABLE);
     }
 
+    /**
+     * Brings the schema up to date one version at a time, keeping the stored locations and
+     * weather, so the list has something to show straight after an app update.
+     *
+     * Each step changes the schema from one version to the next.  A new DATABASE_VERSION
+     * needs a step here, and TestDbMigrations needs the schema it replaces.  The steps run
+     * the same statements as onCreate, so a statement that changes must leave the earlier
+     * steps creating what they created before.
+     */
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
-        // Note that this only fires if you change the version number for your database.
-        // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
+        if (oldVersion < FIRST_MIGRATED_VERSION) {
+            recreate(sqLiteDatabase);
+        } else {
+            for (int version = oldVersion; version < newVersion; version++) {
+                upgradeFrom(sqLiteDatabase, version);
+            }
+        }
+        sUpgradedFromVersion = oldVersion;
+    }
+
+    private static void upgradeFrom(SQLiteDatabase db, int version) {
+        switch (version) {
+            case 2:
+                db.execSQL(SQL_CREATE_SYNC_HISTORY_TABLE);
+                break;
+            case 3:
+                db.execSQL(SQL_CREATE_HOURLY_WEATHER_TABLE);
+                break;
+            case 4:
+                db.execSQL(SQL_CREATE_LOCATION_ALIAS_TABLE);
+                canonicalizeLocationSettings(db);
+                break;
+            case 5:
+                db.execSQL(SQL_CREATE_WEATHER_LOCATION_INDEX);
+                break;
+            default:
+                throw new IllegalStateException("No upgrade from database version " + version);
+        }
+    }
+
+    /**
+     * Stores every location under its canonical location setting, as version 5 looks them up.
+     * A location whose canonical setting is already taken by another is the same place synced
+     * twice; it is dropped, weather and all, and the other one kept.
+     */
+    private static void canonicalizeLocationSettings(SQLiteDatabase db) {
+        Cursor cursor = db.query(LocationEntry.TABLE_NAME,
+                new String[]{LocationEntry._ID, LocationEntry.COLUMN_LOCATION_SETTING},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                String[] id = new String[]{cursor.getString(0)};
+                String locationSetting = cursor.getString(1);
+                String canonical = LocationEntry.canonicalizeLocationSetting(locationSetting);
+                if (canonical.equals(locationSetting)) {
+                    continue;
+                }
+                ContentValues values = new ContentValues();
+                values.put(LocationEntry.COLUMN_LOCATION_SETTING, canonical);
+                if (db.updateWithOnConflict(LocationEntry.TABLE_NAME, values,
+                        LocationEntry._ID + " = ?", id, SQLiteDatabase.CONFLICT_IGNORE) == 0) {
+                    db.delete(WeatherEntry.TABLE_NAME, WeatherEntry.COLUMN_LOC_KEY + " = ?", id);
+                    db.delete(HourlyWeatherEntry.TABLE_NAME,
+                            HourlyWeatherEntry.COLUMN_LOC_KEY + " = ?", id);
+                    db.delete(LocationEntry.TABLE_NAME, LocationEntry._ID + " = ?", id);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the version the database was upgraded from since the process started, or 0 if it
+     * wasn't.
+     */
+    public static int getUpgradedFromVersion() {
+        return sUpgradedFromVersion;
+    }
+
+    // Versions before this one aren't known well enough to migrate, so their data is dropped.
+    private void recreate(SQLiteDatabase sqLiteDatabase) {
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationAliasEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + SyncHistoryEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HourlyWeatherEntry.TABLE_NAME);
         onCreate(sqLiteDatabase);
     }
 }
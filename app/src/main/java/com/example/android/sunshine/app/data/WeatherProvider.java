@@ -17,12 +17,31 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class WeatherProvider extends ContentProvider {
 
@@ -30,44 +49,178 @@ public class WeatherProvider extends ContentProvider {
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
 
+    // Canonical location setting -> location._id for the locations seen so far, aliases
+    // included.  Every write to the location and alias tables goes through this provider and
+    // keeps it up to date, so a location found here needs no query.  Read without a lock, so
+    // that a query never waits for a write; see forgetLocationIds() for how it is emptied.
+    private final ConcurrentHashMap<String, Long> mLocationIds =
+            new ConcurrentHashMap<String, Long>();
+    // Moved on by every forgetLocationIds(), so a lookup that raced one doesn't keep its id.
+    private final AtomicLong mLocationIdsGeneration = new AtomicLong();
+
+    // Each location's weather for today, for TodayEntry.
+    private final TodaySnapshots mToday = new TodaySnapshots();
+
+    // The results of recent queries for a location's weather.
+    private final QueryCache mQueryCache = new QueryCache();
+
+    // The location columns a weather query can ask for.  Any other projection is answered
+    // from the weather table alone.
+    private static final Set<String> sLocationColumns = new HashSet<String>(Arrays.asList(
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG));
+
+    // The columns bulk inserts write, in the order they are bound.
+    private static final String[] sWeatherColumns = {
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES};
+    private static final String[] sHourlyWeatherColumns = {
+            WeatherContract.HourlyWeatherEntry.COLUMN_LOC_KEY,
+            WeatherContract.HourlyWeatherEntry.COLUMN_TIME,
+            WeatherContract.HourlyWeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.HourlyWeatherEntry.COLUMN_TEMP,
+            WeatherContract.HourlyWeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.HourlyWeatherEntry.COLUMN_WIND_SPEED};
+    // these indices must match the columns above
+    private static final int INDEX_WEATHER_LOC_KEY = 0;
+    private static final int INDEX_WEATHER_DATE = 1;
+    private static final int INDEX_WEATHER_SHORT_DESC = 2;
+    private static final int INDEX_WEATHER_WEATHER_ID = 3;
+    private static final int INDEX_WEATHER_MIN_TEMP = 4;
+    private static final int INDEX_WEATHER_MAX_TEMP = 5;
+    private static final int INDEX_WEATHER_HUMIDITY = 6;
+    private static final int INDEX_WEATHER_PRESSURE = 7;
+    private static final int INDEX_WEATHER_WIND_SPEED = 8;
+    private static final int INDEX_WEATHER_DEGREES = 9;
+    private static final int INDEX_HOURLY_LOC_KEY = 0;
+    private static final int INDEX_HOURLY_TIME = 1;
+    private static final int INDEX_HOURLY_WEATHER_ID = 2;
+    private static final int INDEX_HOURLY_TEMP = 3;
+    private static final int INDEX_HOURLY_HUMIDITY = 4;
+    private static final int INDEX_HOURLY_WIND_SPEED = 5;
+    private static final Set<String> sHourlyWeatherColumnSet =
+            new HashSet<String>(Arrays.asList(sHourlyWeatherColumns));
+
+    // Set while this thread is inside applyBatch; notifications are held there until the
+    // batch has committed.
+    private final ThreadLocal<PendingNotifications> mPendingNotifications =
+            new ThreadLocal<PendingNotifications>();
+
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
     static final int LOCATION = 300;
+    static final int LOCATION_WITH_SETTING = 301;
+    static final int SYNC_HISTORY = 400;
+    static final int SYNC_HISTORY_ID = 401;
+    static final int SYNC_HISTORY_PERCENTILE = 402;
+    static final int HOURLY_WEATHER = 500;
+    static final int HOURLY_WEATHER_WITH_LOCATION = 501;
+    static final int HOURLY_WEATHER_WITH_LOCATION_AND_DATE = 502;
+    static final int TODAY = 600;
+
+    // The sync_history columns a percentile can be asked for.
+    private static final Set<String> sPercentileColumns = new HashSet<String>(Arrays.asList(
+            WeatherContract.SyncHistoryEntry.COLUMN_CONNECT_MILLIS,
+            WeatherContract.SyncHistoryEntry.COLUMN_FIRST_BYTE_MILLIS,
+            WeatherContract.SyncHistoryEntry.COLUMN_DOWNLOAD_MILLIS,
+            WeatherContract.SyncHistoryEntry.COLUMN_PARSE_MILLIS,
+            WeatherContract.SyncHistoryEntry.COLUMN_DB_WRITE_MILLIS,
+            WeatherContract.SyncHistoryEntry.COLUMN_FAN_OUT_MILLIS,
+            WeatherContract.SyncHistoryEntry.COLUMN_TOTAL_MILLIS,
+            WeatherContract.SyncHistoryEntry.COLUMN_BYTES_RECEIVED,
+            WeatherContract.SyncHistoryEntry.COLUMN_ROWS_CHANGED));
+
+    //This is an inner join which looks like
+    //weather INNER JOIN location ON weather.location_id = location._id
+    static final String sWeatherByLocationSettingTables =
+            WeatherContract.WeatherEntry.TABLE_NAME + " INNER JOIN " +
+                    WeatherContract.LocationEntry.TABLE_NAME +
+                    " ON " + WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
+                    " = " + WeatherContract.LocationEntry.TABLE_NAME +
+                    "." + WeatherContract.LocationEntry._ID;
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
-
-    static{
-        sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
-        
-        //This is an inner join which looks like
-        //weather INNER JOIN location ON weather.location_id = location._id
-        sWeatherByLocationSettingQueryBuilder.setTables(
-                WeatherContract.WeatherEntry.TABLE_NAME + " INNER JOIN " +
-                        WeatherContract.LocationEntry.TABLE_NAME +
-                        " ON " + WeatherContract.WeatherEntry.TABLE_NAME +
-                        "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
-                        " = " + WeatherContract.LocationEntry.TABLE_NAME +
-                        "." + WeatherContract.LocationEntry._ID);
-    }
-
-    //location.location_setting = ?
-    private static final String sLocationSettingSelection =
-            WeatherContract.LocationEntry.TABLE_NAME+
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
-
-    //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
-            WeatherContract.LocationEntry.TABLE_NAME+
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+    //weather.location_id = ?
+    // Weather is selected by the location's id, with or without the join, so a location
+    // setting and its aliases all find the same rows.
+    private static final String sLocationIdSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    //weather.location_id = ? AND date >= ?
+    private static final String sLocationIdWithStartDateSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 
-    //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
-            WeatherContract.LocationEntry.TABLE_NAME +
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+    //weather.location_id = ? AND date = ?
+    private static final String sLocationIdAndDaySelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
+    //location_alias.alias = ?
+    private static final String sAliasSelection =
+            WeatherContract.LocationAliasEntry.COLUMN_ALIAS + " = ? ";
+
+    //ROUND(coord_lat, 2) = ROUND(?, 2) AND ROUND(coord_long, 2) = ROUND(?, 2)
+    private static final String sLocationCoordSelection =
+            "ROUND(" + WeatherContract.LocationEntry.COLUMN_COORD_LAT + ", " +
+                    WeatherContract.LocationEntry.COORD_DECIMALS + ") = ROUND(?, " +
+                    WeatherContract.LocationEntry.COORD_DECIMALS + ") AND " +
+                    "ROUND(" + WeatherContract.LocationEntry.COLUMN_COORD_LONG + ", " +
+                    WeatherContract.LocationEntry.COORD_DECIMALS + ") = ROUND(?, " +
+                    WeatherContract.LocationEntry.COORD_DECIMALS + ") ";
+
+    //location_id NOT IN (SELECT _id FROM location)
+    private static final String sOrphanAliasSelection =
+            WeatherContract.LocationAliasEntry.COLUMN_LOC_KEY + " NOT IN (SELECT " +
+                    WeatherContract.LocationEntry._ID + " FROM " +
+                    WeatherContract.LocationEntry.TABLE_NAME + ")";
+
+    // A location's own setting and its aliases.
+    private static final String sLocationSettingsQuery =
+            "SELECT " + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING +
+                    " FROM " + WeatherContract.LocationEntry.TABLE_NAME +
+                    " WHERE " + WeatherContract.LocationEntry._ID + " = ?" +
+                    " UNION SELECT " + WeatherContract.LocationAliasEntry.COLUMN_ALIAS +
+                    " FROM " + WeatherContract.LocationAliasEntry.TABLE_NAME +
+                    " WHERE " + WeatherContract.LocationAliasEntry.COLUMN_LOC_KEY + " = ?";
+
+    //weather._id = ?
+    private static final String sWeatherIdSelection =
+            WeatherContract.WeatherEntry._ID + " = ? ";
+
+    //hourly_weather.location_id = ?
+    // With the location's id known, the (location_id, time) index does the rest; no join is
+    // needed since none of the location's columns are returned.
+    private static final String sHourlyLocationIdSelection =
+            WeatherContract.HourlyWeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    //hourly_weather.location_id = ? AND time >= ? AND time < ?
+    private static final String sHourlyLocationIdAndTimeRangeSelection =
+            sHourlyLocationIdSelection + "AND " +
+                    WeatherContract.HourlyWeatherEntry.COLUMN_TIME + " >= ? AND " +
+                    WeatherContract.HourlyWeatherEntry.COLUMN_TIME + " < ? ";
+
+    //hourly_weather.location_id = ? AND time < ?
+    private static final String sHourlyLocationIdBeforeTimeSelection =
+            WeatherContract.HourlyWeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.HourlyWeatherEntry.COLUMN_TIME + " < ? ";
+
+    private static final String sHourlyDefaultSortOrder =
+            WeatherContract.HourlyWeatherEntry.COLUMN_TIME + " ASC";
+
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
@@ -75,21 +228,24 @@ public class WeatherProvider extends ContentProvider {
         String[] selectionArgs;
         String selection;
 
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        String locationId = Long.toString(getLocationId(db, locationSetting));
         if (startDate == 0) {
-            selection = sLocationSettingSelection;
-            selectionArgs = new String[]{locationSetting};
+            selection = sLocationIdSelection;
+            selectionArgs = new String[]{locationId};
         } else {
-            selectionArgs = new String[]{locationSetting, Long.toString(startDate)};
-            selection = sLocationSettingWithStartDateSelection;
+            selection = sLocationIdWithStartDateSelection;
+            selectionArgs = new String[]{locationId, Long.toString(startDate)};
         }
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+        return select(db, uri,
+                usesLocationColumns(projection)
+                        ? sWeatherByLocationSettingTables : WeatherContract.WeatherEntry.TABLE_NAME,
                 projection,
                 selection,
                 selectionArgs,
-                null,
-                null,
-                sortOrder
+                sortOrder,
+                null
         );
     }
 
@@ -98,16 +254,291 @@ public class WeatherProvider extends ContentProvider {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        String[] selectionArgs = new String[]{Long.toString(getLocationId(db, locationSetting)),
+                Long.toString(date)};
+
+        return select(db, uri,
+                usesLocationColumns(projection)
+                        ? sWeatherByLocationSettingTables : WeatherContract.WeatherEntry.TABLE_NAME,
                 projection,
-                sLocationSettingAndDaySelection,
-                new String[]{locationSetting, Long.toString(date)},
-                null,
+                sLocationIdAndDaySelection,
+                selectionArgs,
+                sortOrder,
+                null
+        );
+    }
+
+    private Cursor getHourlyWeatherByLocationSetting(
+            Uri uri, String[] projection, String sortOrder) {
+        String locationSetting = WeatherContract.HourlyWeatherEntry.getLocationSettingFromUri(uri);
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+
+        return select(db, uri,
+                WeatherContract.HourlyWeatherEntry.TABLE_NAME,
+                projection,
+                sHourlyLocationIdSelection,
+                new String[]{Long.toString(getLocationId(db, locationSetting))},
+                sortOrder != null ? sortOrder : sHourlyDefaultSortOrder,
+                null
+        );
+    }
+
+    private Cursor getHourlyWeatherByLocationSettingAndDate(
+            Uri uri, String[] projection, String sortOrder) {
+        String locationSetting = WeatherContract.HourlyWeatherEntry.getLocationSettingFromUri(uri);
+        long date = WeatherContract.HourlyWeatherEntry.getDateFromUri(uri);
+        // Half way through the next day, normalized, is the next day's start even when a
+        // daylight saving change makes this day 23 or 25 hours long.
+        long nextDate = WeatherContract.normalizeDate(date + DAY_IN_MILLIS * 3 / 2);
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+
+        return select(db, uri,
+                WeatherContract.HourlyWeatherEntry.TABLE_NAME,
+                projection,
+                sHourlyLocationIdAndTimeRangeSelection,
+                new String[]{Long.toString(getLocationId(db, locationSetting)),
+                        Long.toString(date / 1000),
+                        Long.toString(nextDate / 1000)},
+                sortOrder != null ? sortOrder : sHourlyDefaultSortOrder,
+                null
+        );
+    }
+
+    private Cursor getLocationBySetting(Uri uri, String[] projection) {
+        String locationSetting = WeatherContract.LocationEntry.getLocationSettingFromUri(uri);
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        return select(db, uri,
+                WeatherContract.LocationEntry.TABLE_NAME,
+                projection,
+                WeatherContract.LocationEntry._ID + " = ?",
+                new String[]{Long.toString(getLocationId(db, locationSetting))},
                 null,
-                sortOrder
+                null
         );
     }
 
+    private Cursor getTodayByLocationSetting(Uri uri, String[] projection) {
+        String locationSetting = WeatherContract.TodayEntry.getLocationSettingFromUri(uri);
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        return mToday.query(db, getLocationId(db, locationSetting), projection);
+    }
+
+    /**
+     * @return the weather the query reads, if its result is cached, or null if it isn't: only
+     * a known location's forecast is, which is what the list, the detail pane, the widgets and
+     * Muzei ask for over and over.  An unknown location may be added at any time.
+     */
+    private QueryCache.Scope getCacheScope(int match, Uri uri) {
+        if (!QueryCache.isSupported() || WeatherContract.isExplainUri(uri)) {
+            return null;
+        }
+        long firstDate;
+        long lastDate;
+        switch (match) {
+            case WEATHER_WITH_LOCATION:
+                firstDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+                lastDate = Long.MAX_VALUE;
+                break;
+            case WEATHER_WITH_LOCATION_AND_DATE:
+                firstDate = WeatherContract.WeatherEntry.getDateFromUri(uri);
+                lastDate = firstDate;
+                break;
+            default:
+                return null;
+        }
+        long locationId = getLocationId(mOpenHelper.getReadableDatabase(),
+                WeatherContract.WeatherEntry.getLocationSettingFromUri(uri));
+        return locationId != -1 ? new QueryCache.Scope(locationId, firstDate, lastDate) : null;
+    }
+
+    /**
+     * @return true if the projection asks for any of the location's columns, which only the
+     * join can provide.  No projection means all columns, the location's included.
+     */
+    private static boolean usesLocationColumns(String[] projection) {
+        if (projection == null) {
+            return true;
+        }
+        String locationPrefix = WeatherContract.LocationEntry.TABLE_NAME + ".";
+        for (String column : projection) {
+            if (sLocationColumns.contains(column) || column.startsWith(locationPrefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Looks a location up by its location setting, in any of its spellings and under any of
+     * its aliases, from memory if it has been seen before.
+     *
+     * @return the location's _id, or -1 if there is no such location.  -1 matches no rows, so
+     * it can be used in a selection as it is.
+     */
+    private long getLocationId(SQLiteDatabase db, String locationSetting) {
+        String key = WeatherContract.LocationEntry.canonicalizeLocationSetting(locationSetting);
+        Long cached = mLocationIds.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        long generation = mLocationIdsGeneration.get();
+        long locationId = queryLocationId(db, key);
+        // Not remembered if missing, so the location is picked up as soon as it is inserted.
+        if (locationId != -1) {
+            rememberLocationId(key, locationId, generation);
+        }
+        return locationId;
+    }
+
+    private static long queryLocationId(SQLiteDatabase db, String key) {
+        long locationId = queryId(db, WeatherContract.LocationEntry.TABLE_NAME,
+                WeatherContract.LocationEntry._ID,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{key});
+        if (locationId == -1) {
+            locationId = queryId(db, WeatherContract.LocationAliasEntry.TABLE_NAME,
+                    WeatherContract.LocationAliasEntry.COLUMN_LOC_KEY,
+                    sAliasSelection,
+                    new String[]{key});
+        }
+        return locationId;
+    }
+
+    /**
+     * Remembers an id read under the given generation.  If the ids were forgotten since, it
+     * may have been read from before the write that made them be forgotten, so it is dropped
+     * again; the next lookup reads it afresh.
+     */
+    private void rememberLocationId(String key, long locationId, long generation) {
+        mLocationIds.put(key, locationId);
+        if (mLocationIdsGeneration.get() != generation) {
+            mLocationIds.remove(key);
+        }
+    }
+
+    /**
+     * Forgets every remembered id, after a write that may have changed or removed any of
+     * them.  A write inside a batch calls this again once the batch is over, since until it
+     * commits other threads still read, and may remember, the ids from before it.
+     */
+    private void forgetLocationIds() {
+        mLocationIdsGeneration.incrementAndGet();
+        mLocationIds.clear();
+        PendingNotifications pending = mPendingNotifications.get();
+        if (pending != null) {
+            pending.locationsChanged = true;
+        }
+    }
+
+    /**
+     * @return the id column of the first row selected, or -1 if there is none.
+     */
+    private static long queryId(SQLiteDatabase db, String table, String idColumn,
+                                String selection, String[] selectionArgs) {
+        Cursor cursor = db.query(table, new String[]{idColumn}, selection, selectionArgs,
+                null, null, null, "1");
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Adds a location setting that isn't stored yet.  If a location is stored at the same
+     * coordinates, rounded to {@link WeatherContract.LocationEntry#COORD_DECIMALS} places, the
+     * setting becomes an alias of it rather than a location of its own.  The coordinates are
+     * the ones openweathermap returns for the city, so a zip code and a place picked in the
+     * same city come back with the same ones.
+     *
+     * Call inside a transaction.  Two threads adding the same setting at once both get the
+     * one row: the insert gives way to the UNIQUE location setting, and the row stored is
+     * read back instead.
+     *
+     * @return the _id of the location the setting now finds, or -1 if it could not be added.
+     */
+    private long addLocation(SQLiteDatabase db, ContentValues values) {
+        String key = WeatherContract.LocationEntry.canonicalizeLocationSetting(
+                values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING));
+        if (key == null) {
+            // Let the NOT NULL constraint turn it down.
+            return db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+        }
+
+        long locationId = -1;
+        Double lat = values.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LAT);
+        Double lon = values.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LONG);
+        if (lat != null && lon != null) {
+            locationId = queryId(db, WeatherContract.LocationEntry.TABLE_NAME,
+                    WeatherContract.LocationEntry._ID,
+                    sLocationCoordSelection,
+                    new String[]{Double.toString(lat), Double.toString(lon)});
+        }
+        if (locationId != -1) {
+            ContentValues aliasValues = new ContentValues();
+            aliasValues.put(WeatherContract.LocationAliasEntry.COLUMN_ALIAS, key);
+            aliasValues.put(WeatherContract.LocationAliasEntry.COLUMN_LOC_KEY, locationId);
+            if (db.insert(WeatherContract.LocationAliasEntry.TABLE_NAME, null, aliasValues) == -1) {
+                return -1;
+            }
+        } else {
+            ContentValues locationValues = new ContentValues(values);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, key);
+            locationId = db.insertWithOnConflict(WeatherContract.LocationEntry.TABLE_NAME, null,
+                    locationValues, SQLiteDatabase.CONFLICT_IGNORE);
+            if (locationId == -1) {
+                locationId = queryLocationId(db, key);
+                if (locationId == -1) {
+                    return -1;
+                }
+            }
+        }
+        mLocationIds.put(key, locationId);
+        return locationId;
+    }
+
+    /**
+     * Answers a percentile URI with a single row holding the value at that percentile of the
+     * column, over the syncs where it was measured.  No row means there is nothing to go on.
+     */
+    private Cursor getSyncHistoryPercentile(Uri uri) {
+        String column = WeatherContract.SyncHistoryEntry.getPercentileColumnFromUri(uri);
+        int percentile = WeatherContract.SyncHistoryEntry.getPercentileFromUri(uri);
+        if (!sPercentileColumns.contains(column) || percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Unsupported percentile uri: " + uri);
+        }
+
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        String measured = column + " IS NOT NULL";
+        long count = DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " +
+                WeatherContract.SyncHistoryEntry.TABLE_NAME + " WHERE " + measured, null);
+        // nearest-rank: the smallest value with at least percentile% of the values at or below it
+        long offset = Math.max(0, (long) Math.ceil(percentile * count / 100.0) - 1);
+        return select(db, uri,
+                WeatherContract.SyncHistoryEntry.TABLE_NAME,
+                new String[]{column},
+                measured,
+                null,
+                column + " ASC",
+                offset + ",1");
+    }
+
+    /**
+     * Runs a query, or for a uri built with {@link WeatherContract#buildExplainUri}, returns
+     * the plan SQLite would run it with.
+     */
+    private static Cursor select(SQLiteDatabase db, Uri uri, String tables, String[] projection,
+                                 String selection, String[] selectionArgs, String sortOrder,
+                                 String limit) {
+        String sql = SQLiteQueryBuilder.buildQueryString(false, tables, projection, selection,
+                null, null, sortOrder, limit);
+        if (WeatherContract.isExplainUri(uri)) {
+            sql = "EXPLAIN QUERY PLAN " + sql;
+        }
+        return db.rawQuery(sql, selectionArgs);
+    }
+
     /*
         Students: Here is where you need to create the UriMatcher. This UriMatcher will
         match each URI to the WEATHER, WEATHER_WITH_LOCATION, WEATHER_WITH_LOCATION_AND_DATE,
@@ -130,6 +561,19 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION + "/" +
+                WeatherContract.LocationEntry.PATH_SETTING + "/*", LOCATION_WITH_SETTING);
+
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY_WEATHER, HOURLY_WEATHER);
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY_WEATHER + "/*", HOURLY_WEATHER_WITH_LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY_WEATHER + "/*/#", HOURLY_WEATHER_WITH_LOCATION_AND_DATE);
+
+        matcher.addURI(authority, WeatherContract.PATH_TODAY + "/*", TODAY);
+
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_HISTORY, SYNC_HISTORY);
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_HISTORY + "/#", SYNC_HISTORY_ID);
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_HISTORY + "/" +
+                WeatherContract.SyncHistoryEntry.PATH_PERCENTILE + "/*/#", SYNC_HISTORY_PERCENTILE);
         return matcher;
     }
 
@@ -139,10 +583,15 @@ public class WeatherProvider extends ContentProvider {
      */
     @Override
     public boolean onCreate() {
-        mOpenHelper = new WeatherDbHelper(getContext());
+        mOpenHelper = createOpenHelper(getContext());
         return true;
     }
 
+    // Tests override this to run the provider on a database of their own.
+    WeatherDbHelper createOpenHelper(Context context) {
+        return new WeatherDbHelper(context);
+    }
+
     /*
         Students: Here's where you'll code the getType function that uses the UriMatcher.  You can
         test this by uncommenting testGetType in TestProvider.
@@ -164,6 +613,19 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case LOCATION_WITH_SETTING:
+                return WeatherContract.LocationEntry.CONTENT_ITEM_TYPE;
+            case HOURLY_WEATHER:
+            case HOURLY_WEATHER_WITH_LOCATION:
+            case HOURLY_WEATHER_WITH_LOCATION_AND_DATE:
+                return WeatherContract.HourlyWeatherEntry.CONTENT_TYPE;
+            case TODAY:
+                return WeatherContract.TodayEntry.CONTENT_ITEM_TYPE;
+            case SYNC_HISTORY:
+                return WeatherContract.SyncHistoryEntry.CONTENT_TYPE;
+            case SYNC_HISTORY_ID:
+            case SYNC_HISTORY_PERCENTILE:
+                return WeatherContract.SyncHistoryEntry.CONTENT_ITEM_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -172,10 +634,27 @@ public class WeatherProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        final int match = sUriMatcher.match(uri);
+        Cursor retCursor;
+
+        // A location's forecast is answered from memory if it was asked for before and hasn't
+        // been written since.
+        QueryCache.Scope cacheScope = getCacheScope(match, uri);
+        QueryCache.Key cacheKey = null;
+        long cacheGeneration = 0;
+        if (cacheScope != null) {
+            cacheKey = new QueryCache.Key(uri, projection, selection, selectionArgs, sortOrder);
+            retCursor = mQueryCache.get(cacheKey);
+            if (retCursor != null) {
+                retCursor.setNotificationUri(getContext().getContentResolver(), uri);
+                return retCursor;
+            }
+            cacheGeneration = mQueryCache.getGeneration();
+        }
+
         // Here's the switch statement that, given a URI, will determine what kind of request it is,
         // and query the database accordingly.
-        Cursor retCursor;
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
             // "weather/*/*"
             case WEATHER_WITH_LOCATION_AND_DATE:
             {
@@ -189,34 +668,84 @@ public class WeatherProvider extends ContentProvider {
             }
             // "weather"
             case WEATHER: {
-                retCursor = mOpenHelper.getReadableDatabase().query(
+                retCursor = select(mOpenHelper.getReadableDatabase(), uri,
                         WeatherContract.WeatherEntry.TABLE_NAME,
                         projection,
                         selection,
                         selectionArgs,
-                        null,
-                        null,
-                        sortOrder
+                        sortOrder,
+                        null
                 );
                 break;
             }
             // "location"
             case LOCATION: {
-                retCursor = mOpenHelper.getReadableDatabase().query(
+                retCursor = select(mOpenHelper.getReadableDatabase(), uri,
                         WeatherContract.LocationEntry.TABLE_NAME,
                         projection,
                         selection,
                         selectionArgs,
-                        null,
-                        null,
-                        sortOrder
+                        sortOrder,
+                        null
                 );
                 break;
             }
+            // "location/setting/*"
+            case LOCATION_WITH_SETTING: {
+                retCursor = getLocationBySetting(uri, projection);
+                break;
+            }
+            // "hourly_weather/*/#"
+            case HOURLY_WEATHER_WITH_LOCATION_AND_DATE: {
+                retCursor = getHourlyWeatherByLocationSettingAndDate(uri, projection, sortOrder);
+                break;
+            }
+            // "hourly_weather/*"
+            case HOURLY_WEATHER_WITH_LOCATION: {
+                retCursor = getHourlyWeatherByLocationSetting(uri, projection, sortOrder);
+                break;
+            }
+            // "hourly_weather"
+            case HOURLY_WEATHER: {
+                retCursor = select(mOpenHelper.getReadableDatabase(), uri,
+                        WeatherContract.HourlyWeatherEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        sortOrder,
+                        null
+                );
+                break;
+            }
+            // "today/*"
+            case TODAY: {
+                retCursor = getTodayByLocationSetting(uri, projection);
+                break;
+            }
+            // "sync_history"
+            case SYNC_HISTORY: {
+                retCursor = select(mOpenHelper.getReadableDatabase(), uri,
+                        WeatherContract.SyncHistoryEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        sortOrder,
+                        null
+                );
+                break;
+            }
+            // "sync_history/percentile/*/#"
+            case SYNC_HISTORY_PERCENTILE: {
+                retCursor = getSyncHistoryPercentile(uri);
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
+        if (cacheKey != null) {
+            retCursor = mQueryCache.put(cacheKey, cacheScope, retCursor, cacheGeneration);
+        }
         retCursor.setNotificationUri(getContext().getContentResolver(), uri);
         return retCursor;
     }
@@ -233,25 +762,72 @@ public class WeatherProvider extends ContentProvider {
         switch (match) {
             case WEATHER: {
                 normalizeDate(values);
-                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                WeatherChanges changes = new WeatherChanges();
+                long _id = upsertWeather(db, values, changes);
                 if ( _id > 0 )
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
-                break;
+                // Writing back what is already stored is not a change worth telling anyone about
+                notifyWeatherChanges(db, changes);
+                weatherChanged(db, changes);
+                PendingNotifications pending = mPendingNotifications.get();
+                if (pending != null) {
+                    pending.weatherUnchanged = changes.size() == 0;
+                }
+                return returnUri;
             }
             case LOCATION: {
-                long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+                // A location that is already stored is handed back as it is, so adding a
+                // location is a single call, and usually answered from memory.
+                String locationSetting =
+                        values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+                long _id;
+                db.beginTransaction();
+                try {
+                    _id = locationSetting != null ? getLocationId(db, locationSetting) : -1;
+                    if (_id != -1) {
+                        db.setTransactionSuccessful();
+                        // Nothing changed, so nobody needs telling.
+                        return WeatherContract.LocationEntry.buildLocationUri(_id);
+                    }
+                    _id = addLocation(db, values);
+                    if (_id > 0) {
+                        db.setTransactionSuccessful();
+                    }
+                } finally {
+                    db.endTransaction();
+                }
                 if ( _id > 0 )
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
             }
+            case HOURLY_WEATHER: {
+                long _id = db.insert(WeatherContract.HourlyWeatherEntry.TABLE_NAME, null, values);
+                if ( _id > 0 )
+                    returnUri = WeatherContract.HourlyWeatherEntry.buildHourlyWeatherUri(_id);
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                break;
+            }
+            case SYNC_HISTORY: {
+                long _id = db.insert(WeatherContract.SyncHistoryEntry.TABLE_NAME, null, values);
+                if ( _id > 0 )
+                    returnUri = WeatherContract.SyncHistoryEntry.buildSyncHistoryUri(_id);
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                // Keep the history rolling: ids only grow, so drop whatever is too far behind.
+                db.delete(WeatherContract.SyncHistoryEntry.TABLE_NAME,
+                        WeatherContract.SyncHistoryEntry._ID + " <= ?",
+                        new String[]{Long.toString(_id - WeatherContract.SyncHistoryEntry.MAX_ROWS)});
+                break;
+            }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return returnUri;
     }
 
@@ -266,17 +842,35 @@ public class WeatherProvider extends ContentProvider {
             case WEATHER:
                 rowsDeleted = db.delete(
                         WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                if (rowsDeleted != 0) {
+                    forgetWeather();
+                }
                 break;
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                db.delete(WeatherContract.LocationAliasEntry.TABLE_NAME,
+                        sOrphanAliasSelection, null);
+                // The selection could be anything; the map is refilled as it is used.
+                forgetLocationIds();
+                if (rowsDeleted != 0) {
+                    forgetWeather();
+                }
+                break;
+            case HOURLY_WEATHER:
+                rowsDeleted = db.delete(
+                        WeatherContract.HourlyWeatherEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            case SYNC_HISTORY:
+                rowsDeleted = db.delete(
+                        WeatherContract.SyncHistoryEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsDeleted;
     }
@@ -301,47 +895,740 @@ public class WeatherProvider extends ContentProvider {
                 normalizeDate(values);
                 rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                if (rowsUpdated != 0) {
+                    forgetWeather();
+                }
                 break;
             case LOCATION:
-                rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
+                rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values,
+                        selection, selectionArgs);
+                if (values.containsKey(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)
+                        || values.containsKey(WeatherContract.LocationEntry._ID)) {
+                    forgetLocationIds();
+                }
+                if (rowsUpdated != 0) {
+                    forgetWeather();
+                }
+                break;
+            case HOURLY_WEATHER:
+                rowsUpdated = db.update(WeatherContract.HourlyWeatherEntry.TABLE_NAME, values,
+                        selection, selectionArgs);
+                break;
+            case SYNC_HISTORY_ID:
+                rowsUpdated = db.update(WeatherContract.SyncHistoryEntry.TABLE_NAME, values,
+                        WeatherContract.SyncHistoryEntry._ID + " = ?",
+                        new String[]{Long.toString(ContentUris.parseId(uri))});
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsUpdated;
     }
 
+    /**
+     * Inserts weather for a location and date, or brings the stored row up to date.  The
+     * weather table's UNIQUE(date, location_id) ON CONFLICT REPLACE clause would turn every
+     * rewrite into a delete plus an insert, so instead the incoming values are compared with the
+     * stored row and only the columns that differ are updated, in place.
+     *
+     * @param changes collects the location and date of the row if anything was written.
+     * @return the _id of the row, or -1 if it could not be inserted.
+     */
+    private long upsertWeather(SQLiteDatabase db, ContentValues values, WeatherChanges changes) {
+        Long locationId = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        Long date = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        if (locationId == null || date == null) {
+            // Without the unique key there is nothing to compare against.
+            long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+            if (_id != -1) {
+                changes.addUnknown();
+            }
+            return _id;
+        }
+
+        Cursor stored = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                null,
+                sLocationIdAndDaySelection,
+                new String[]{Long.toString(locationId), Long.toString(date)},
+                null,
+                null,
+                null);
+        try {
+            if (!stored.moveToFirst()) {
+                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                if (_id != -1) {
+                    changes.add(locationId, date);
+                }
+                return _id;
+            }
+
+            long _id = stored.getLong(stored.getColumnIndex(WeatherContract.WeatherEntry._ID));
+            ContentValues changedValues = new ContentValues(values);
+            for (Map.Entry<String, Object> entry : values.valueSet()) {
+                int index = stored.getColumnIndex(entry.getKey());
+                if (index == -1 || isSameValue(entry.getValue(), stored, index)) {
+                    changedValues.remove(entry.getKey());
+                }
+            }
+            if (changedValues.size() > 0) {
+                db.update(WeatherContract.WeatherEntry.TABLE_NAME, changedValues,
+                        sWeatherIdSelection, new String[]{Long.toString(_id)});
+                changes.add(locationId, date);
+            }
+            return _id;
+        } finally {
+            stored.close();
+        }
+    }
+
+    /**
+     * Writes a batch of weather the way {@link #upsertWeather} writes one row, without a query
+     * per row: each location's stored weather is read once, new rows go in through one
+     * compiled statement, and only rows that differ are updated.  Call inside a transaction.
+     */
+    private void upsertWeather(SQLiteDatabase db, ContentValues[] values, WeatherChanges changes) {
+        // location id -> date -> the stored row, read as each location first comes up
+        Map<Long, Map<Long, StoredWeather>> storedByLocation =
+                new HashMap<Long, Map<Long, StoredWeather>>();
+        BulkInsertStatement inserter = new BulkInsertStatement(
+                db, WeatherContract.WeatherEntry.TABLE_NAME, sWeatherColumns);
+        try {
+            for (ContentValues value : values) {
+                inserter.checkColumns(value);
+                normalizeDate(value);
+                Long locationId = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+                Long date = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+                if (locationId == null || date == null) {
+                    if (insertWeather(inserter, value) != -1) {
+                        changes.addUnknown();
+                    }
+                    continue;
+                }
+
+                Map<Long, StoredWeather> storedByDate = storedByLocation.get(locationId);
+                if (storedByDate == null) {
+                    storedByDate = loadStoredWeather(db, locationId);
+                    storedByLocation.put(locationId, storedByDate);
+                }
+                StoredWeather stored = storedByDate.get(date);
+                if (stored == null) {
+                    long _id = insertWeather(inserter, value);
+                    if (_id != -1) {
+                        storedByDate.put(date, new StoredWeather(_id, new ContentValues(value)));
+                        changes.add(locationId, date);
+                    }
+                    continue;
+                }
+
+                ContentValues changedValues = new ContentValues(value);
+                for (Map.Entry<String, Object> entry : value.valueSet()) {
+                    String column = entry.getKey();
+                    if (!stored.values.containsKey(column)
+                            || isSameValue(entry.getValue(), stored.values.get(column))) {
+                        changedValues.remove(column);
+                    }
+                }
+                if (changedValues.size() > 0) {
+                    db.update(WeatherContract.WeatherEntry.TABLE_NAME, changedValues,
+                            sWeatherIdSelection, new String[]{Long.toString(stored.id)});
+                    stored.values.putAll(changedValues);
+                    changes.add(locationId, date);
+                }
+            }
+        } finally {
+            inserter.close();
+        }
+    }
+
+    /**
+     * Binds each of the row's values as its column's type, so that none is told apart by
+     * instanceof; a missing value is NULL.
+     *
+     * @return the _id of the new row, or -1.
+     */
+    private static long insertWeather(BulkInsertStatement inserter, ContentValues value) {
+        bindLong(inserter, INDEX_WEATHER_LOC_KEY,
+                value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY));
+        bindLong(inserter, INDEX_WEATHER_DATE,
+                value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+        inserter.bindString(INDEX_WEATHER_SHORT_DESC,
+                value.getAsString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC));
+        bindLong(inserter, INDEX_WEATHER_WEATHER_ID,
+                value.getAsLong(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID));
+        bindDouble(inserter, INDEX_WEATHER_MIN_TEMP,
+                value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP));
+        bindDouble(inserter, INDEX_WEATHER_MAX_TEMP,
+                value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP));
+        bindDouble(inserter, INDEX_WEATHER_HUMIDITY,
+                value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_HUMIDITY));
+        bindDouble(inserter, INDEX_WEATHER_PRESSURE,
+                value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_PRESSURE));
+        bindDouble(inserter, INDEX_WEATHER_WIND_SPEED,
+                value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED));
+        bindDouble(inserter, INDEX_WEATHER_DEGREES,
+                value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_DEGREES));
+        return inserter.execute();
+    }
+
+    private static void bindLong(BulkInsertStatement inserter, int column, Long value) {
+        if (value == null) {
+            inserter.bindNull(column);
+        } else {
+            inserter.bindLong(column, value);
+        }
+    }
+
+    private static void bindDouble(BulkInsertStatement inserter, int column, Double value) {
+        if (value == null) {
+            inserter.bindNull(column);
+        } else {
+            inserter.bindDouble(column, value);
+        }
+    }
+
+    /**
+     * @return the location's stored weather by date, numbers read as doubles, the way
+     * {@link #isSameValue(Object, Cursor, int)} compares them.
+     */
+    private static Map<Long, StoredWeather> loadStoredWeather(SQLiteDatabase db, long locationId) {
+        String[] projection = new String[sWeatherColumns.length + 1];
+        projection[0] = WeatherContract.WeatherEntry._ID;
+        System.arraycopy(sWeatherColumns, 0, projection, 1, sWeatherColumns.length);
+        Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                projection,
+                sLocationIdSelection,
+                new String[]{Long.toString(locationId)},
+                null,
+                null,
+                null);
+        try {
+            Map<Long, StoredWeather> storedByDate =
+                    new HashMap<Long, StoredWeather>(cursor.getCount() * 2);
+            int dateIndex = cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_DATE);
+            int textIndex = cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC);
+            while (cursor.moveToNext()) {
+                ContentValues values = new ContentValues(projection.length);
+                for (int i = 1; i < projection.length; i++) {
+                    if (cursor.isNull(i)) {
+                        values.putNull(projection[i]);
+                    } else if (i == textIndex) {
+                        values.put(projection[i], cursor.getString(i));
+                    } else {
+                        values.put(projection[i], cursor.getDouble(i));
+                    }
+                }
+                storedByDate.put(cursor.getLong(dateIndex),
+                        new StoredWeather(cursor.getLong(0), values));
+            }
+            return storedByDate;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * A weather row as stored, or as this batch has left it.
+     */
+    private static final class StoredWeather {
+        final long id;
+        final ContentValues values;
+
+        StoredWeather(long id, ContentValues values) {
+            this.id = id;
+            this.values = values;
+        }
+    }
+
+    private static boolean isSameValue(Object value, Object stored) {
+        if (value == null || stored == null) {
+            return value == null && stored == null;
+        }
+        if (value instanceof Number && stored instanceof Number) {
+            return ((Number) value).doubleValue() == ((Number) stored).doubleValue();
+        }
+        if (value instanceof byte[] && stored instanceof byte[]) {
+            return Arrays.equals((byte[]) value, (byte[]) stored);
+        }
+        return value.toString().equals(stored.toString());
+    }
+
+    private static boolean isSameValue(Object value, Cursor cursor, int index) {
+        if (value == null || cursor.isNull(index)) {
+            return value == null && cursor.isNull(index);
+        }
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue() == cursor.getDouble(index);
+        }
+        if (value instanceof byte[]) {
+            return Arrays.equals((byte[]) value, cursor.getBlob(index));
+        }
+        return value.toString().equals(cursor.getString(index));
+    }
+
+    /**
+     * Notifies observers of exactly the locations and dates that were written, rather than
+     * everything under {@link WeatherContract.WeatherEntry#CONTENT_URI}.
+     */
+    private void notifyWeatherChanges(SQLiteDatabase db, WeatherChanges changes) {
+        if (changes.size() == 0) {
+            return;
+        }
+        if (changes.hasUnknown()) {
+            notifyChange(WeatherContract.WeatherEntry.CONTENT_URI);
+            notifyChange(WeatherContract.TodayEntry.CONTENT_URI);
+            return;
+        }
+        for (Map.Entry<Long, Set<Long>> entry : changes.getDatesByLocation().entrySet()) {
+            // Observers may be watching the location under any of its settings.
+            List<String> locationSettings = getLocationSettings(db, entry.getKey());
+            if (locationSettings.isEmpty()) {
+                notifyChange(WeatherContract.WeatherEntry.CONTENT_URI);
+                notifyChange(WeatherContract.TodayEntry.CONTENT_URI);
+                return;
+            }
+            for (String locationSetting : locationSettings) {
+                notifyChange(WeatherContract.TodayEntry.buildTodayUri(locationSetting));
+                for (long date : entry.getValue()) {
+                    notifyChange(WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                            locationSetting, date));
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells observers of the uri, and of anything under it, that it changed.  Inside
+     * {@link #applyBatch} this waits until the batch has committed.
+     */
+    private void notifyChange(Uri uri) {
+        PendingNotifications pending = mPendingNotifications.get();
+        if (pending != null) {
+            pending.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Brings what is held in memory about the weather up to date once a write has committed:
+     * today's row is read again for the locations that were written, and the cached results
+     * that read the dates written are dropped.  Inside {@link #applyBatch} this waits until
+     * the batch is done.
+     */
+    private void weatherChanged(SQLiteDatabase db, WeatherChanges changes) {
+        PendingNotifications pending = mPendingNotifications.get();
+        if (pending != null) {
+            pending.weatherChanges.addAll(changes);
+            return;
+        }
+        if (changes.hasUnknown()) {
+            mToday.clear();
+            mQueryCache.clear();
+        }
+        for (Map.Entry<Long, Set<Long>> entry : changes.getDatesByLocation().entrySet()) {
+            mQueryCache.invalidateWeather(entry.getKey(), entry.getValue());
+            mToday.refresh(db, entry.getKey());
+        }
+    }
+
+    // For writes whose rows we can't place: everything held in memory about the weather is
+    // read again when next asked for.
+    private void forgetWeather() {
+        PendingNotifications pending = mPendingNotifications.get();
+        if (pending != null) {
+            pending.weatherChanges.addUnknown();
+        } else {
+            mToday.clear();
+            mQueryCache.clear();
+        }
+        notifyChange(WeatherContract.TodayEntry.CONTENT_URI);
+    }
+
+    /**
+     * @return the location's own setting and its aliases, or none if there is no such location.
+     */
+    private static List<String> getLocationSettings(SQLiteDatabase db, long locationId) {
+        String id = Long.toString(locationId);
+        Cursor cursor = db.rawQuery(sLocationSettingsQuery, new String[]{id, id});
+        try {
+            List<String> locationSettings = new ArrayList<String>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                locationSettings.add(cursor.getString(0));
+            }
+            return locationSettings;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * The weather rows touched by one write, keyed by location id.
+     */
+    private static final class WeatherChanges {
+        private final Map<Long, Set<Long>> mDatesByLocation = new HashMap<Long, Set<Long>>();
+        private int mSize;
+        private boolean mHasUnknown;
+
+        void add(long locationId, long date) {
+            Set<Long> dates = mDatesByLocation.get(locationId);
+            if (dates == null) {
+                dates = new TreeSet<Long>();
+                mDatesByLocation.put(locationId, dates);
+            }
+            dates.add(date);
+            mSize++;
+        }
+
+        // A row was written that we can't place; observers of everything get told.
+        void addUnknown() {
+            mHasUnknown = true;
+            mSize++;
+        }
+
+        void addAll(WeatherChanges other) {
+            for (Map.Entry<Long, Set<Long>> entry : other.mDatesByLocation.entrySet()) {
+                for (long date : entry.getValue()) {
+                    add(entry.getKey(), date);
+                }
+            }
+            if (other.mHasUnknown) {
+                addUnknown();
+            }
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        boolean hasUnknown() {
+            return mHasUnknown;
+        }
+
+        Map<Long, Set<Long>> getDatesByLocation() {
+            return mDatesByLocation;
+        }
+    }
+
+    /**
+     * Weather rows are written through {@link #upsertWeather}, so rows that already hold the
+     * same values are left alone and observers only hear about the ones that changed.
+     *
+     * @return for weather, the number of rows that were inserted or changed, which is 0 when the
+     * stored forecast already matched.
+     */
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case WEATHER:
+                WeatherChanges changes = new WeatherChanges();
                 db.beginTransaction();
-                int returnCount = 0;
                 try {
-                    for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
-                            returnCount++;
-                        }
-                    }
+                    upsertWeather(db, values, changes);
                     db.setTransactionSuccessful();
                 } finally {
                     db.endTransaction();
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
+                WeatherDbHelper.checkpoint(db);
+                notifyWeatherChanges(db, changes);
+                weatherChanged(db, changes);
+                return changes.size();
+            case HOURLY_WEATHER:
+                int returnCount = replaceHourlyWeather(db, new HourlyRows(values));
+                WeatherDbHelper.checkpoint(db);
+                if (returnCount > 0) {
+                    notifyChange(uri);
+                }
                 return returnCount;
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (!WeatherContract.HourlyWeatherEntry.METHOD_REPLACE.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int returnCount = replaceHourlyWeather(db, new HourlyRows(extras));
+        WeatherDbHelper.checkpoint(db);
+        if (returnCount > 0) {
+            notifyChange(WeatherContract.HourlyWeatherEntry.CONTENT_URI);
+        }
+        Bundle result = new Bundle();
+        result.putInt(WeatherContract.HourlyWeatherEntry.EXTRA_COUNT, returnCount);
+        return result;
+    }
+
+    /**
+     * Stores a fetch of hourly forecasts in one transaction.  Each one replaces the stored hour
+     * of the same location and time, and a location's hours from before the first one given
+     * are dropped, since they have passed.
+     *
+     * @return the number of rows written.
+     */
+    private int replaceHourlyWeather(SQLiteDatabase db, HourlyRows rows) {
+        // The earliest hour given for each location.
+        Map<Long, Long> firstTimes = new HashMap<Long, Long>();
+        for (int i = 0; i < rows.size; i++) {
+            Long firstTime = firstTimes.get(rows.locationIds[i]);
+            if (firstTime == null || rows.times[i] < firstTime) {
+                firstTimes.put(rows.locationIds[i], rows.times[i]);
+            }
+        }
+
+        int returnCount = 0;
+        db.beginTransaction();
+        BulkInsertStatement inserter = new BulkInsertStatement(
+                db, WeatherContract.HourlyWeatherEntry.TABLE_NAME, sHourlyWeatherColumns);
+        try {
+            for (Map.Entry<Long, Long> entry : firstTimes.entrySet()) {
+                db.delete(WeatherContract.HourlyWeatherEntry.TABLE_NAME,
+                        sHourlyLocationIdBeforeTimeSelection,
+                        new String[]{Long.toString(entry.getKey()),
+                                Long.toString(entry.getValue())});
+            }
+            for (int i = 0; i < rows.size; i++) {
+                inserter.bindLong(INDEX_HOURLY_LOC_KEY, rows.locationIds[i]);
+                inserter.bindLong(INDEX_HOURLY_TIME, rows.times[i]);
+                inserter.bindLong(INDEX_HOURLY_WEATHER_ID, rows.weatherIds[i]);
+                inserter.bindLong(INDEX_HOURLY_TEMP, rows.temps[i]);
+                inserter.bindLong(INDEX_HOURLY_HUMIDITY, rows.humidities[i]);
+                inserter.bindLong(INDEX_HOURLY_WIND_SPEED, rows.windSpeeds[i]);
+                if (inserter.execute() != -1) {
+                    returnCount++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            inserter.close();
+            db.endTransaction();
+        }
+        return returnCount;
+    }
+
+    /**
+     * Hours to store, a primitive array per column.
+     */
+    private static final class HourlyRows {
+        final int size;
+        final long[] locationIds;
+        final long[] times;
+        final int[] weatherIds;
+        final int[] temps;
+        final int[] humidities;
+        final int[] windSpeeds;
+
+        /**
+         * Reads the arrays {@link WeatherContract.HourlyWeatherEntry#METHOD_REPLACE} is given.
+         */
+        HourlyRows(Bundle extras) {
+            if (extras == null) {
+                throw new IllegalArgumentException("No hours given");
+            }
+            locationIds = extras.getLongArray(WeatherContract.HourlyWeatherEntry.COLUMN_LOC_KEY);
+            times = extras.getLongArray(WeatherContract.HourlyWeatherEntry.COLUMN_TIME);
+            weatherIds = extras.getIntArray(WeatherContract.HourlyWeatherEntry.COLUMN_WEATHER_ID);
+            temps = extras.getIntArray(WeatherContract.HourlyWeatherEntry.COLUMN_TEMP);
+            humidities = extras.getIntArray(WeatherContract.HourlyWeatherEntry.COLUMN_HUMIDITY);
+            windSpeeds = extras.getIntArray(WeatherContract.HourlyWeatherEntry.COLUMN_WIND_SPEED);
+            if (locationIds == null || times == null || weatherIds == null || temps == null
+                    || humidities == null || windSpeeds == null) {
+                throw new IllegalArgumentException("Missing a column of hours: " + extras);
+            }
+            size = locationIds.length;
+            if (times.length != size || weatherIds.length != size || temps.length != size
+                    || humidities.length != size || windSpeeds.length != size) {
+                throw new IllegalArgumentException("Columns of hours differ in length");
+            }
+        }
+
+        /**
+         * Reads hours handed to bulkInsert().  A row missing a column is left out, as the
+         * table's NOT NULL columns would refuse it.
+         *
+         * @throws IllegalArgumentException for a column the table doesn't have.
+         */
+        HourlyRows(ContentValues[] values) {
+            locationIds = new long[values.length];
+            times = new long[values.length];
+            weatherIds = new int[values.length];
+            temps = new int[values.length];
+            humidities = new int[values.length];
+            windSpeeds = new int[values.length];
+            int count = 0;
+            for (ContentValues value : values) {
+                BulkInsertStatement.checkColumns(WeatherContract.HourlyWeatherEntry.TABLE_NAME,
+                        sHourlyWeatherColumnSet, value);
+                Long locationId =
+                        value.getAsLong(WeatherContract.HourlyWeatherEntry.COLUMN_LOC_KEY);
+                Long time = value.getAsLong(WeatherContract.HourlyWeatherEntry.COLUMN_TIME);
+                Integer weatherId =
+                        value.getAsInteger(WeatherContract.HourlyWeatherEntry.COLUMN_WEATHER_ID);
+                Integer temp = value.getAsInteger(WeatherContract.HourlyWeatherEntry.COLUMN_TEMP);
+                Integer humidity =
+                        value.getAsInteger(WeatherContract.HourlyWeatherEntry.COLUMN_HUMIDITY);
+                Integer windSpeed =
+                        value.getAsInteger(WeatherContract.HourlyWeatherEntry.COLUMN_WIND_SPEED);
+                if (locationId == null || time == null || weatherId == null || temp == null
+                        || humidity == null || windSpeed == null) {
+                    continue;
+                }
+                locationIds[count] = locationId;
+                times[count] = time;
+                weatherIds[count] = weatherId;
+                temps[count] = temp;
+                humidities[count] = humidity;
+                windSpeeds[count] = windSpeed;
+                count++;
+            }
+            size = count;
+        }
+    }
+
+    /**
+     * Applies the whole batch in one transaction, so readers see either none of it or all of
+     * it, and notifies observers once it has committed rather than after every operation.
+     *
+     * An insert into {@link WeatherContract.WeatherEntry#CONTENT_URI} that leaves the stored
+     * row as it was gets a result with a count of 0 and no uri; one that inserted or changed
+     * the row gets its uri, as usual.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final PendingNotifications pending = new PendingNotifications();
+        final int count = operations.size();
+        final ContentProviderResult[] results = new ContentProviderResult[count];
+
+        boolean committed = false;
+        // No lock is held: queries read alongside the transaction, and other writers wait for
+        // it in SQLite.
+        mPendingNotifications.set(pending);
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                pending.weatherUnchanged = false;
+                results[i] = operations.get(i).apply(this, results, i);
+                if (pending.weatherUnchanged) {
+                    results[i] = new ContentProviderResult(0);
+                }
+            }
+            db.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            db.endTransaction();
+            mPendingNotifications.remove();
+            if (!committed || pending.locationsChanged) {
+                // A location the batch inserted is gone again, or one it changed may have
+                // been remembered as it was by a query that ran before the batch committed.
+                forgetLocationIds();
+            }
+        }
+
+        if (committed) {
+            WeatherDbHelper.checkpoint(db);
+            weatherChanged(db, pending.weatherChanges);
+            for (Uri uri : pending.collapse()) {
+                getContext().getContentResolver().notifyChange(uri, null);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * The notifications held back by one batch.  Notifying a uri also reaches the observers of
+     * everything under it, so a uri under one already pending is dropped, and several siblings
+     * become one notification of their parent: a forecast rewritten date by date reaches a
+     * CursorLoader on the location as a single change.
+     */
+    private static final class PendingNotifications {
+        private final Set<Uri> mUris = new HashSet<Uri>();
+
+        // Set by insert when a weather row was written back as it was stored.
+        boolean weatherUnchanged;
+
+        // Set when the batch changed or removed locations that may have been remembered.
+        boolean locationsChanged;
+
+        // The weather the batch wrote, for what is held in memory to catch up once it commits.
+        final WeatherChanges weatherChanges = new WeatherChanges();
+
+        void add(Uri uri) {
+            // Observers are matched on the path alone.
+            mUris.add(withPath(uri, uri.getPathSegments()));
+        }
+
+        Set<Uri> collapse() {
+            Set<Uri> uris = new HashSet<Uri>(mUris);
+            boolean merged;
+            do {
+                for (Iterator<Uri> it = uris.iterator(); it.hasNext(); ) {
+                    Uri uri = it.next();
+                    for (Uri other : uris) {
+                        if (isAncestor(other, uri)) {
+                            it.remove();
+                            break;
+                        }
+                    }
+                }
+
+                merged = false;
+                Map<Uri, List<Uri>> byParent = new HashMap<Uri, List<Uri>>();
+                for (Uri uri : uris) {
+                    List<String> segments = uri.getPathSegments();
+                    // Never go up to the authority itself, which would reach every observer.
+                    if (segments.size() < 2) {
+                        continue;
+                    }
+                    Uri parent = withPath(uri, segments.subList(0, segments.size() - 1));
+                    List<Uri> children = byParent.get(parent);
+                    if (children == null) {
+                        children = new ArrayList<Uri>();
+                        byParent.put(parent, children);
+                    }
+                    children.add(uri);
+                }
+                for (Map.Entry<Uri, List<Uri>> entry : byParent.entrySet()) {
+                    if (entry.getValue().size() > 1) {
+                        uris.removeAll(entry.getValue());
+                        uris.add(entry.getKey());
+                        merged = true;
+                    }
+                }
+            } while (merged);
+            return uris;
+        }
+
+        private static Uri withPath(Uri uri, List<String> segments) {
+            Uri.Builder builder = new Uri.Builder()
+                    .scheme(uri.getScheme())
+                    .authority(uri.getAuthority());
+            for (String segment : segments) {
+                builder.appendPath(segment);
+            }
+            return builder.build();
+        }
+
+        private static boolean isAncestor(Uri ancestor, Uri uri) {
+            List<String> ancestorSegments = ancestor.getPathSegments();
+            List<String> segments = uri.getPathSegments();
+            return ancestorSegments.size() < segments.size()
+                    && ancestor.getAuthority().equals(uri.getAuthority())
+                    && segments.subList(0, ancestorSegments.size()).equals(ancestorSegments);
+        }
+    }
+
+    QueryCache getQueryCache() {
+        return mQueryCache;
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
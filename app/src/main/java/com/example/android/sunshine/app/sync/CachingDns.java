@@ -0,0 +1,69 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+
+import com.squareup.okhttp.Dns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers host lookups for longer than the platform does (a couple of seconds), so the
+ * requests of one sync, and of syncs close together, resolve a host once.
+ *
+ * If the resolver fails shortly after an answer expired, the old answer is used instead;
+ * addresses rarely move that quickly, while flaky resolvers on mobile networks are common.
+ */
+class CachingDns implements Dns {
+
+    private static class Entry {
+        final List<InetAddress> addresses;
+        final long expiresAt;
+
+        Entry(List<InetAddress> addresses, long expiresAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Dns mDelegate;
+    private final long mTtlMillis;
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    /**
+     * @param ttlMillis how long an answer is used for.  It is used for as long again if the
+     * resolver fails after that.
+     */
+    CachingDns(Dns delegate, long ttlMillis) {
+        mDelegate = delegate;
+        mTtlMillis = ttlMillis;
+    }
+
+    @Override
+    public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+        long now = SystemClock.elapsedRealtime();
+        Entry entry;
+        synchronized (mEntries) {
+            entry = mEntries.get(hostname);
+        }
+        if (entry != null && now < entry.expiresAt) {
+            return entry.addresses;
+        }
+
+        try {
+            List<InetAddress> addresses = mDelegate.lookup(hostname);
+            synchronized (mEntries) {
+                mEntries.put(hostname, new Entry(addresses, now + mTtlMillis));
+            }
+            return addresses;
+        } catch (UnknownHostException e) {
+            if (entry != null && now < entry.expiresAt + mTtlMillis) {
+                return entry.addresses;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.android.sunshine.app.sync;
+
+import java.net.HttpURLConnection;
+
+/**
+ * Primitive-typed holder for one daily forecast response from OpenWeatherMap.
+ *
+ * Instances are meant to be reused from sync to sync: {@link #reset()} keeps the
+ * already-allocated {@link Day} records around so that parsing a new response does not
+ * allocate a fresh object for every day.
+ */
+public class Forecast {
+
+    // The "cod" member of the response.  Absent on most successful responses.
+    public int code;
+
+    public String cityName;
+    public double cityLatitude;
+    public double cityLongitude;
+
+    // Only the first dayCount entries of days are valid.
+    public Day[] days = new Day[16];
+    public int dayCount;
+
+    public Forecast() {
+        reset();
+    }
+
+    public void reset() {
+        code = HttpURLConnection.HTTP_OK;
+        cityName = null;
+        cityLatitude = 0;
+        cityLongitude = 0;
+        dayCount = 0;
+    }
+
+    /**
+     * Returns the next free day record, growing the backing array if needed.
+     */
+    Day nextDay() {
+        if (dayCount == days.length) {
+            Day[] grown = new Day[days.length * 2];
+            System.arraycopy(days, 0, grown, 0, days.length);
+            days = grown;
+        }
+        Day day = days[dayCount];
+        if (day == null) {
+            day = new Day();
+            days[dayCount] = day;
+        } else {
+            day.reset();
+        }
+        dayCount++;
+        return day;
+    }
+
+    /**
+     * One element of the "list" array.  The date is not part of the payload we use; it is
+     * filled in by the sync adapter from the local Julian day.
+     */
+    public static final class Day {
+        public long date;
+        public double pressure;
+        public int humidity;
+        public double windSpeed;
+        public double windDirection;
+        public double high;
+        public double low;
+        public String description;
+        public int weatherId;
+
+        void reset() {
+            date = 0;
+            pressure = 0;
+            humidity = 0;
+            windSpeed = 0;
+            windDirection = 0;
+            high = 0;
+            low = 0;
+            description = null;
+            weatherId = 0;
+        }
+    }
+}
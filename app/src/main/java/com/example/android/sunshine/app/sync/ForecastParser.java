@@ -0,0 +1,644 @@
+package com.example.android.sunshine.app.sync;
+
+import org.json.JSONException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Pull parser for the OpenWeatherMap daily and 5 day / 3 hour forecast responses.
+ *
+ * Unlike {@link org.json.JSONObject}, this reads the body straight from the stream through
+ * a reused byte buffer and writes each day into a {@link Forecast.Day} record as it goes.
+ * No intermediate String of the response and no object tree are built.  Member names are
+ * compared in place, numbers are decoded from the raw bytes, and the only Strings created are
+ * the city name and the weather descriptions (the latter are recycled when they repeat).
+ *
+ * A parser instance is not thread safe, but it can be reused for any number of responses.
+ */
+public class ForecastParser {
+
+    static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    // These are the names of the JSON members that need to be extracted.
+    private static final String OWM_CITY = "city";
+    private static final String OWM_CITY_NAME = "name";
+    private static final String OWM_COORD = "coord";
+    private static final String OWM_LATITUDE = "lat";
+    private static final String OWM_LONGITUDE = "lon";
+    private static final String OWM_LIST = "list";
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_MAX = "max";
+    private static final String OWM_MIN = "min";
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+    private static final String OWM_MESSAGE_CODE = "cod";
+
+    // Members only found in the 3 hour forecast.
+    private static final String OWM_TIME = "dt";
+    private static final String OWM_MAIN = "main";
+    private static final String OWM_WIND = "wind";
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final byte[] mBuffer;
+    private InputStream mIn;
+    private int mPos;
+    private int mLimit;
+
+    // Scratch space for member names and string values.
+    private char[] mChars = new char[64];
+    private int mCharCount;
+
+    // A handful of recently seen string values; descriptions repeat a lot across days.
+    private final String[] mRecentStrings = new String[8];
+    private int mNextRecentString;
+
+    public ForecastParser() {
+        this(new byte[DEFAULT_BUFFER_SIZE]);
+    }
+
+    public ForecastParser(byte[] buffer) {
+        mBuffer = buffer;
+    }
+
+    /**
+     * Reads one complete response from the stream into the given forecast.
+     *
+     * @param in the response body.  It is not closed.
+     * @param forecast the record to fill.  It is reset first.
+     * @return the forecast passed in.
+     * @throws EOFException if the stream is empty or ends early.
+     * @throws JSONException if the body is not well-formed JSON.
+     */
+    public Forecast parse(InputStream in, Forecast forecast) throws IOException, JSONException {
+        mIn = in;
+        mPos = 0;
+        mLimit = 0;
+        forecast.reset();
+        try {
+            int c = nextNonWhitespace();
+            if (c == -1) {
+                throw new EOFException("Empty forecast response");
+            }
+            if (c != '{') {
+                throw syntaxError("Expected object");
+            }
+            while (hasNextMember()) {
+                if (nameIs(OWM_MESSAGE_CODE)) {
+                    forecast.code = (int) readDouble();
+                } else if (nameIs(OWM_CITY)) {
+                    parseCity(forecast);
+                } else if (nameIs(OWM_LIST)) {
+                    parseList(forecast);
+                } else {
+                    skipValue();
+                }
+            }
+        } finally {
+            mIn = null;
+        }
+        return forecast;
+    }
+
+    /**
+     * Reads one complete 5 day / 3 hour forecast response from the stream.
+     *
+     * @param in the response body.  It is not closed.
+     * @param forecast the record to fill.  It is reset first.
+     * @return the forecast passed in.
+     * @throws EOFException if the stream is empty or ends early.
+     * @throws JSONException if the body is not well-formed JSON.
+     */
+    public HourlyForecast parseHourly(InputStream in, HourlyForecast forecast)
+            throws IOException, JSONException {
+        mIn = in;
+        mPos = 0;
+        mLimit = 0;
+        forecast.reset();
+        try {
+            int c = nextNonWhitespace();
+            if (c == -1) {
+                throw new EOFException("Empty forecast response");
+            }
+            if (c != '{') {
+                throw syntaxError("Expected object");
+            }
+            while (hasNextMember()) {
+                if (nameIs(OWM_MESSAGE_CODE)) {
+                    forecast.code = (int) readDouble();
+                } else if (nameIs(OWM_CITY)) {
+                    parseHourlyCity(forecast);
+                } else if (nameIs(OWM_LIST)) {
+                    parseHourlyList(forecast);
+                } else {
+                    skipValue();
+                }
+            }
+        } finally {
+            mIn = null;
+        }
+        return forecast;
+    }
+
+    private void parseCity(Forecast forecast) throws IOException, JSONException {
+        beginObject();
+        while (hasNextMember()) {
+            if (nameIs(OWM_CITY_NAME)) {
+                forecast.cityName = readString();
+            } else if (nameIs(OWM_COORD)) {
+                beginObject();
+                while (hasNextMember()) {
+                    if (nameIs(OWM_LATITUDE)) {
+                        forecast.cityLatitude = readDouble();
+                    } else if (nameIs(OWM_LONGITUDE)) {
+                        forecast.cityLongitude = readDouble();
+                    } else {
+                        skipValue();
+                    }
+                }
+            } else {
+                skipValue();
+            }
+        }
+    }
+
+    private void parseList(Forecast forecast) throws IOException, JSONException {
+        beginArray();
+        while (hasNextElement()) {
+            Forecast.Day day = forecast.nextDay();
+            beginObject();
+            while (hasNextMember()) {
+                if (nameIs(OWM_PRESSURE)) {
+                    day.pressure = readDouble();
+                } else if (nameIs(OWM_HUMIDITY)) {
+                    day.humidity = (int) readDouble();
+                } else if (nameIs(OWM_WINDSPEED)) {
+                    day.windSpeed = readDouble();
+                } else if (nameIs(OWM_WIND_DIRECTION)) {
+                    day.windDirection = readDouble();
+                } else if (nameIs(OWM_TEMPERATURE)) {
+                    beginObject();
+                    while (hasNextMember()) {
+                        if (nameIs(OWM_MAX)) {
+                            day.high = readDouble();
+                        } else if (nameIs(OWM_MIN)) {
+                            day.low = readDouble();
+                        } else {
+                            skipValue();
+                        }
+                    }
+                } else if (nameIs(OWM_WEATHER)) {
+                    // Description is in a child array called "weather", which is 1 element long.
+                    // That element also contains a weather code.
+                    beginArray();
+                    boolean first = true;
+                    while (hasNextElement()) {
+                        if (!first) {
+                            skipValue();
+                            continue;
+                        }
+                        first = false;
+                        beginObject();
+                        while (hasNextMember()) {
+                            if (nameIs(OWM_DESCRIPTION)) {
+                                day.description = readString();
+                            } else if (nameIs(OWM_WEATHER_ID)) {
+                                day.weatherId = (int) readDouble();
+                            } else {
+                                skipValue();
+                            }
+                        }
+                    }
+                } else {
+                    skipValue();
+                }
+            }
+        }
+    }
+
+    private void parseHourlyCity(HourlyForecast forecast) throws IOException, JSONException {
+        beginObject();
+        while (hasNextMember()) {
+            if (nameIs(OWM_CITY_NAME)) {
+                forecast.cityName = readString();
+            } else if (nameIs(OWM_COORD)) {
+                beginObject();
+                while (hasNextMember()) {
+                    if (nameIs(OWM_LATITUDE)) {
+                        forecast.cityLatitude = readDouble();
+                    } else if (nameIs(OWM_LONGITUDE)) {
+                        forecast.cityLongitude = readDouble();
+                    } else {
+                        skipValue();
+                    }
+                }
+            } else {
+                skipValue();
+            }
+        }
+    }
+
+    private void parseHourlyList(HourlyForecast forecast) throws IOException, JSONException {
+        beginArray();
+        while (hasNextElement()) {
+            HourlyForecast.Hour hour = forecast.nextHour();
+            beginObject();
+            while (hasNextMember()) {
+                if (nameIs(OWM_TIME)) {
+                    hour.time = (long) readDouble();
+                } else if (nameIs(OWM_MAIN)) {
+                    beginObject();
+                    while (hasNextMember()) {
+                        if (nameIs(OWM_TEMPERATURE)) {
+                            hour.temperature = readDouble();
+                        } else if (nameIs(OWM_HUMIDITY)) {
+                            hour.humidity = (int) readDouble();
+                        } else {
+                            skipValue();
+                        }
+                    }
+                } else if (nameIs(OWM_WIND)) {
+                    beginObject();
+                    while (hasNextMember()) {
+                        if (nameIs(OWM_WINDSPEED)) {
+                            hour.windSpeed = readDouble();
+                        } else {
+                            skipValue();
+                        }
+                    }
+                } else if (nameIs(OWM_WEATHER)) {
+                    // Only the first element's weather code is used.
+                    beginArray();
+                    boolean first = true;
+                    while (hasNextElement()) {
+                        if (!first) {
+                            skipValue();
+                            continue;
+                        }
+                        first = false;
+                        beginObject();
+                        while (hasNextMember()) {
+                            if (nameIs(OWM_WEATHER_ID)) {
+                                hour.weatherId = (int) readDouble();
+                            } else {
+                                skipValue();
+                            }
+                        }
+                    }
+                } else {
+                    skipValue();
+                }
+            }
+        }
+    }
+
+    private void beginObject() throws IOException, JSONException {
+        if (nextNonWhitespace() != '{') {
+            throw syntaxError("Expected object");
+        }
+    }
+
+    private void beginArray() throws IOException, JSONException {
+        if (nextNonWhitespace() != '[') {
+            throw syntaxError("Expected array");
+        }
+    }
+
+    /**
+     * Moves to the next member of the current object, leaving its name in the scratch buffer.
+     * Returns false, having consumed the closing brace, when the object is exhausted.
+     */
+    private boolean hasNextMember() throws IOException, JSONException {
+        int c = nextNonWhitespace();
+        if (c == '}') {
+            return false;
+        }
+        if (c == ',') {
+            c = nextNonWhitespace();
+        }
+        if (c == -1) {
+            throw new EOFException("Unterminated object");
+        }
+        if (c != '"') {
+            throw syntaxError("Expected name");
+        }
+        readChars();
+        if (nextNonWhitespace() != ':') {
+            throw syntaxError("Expected ':'");
+        }
+        return true;
+    }
+
+    /**
+     * Moves to the next element of the current array.  Returns false, having consumed the
+     * closing bracket, when the array is exhausted.
+     */
+    private boolean hasNextElement() throws IOException, JSONException {
+        int c = nextNonWhitespace();
+        if (c == ']') {
+            return false;
+        }
+        if (c == -1) {
+            throw new EOFException("Unterminated array");
+        }
+        if (c != ',') {
+            mPos--;
+        }
+        return true;
+    }
+
+    private boolean nameIs(String name) {
+        int length = name.length();
+        if (length != mCharCount) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (mChars[i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readString() throws IOException, JSONException {
+        int c = nextNonWhitespace();
+        if (c == 'n') {
+            skipLiteral();
+            return null;
+        }
+        if (c != '"') {
+            throw syntaxError("Expected string");
+        }
+        readChars();
+        for (String recent : mRecentStrings) {
+            if (recent != null && nameIs(recent)) {
+                return recent;
+            }
+        }
+        String value = new String(mChars, 0, mCharCount);
+        mRecentStrings[mNextRecentString] = value;
+        mNextRecentString = (mNextRecentString + 1) % mRecentStrings.length;
+        return value;
+    }
+
+    /**
+     * Reads the body of a string whose opening quote has been consumed into the scratch
+     * buffer, decoding escapes and UTF-8.
+     */
+    private void readChars() throws IOException, JSONException {
+        mCharCount = 0;
+        while (true) {
+            int c = read();
+            if (c == '"') {
+                return;
+            }
+            if (c == -1) {
+                throw new EOFException("Unterminated string");
+            }
+            if (c == '\\') {
+                c = read();
+                switch (c) {
+                    case 'b': c = '\b'; break;
+                    case 'f': c = '\f'; break;
+                    case 'n': c = '\n'; break;
+                    case 'r': c = '\r'; break;
+                    case 't': c = '\t'; break;
+                    case 'u': {
+                        int value = 0;
+                        for (int i = 0; i < 4; i++) {
+                            value = (value << 4) | hexValue(read());
+                        }
+                        c = value;
+                        break;
+                    }
+                    case -1:
+                        throw new EOFException("Unterminated escape");
+                    default:
+                        // '"', '\\' and '/' stand for themselves
+                        break;
+                }
+            } else if (c >= 0x80) {
+                c = readUtf8(c);
+                if (c > 0xFFFF) {
+                    // Outside the BMP: emit a surrogate pair.
+                    c -= 0x10000;
+                    appendChar((char) (0xD800 + (c >> 10)));
+                    c = 0xDC00 + (c & 0x3FF);
+                }
+            }
+            appendChar((char) c);
+        }
+    }
+
+    private int readUtf8(int lead) throws IOException, JSONException {
+        int extra;
+        int value;
+        if ((lead & 0xE0) == 0xC0) {
+            extra = 1;
+            value = lead & 0x1F;
+        } else if ((lead & 0xF0) == 0xE0) {
+            extra = 2;
+            value = lead & 0x0F;
+        } else if ((lead & 0xF8) == 0xF0) {
+            extra = 3;
+            value = lead & 0x07;
+        } else {
+            throw syntaxError("Malformed UTF-8");
+        }
+        for (int i = 0; i < extra; i++) {
+            int c = read();
+            if ((c & 0xC0) != 0x80) {
+                throw syntaxError("Malformed UTF-8");
+            }
+            value = (value << 6) | (c & 0x3F);
+        }
+        return value;
+    }
+
+    private void appendChar(char c) {
+        if (mCharCount == mChars.length) {
+            char[] grown = new char[mChars.length * 2];
+            System.arraycopy(mChars, 0, grown, 0, mCharCount);
+            mChars = grown;
+        }
+        mChars[mCharCount++] = c;
+    }
+
+    /**
+     * Reads a number without going through a String.  OpenWeatherMap sometimes quotes numbers
+     * (the "cod" member in particular), so quoted numbers are accepted as well.  A null
+     * value reads as 0.
+     */
+    private double readDouble() throws IOException, JSONException {
+        int c = nextNonWhitespace();
+        boolean quoted = c == '"';
+        if (quoted) {
+            c = read();
+        } else if (c == 'n') {
+            skipLiteral();
+            return 0;
+        }
+
+        boolean negative = false;
+        if (c == '-') {
+            negative = true;
+            c = read();
+        }
+        if (c < '0' || c > '9') {
+            throw syntaxError("Expected number");
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        while (c >= '0' && c <= '9') {
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0) digits++;
+            } else {
+                exponent++;
+            }
+            c = read();
+        }
+        if (c == '.') {
+            c = read();
+            while (c >= '0' && c <= '9') {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (mantissa != 0) digits++;
+                    exponent--;
+                }
+                c = read();
+            }
+        }
+        if (c == 'e' || c == 'E') {
+            c = read();
+            boolean negativeExponent = false;
+            if (c == '-' || c == '+') {
+                negativeExponent = c == '-';
+                c = read();
+            }
+            int value = 0;
+            while (c >= '0' && c <= '9') {
+                if (value < 10000) value = value * 10 + (c - '0');
+                c = read();
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+
+        if (quoted) {
+            if (c != '"') {
+                throw syntaxError("Expected number");
+            }
+        } else if (c != -1) {
+            mPos--;
+        }
+
+        double result = mantissa;
+        if (exponent > 0) {
+            result *= exponent < POWERS_OF_TEN.length
+                    ? POWERS_OF_TEN[exponent] : Math.pow(10, exponent);
+        } else if (exponent < 0) {
+            result /= -exponent < POWERS_OF_TEN.length
+                    ? POWERS_OF_TEN[-exponent] : Math.pow(10, -exponent);
+        }
+        return negative ? -result : result;
+    }
+
+    private void skipValue() throws IOException, JSONException {
+        int c = nextNonWhitespace();
+        switch (c) {
+            case '{':
+                while (hasNextMember()) {
+                    skipValue();
+                }
+                break;
+            case '[':
+                while (hasNextElement()) {
+                    skipValue();
+                }
+                break;
+            case '"':
+                skipString();
+                break;
+            case 't':
+            case 'f':
+            case 'n':
+                skipLiteral();
+                break;
+            case -1:
+                throw new EOFException("Expected value");
+            default:
+                mPos--;
+                readDouble();
+                break;
+        }
+    }
+
+    private void skipString() throws IOException {
+        while (true) {
+            int c = read();
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                c = read();
+            }
+            if (c == -1) {
+                throw new EOFException("Unterminated string");
+            }
+        }
+    }
+
+    // Skips the rest of true, false or null; the first letter has been consumed.
+    private void skipLiteral() throws IOException {
+        int c;
+        while ((c = read()) >= 'a' && c <= 'z') {
+            // keep going
+        }
+        if (c != -1) {
+            mPos--;
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+        return c;
+    }
+
+    private int read() throws IOException {
+        if (mPos == mLimit) {
+            int count = mIn.read(mBuffer, 0, mBuffer.length);
+            if (count <= 0) {
+                return -1;
+            }
+            mPos = 0;
+            mLimit = count;
+        }
+        return mBuffer[mPos++] & 0xFF;
+    }
+
+    private static int hexValue(int c) throws JSONException {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        throw new JSONException("Invalid escape");
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " in forecast response");
+    }
+}
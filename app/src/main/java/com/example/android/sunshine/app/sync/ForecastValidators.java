@@ -0,0 +1,140 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * HTTP cache validators remembered for the last forecast stored for one location.
+ *
+ * The ETag and Last-Modified headers are sent back on the next request so the server can
+ * answer 304 Not Modified.  OpenWeatherMap does not always send them, so a hash of the body is
+ * kept as well; a body identical to the one already stored is treated the same way.
+ *
+ * Our rows are dated from the local Julian day the forecast was stored on, not from the
+ * payload, so validators are only honoured on the day they were saved.
+ *
+ * They are kept under the location's key (see {@link SyncTarget#getLocationKey}), so every
+ * setting that finds the same stored location shares them.
+ */
+class ForecastValidators {
+
+    static final String PREFS_NAME = "forecast_validators";
+
+    private static final String KEY_ETAG = "etag:";
+    private static final String KEY_LAST_MODIFIED = "last_modified:";
+    private static final String KEY_BODY_HASH = "body_hash:";
+    private static final String KEY_JULIAN_DAY = "julian_day:";
+    private static final String KEY_LAST_SYNCED = "last_synced:";
+
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private static final String HASH_ALGORITHM = "SHA-1";
+
+    final String locationKey;
+    String etag;
+    String lastModified;
+    String bodyHash;
+    int julianDay;
+    // Wall clock time of the last sync that left the location up to date, or 0 if never.
+    long lastSynced;
+
+    private ForecastValidators(String locationKey) {
+        this.locationKey = locationKey;
+    }
+
+    static ForecastValidators load(Context context, String locationKey) {
+        SharedPreferences prefs = getPreferences(context);
+        ForecastValidators validators = new ForecastValidators(locationKey);
+        validators.etag = prefs.getString(KEY_ETAG + locationKey, null);
+        validators.lastModified = prefs.getString(KEY_LAST_MODIFIED + locationKey, null);
+        validators.bodyHash = prefs.getString(KEY_BODY_HASH + locationKey, null);
+        validators.julianDay = prefs.getInt(KEY_JULIAN_DAY + locationKey, 0);
+        validators.lastSynced = prefs.getLong(KEY_LAST_SYNCED + locationKey, 0);
+        return validators;
+    }
+
+    /**
+     * @return true if these validators describe what is stored for the given day.
+     */
+    boolean isValidFor(int julianStartDay) {
+        return julianDay == julianStartDay
+                && (etag != null || lastModified != null || bodyHash != null);
+    }
+
+    void addRequestHeaders(HttpURLConnection urlConnection) {
+        if (etag != null) {
+            urlConnection.setRequestProperty(HEADER_IF_NONE_MATCH, etag);
+        }
+        if (lastModified != null) {
+            urlConnection.setRequestProperty(HEADER_IF_MODIFIED_SINCE, lastModified);
+        }
+    }
+
+    boolean matchesBody(String hash) {
+        return bodyHash != null && bodyHash.equals(hash);
+    }
+
+    /**
+     * Remembers the validators of a response that has just been stored, or found to match
+     * what is stored.  This function should not be called from the UI thread because it uses
+     * commit to write to the shared preferences.
+     */
+    void save(Context context, HttpURLConnection urlConnection, String hash, int julianStartDay) {
+        etag = urlConnection.getHeaderField(HEADER_ETAG);
+        lastModified = urlConnection.getHeaderField(HEADER_LAST_MODIFIED);
+        bodyHash = hash;
+        julianDay = julianStartDay;
+        lastSynced = System.currentTimeMillis();
+
+        SharedPreferences.Editor editor = getPreferences(context).edit();
+        putOrRemove(editor, KEY_ETAG + locationKey, etag);
+        putOrRemove(editor, KEY_LAST_MODIFIED + locationKey, lastModified);
+        putOrRemove(editor, KEY_BODY_HASH + locationKey, bodyHash);
+        editor.putInt(KEY_JULIAN_DAY + locationKey, julianDay);
+        editor.putLong(KEY_LAST_SYNCED + locationKey, lastSynced);
+        editor.commit();
+    }
+
+    /**
+     * Records that the stored forecast was confirmed current without being rewritten.
+     */
+    void markSynced(Context context) {
+        lastSynced = System.currentTimeMillis();
+        getPreferences(context).edit()
+                .putLong(KEY_LAST_SYNCED + locationKey, lastSynced)
+                .commit();
+    }
+
+    static MessageDigest newBodyDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android runtime ships SHA-1.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHash(MessageDigest digest) {
+        return Base64.encodeToString(digest.digest(), Base64.NO_WRAP);
+    }
+
+    private static void putOrRemove(SharedPreferences.Editor editor, String key, String value) {
+        if (value != null) {
+            editor.putString(key, value);
+        } else {
+            editor.remove(key);
+        }
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.android.sunshine.app.sync;
+
+import java.net.HttpURLConnection;
+
+/**
+ * Primitive-typed holder for one 5 day / 3 hour forecast response from OpenWeatherMap.
+ *
+ * Like {@link Forecast}, instances are meant to be reused from sync to sync, keeping their
+ * {@link Hour} records.
+ */
+public class HourlyForecast {
+
+    // The "cod" member of the response.
+    public int code;
+
+    public String cityName;
+    public double cityLatitude;
+    public double cityLongitude;
+
+    // Only the first hourCount entries of hours are valid.
+    public Hour[] hours = new Hour[40];
+    public int hourCount;
+
+    public HourlyForecast() {
+        reset();
+    }
+
+    public void reset() {
+        code = HttpURLConnection.HTTP_OK;
+        cityName = null;
+        cityLatitude = 0;
+        cityLongitude = 0;
+        hourCount = 0;
+    }
+
+    /**
+     * Returns the next free hour record, growing the backing array if needed.
+     */
+    Hour nextHour() {
+        if (hourCount == hours.length) {
+            Hour[] grown = new Hour[hours.length * 2];
+            System.arraycopy(hours, 0, grown, 0, hours.length);
+            hours = grown;
+        }
+        Hour hour = hours[hourCount];
+        if (hour == null) {
+            hour = new Hour();
+            hours[hourCount] = hour;
+        } else {
+            hour.reset();
+        }
+        hourCount++;
+        return hour;
+    }
+
+    /**
+     * One element of the "list" array: the forecast for the three hours from its time.
+     */
+    public static final class Hour {
+        // Seconds since the epoch, as sent.
+        public long time;
+        public double temperature;
+        public int humidity;
+        public double windSpeed;
+        public int weatherId;
+
+        void reset() {
+            time = 0;
+            temperature = 0;
+            humidity = 0;
+            windSpeed = 0;
+            weatherId = 0;
+        }
+    }
+}
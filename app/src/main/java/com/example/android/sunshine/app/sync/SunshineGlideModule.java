@@ -0,0 +1,30 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.GlideBuilder;
+import com.bumptech.glide.integration.okhttp.OkHttpUrlLoader;
+import com.bumptech.glide.load.model.GlideUrl;
+import com.bumptech.glide.module.GlideModule;
+
+import java.io.InputStream;
+
+/**
+ * Makes Glide download the weather art through {@link SyncHttpClient}, so images share its
+ * connection pool, host lookups and timeouts with the forecast requests.  Registered in the
+ * manifest.
+ */
+public class SunshineGlideModule implements GlideModule {
+
+    @Override
+    public void applyOptions(Context context, GlideBuilder builder) {
+        // the defaults are fine
+    }
+
+    @Override
+    public void registerComponents(Context context, Glide glide) {
+        glide.register(GlideUrl.class, InputStream.class,
+                new OkHttpUrlLoader.Factory(SyncHttpClient.getInstance().getOkHttpClient()));
+    }
+}
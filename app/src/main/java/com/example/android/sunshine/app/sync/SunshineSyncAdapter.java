@@ -7,21 +7,27 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.SyncRequest;
 import android.content.SyncResult;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
 import android.support.v4.app.NotificationCompat;
@@ -30,51 +36,80 @@ import android.text.format.Time;
 import android.util.Log;
 
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.engine.DiskCacheStrategy;
 import com.example.android.sunshine.app.BuildConfig;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.ResultCallback;
-import com.google.android.gms.wearable.DataApi;
-import com.google.android.gms.wearable.PutDataMapRequest;
-import com.google.android.gms.wearable.PutDataRequest;
-import com.google.android.gms.wearable.Wearable;
-
-import org.json.JSONArray;
+
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.UUID;
-import java.util.Vector;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
     public static final String ACTION_DATA_UPDATED =
             "com.example.android.sunshine.app.ACTION_DATA_UPDATED";
-    // Interval at which to sync with the weather, in seconds.
+    // Interval at which to sync with the weather, in seconds, until SyncScheduler has seen
+    // enough syncs to pick a better one.
     // 60 seconds (1 minute) * 180 = 3 hours
     public static final int SYNC_INTERVAL = 60 * 180;
-    public static final int SYNC_FLEXTIME = SYNC_INTERVAL/3;
     private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
     private static final int WEATHER_NOTIFICATION_ID = 3004;
 
-    private static final String WEATHER_INFO_PATH = "/weather-info";
-    private static final String KEY_UUID = "uuid";
-    private static final String KEY_HIGH = "high";
-    private static final String KEY_LOW = "low";
-    private static final String KEY_WEATHER_ID = "weatherId";
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String ENCODING_GZIP = "gzip";
+    private static final int GZIP_BUFFER_SIZE = 4 * 1024;
+
+    // Bounds for refreshing every saved location in one sync.
+    private static final int MAX_PARALLEL_LOCATION_SYNCS = 3;
+    private static final long ALL_LOCATIONS_TIME_BUDGET_MILLIS = 60 * 1000;
+
+    // What a single location's sync came to.  These are stored in the sync history as they are.
+    private static final int SYNC_CHANGED = WeatherContract.SyncHistoryEntry.OUTCOME_CHANGED;
+    private static final int SYNC_UNCHANGED = WeatherContract.SyncHistoryEntry.OUTCOME_UNCHANGED;
+    // The network or the server let us down; worth trying again later.
+    private static final int SYNC_FAILED = WeatherContract.SyncHistoryEntry.OUTCOME_FAILED;
+    // The response made no sense; trying again won't help.
+    private static final int SYNC_INVALID_RESPONSE =
+            WeatherContract.SyncHistoryEntry.OUTCOME_INVALID_RESPONSE;
+    // OpenWeatherMap doesn't know the location.
+    private static final int SYNC_INVALID_LOCATION =
+            WeatherContract.SyncHistoryEntry.OUTCOME_INVALID_LOCATION;
+    // Stopped part way; nothing is known about the server or the location.
+    private static final int SYNC_CANCELED = WeatherContract.SyncHistoryEntry.OUTCOME_CANCELED;
+
+    private static final int FORECAST_DAY_COUNT = 14;
+    // 5 days of 3 hour periods.
+    private static final int HOURLY_FORECAST_COUNT = 40;
+
+    // How long each fan-out consumer may run before it is cancelled.
+    private static final long WIDGETS_TIMEOUT_MILLIS = 5 * 1000;
+    private static final long MUZEI_TIMEOUT_MILLIS = 5 * 1000;
+    private static final long NOTIFICATION_TIMEOUT_MILLIS = 20 * 1000;
+    private static final long WEARABLE_TIMEOUT_MILLIS = 15 * 1000;
+    private static final long ART_PREFETCH_TIMEOUT_MILLIS = 30 * 1000;
+    private static final int MAX_CONCURRENT_CONSUMERS = 5;
 
     private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
             WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
@@ -89,6 +124,19 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     private static final int INDEX_MIN_TEMP = 2;
     private static final int INDEX_SHORT_DESC = 3;
 
+    private static final String[] SAVED_LOCATION_PROJECTION = new String[] {
+            WeatherContract.LocationEntry._ID,
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_LOCATION_ID = 0;
+    private static final int INDEX_LOCATION_SETTING = 1;
+    private static final int INDEX_COORD_LAT = 2;
+    private static final int INDEX_COORD_LONG = 3;
+
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID,  LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID})
     public @interface LocationStatus {}
@@ -98,16 +146,57 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public static final int LOCATION_STATUS_SERVER_INVALID = 2;
     public static final int LOCATION_STATUS_UNKNOWN = 3;
     public static final int LOCATION_STATUS_INVALID = 4;
-    // Added for Android Wearable synchronization
-    private GoogleApiClient mGoogleApiClient;
+    // Syncs run one at a time on this adapter, so the parser and its buffer, as well as the
+    // day records it fills, are reused from one sync to the next by the sync thread.  Worker
+    // threads syncing other saved locations get their own.
+    private final ForecastParser mForecastParser = new ForecastParser();
+    private final Forecast mForecast = new Forecast();
+    private final HourlyForecast mHourlyForecast = new HourlyForecast();
+
+    // Where forecasts are requested from.  Builds can be pointed at the stand-in server with
+    // -PforecastBaseUrl, and tests point this at their own local server.
+    private String mForecastBaseUrl = BuildConfig.FORECAST_BASE_URL;
+    private String mHourlyForecastBaseUrl = toHourlyForecastUrl(BuildConfig.FORECAST_BASE_URL);
+
+    // Everything that is refreshed once the preferred location's forecast has changed.
+    private final SyncFanOut mFanOut = new SyncFanOut(MAX_CONCURRENT_CONSUMERS);
+
+    // The running sync's, for onSyncCanceled to reach from SyncManager's thread.
+    private volatile SyncCancellation mCancellation;
 
     public SunshineSyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
-        if (mGoogleApiClient == null) {
-            mGoogleApiClient = new GoogleApiClient.Builder(context)
-                    .addApi(Wearable.API)
-                    .build();
-        }
+
+        mFanOut.register(new SyncFanOut.Consumer("Widgets", WIDGETS_TIMEOUT_MILLIS) {
+            @Override
+            void onForecastChanged(String locationSetting) {
+                updateWidgets();
+            }
+        });
+        mFanOut.register(new SyncFanOut.Consumer("Muzei", MUZEI_TIMEOUT_MILLIS) {
+            @Override
+            void onForecastChanged(String locationSetting) {
+                updateMuzei();
+            }
+        });
+        mFanOut.register(new SyncFanOut.Consumer("Notification", NOTIFICATION_TIMEOUT_MILLIS) {
+            @Override
+            void onForecastChanged(String locationSetting) {
+                notifyWeather();
+            }
+        });
+        mFanOut.register(new SyncFanOut.Consumer("Wearable", WEARABLE_TIMEOUT_MILLIS) {
+            @Override
+            void onForecastChanged(String locationSetting) {
+                WearablePublisher.getInstance(getContext()).publish(locationSetting, false);
+            }
+        });
+        mFanOut.register(new SyncFanOut.Consumer("Art prefetch", ART_PREFETCH_TIMEOUT_MILLIS) {
+            @Override
+            void onForecastChanged(String locationSetting) throws InterruptedException {
+                WeatherArtPrefetcher.prefetch(getContext(), locationSetting);
+            }
+        });
     }
 
     @Override
@@ -117,323 +206,776 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         // We no longer need just the location String, but also potentially the latitude and
         // longitude, in case we are syncing based on a new Place Picker API result.
         Context context = getContext();
-        String locationQuery = Utility.getPreferredLocation(context);
-        String locationLatitude = String.valueOf(Utility.getLocationLatitude(context));
-        String locationLongitude = String.valueOf(Utility.getLocationLongitude(context));
-
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
-
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
-
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
+        SyncTarget preferred = SyncTarget.forPreferredLocation(context);
+
+        // A sync the user asked for goes ahead anyway, and counts as the trial attempt if the
+        // circuit is open.
+        SyncRetryPolicy retryPolicy = SyncRetryPolicy.load(context);
+        boolean manual = extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false);
+        if (!manual && !retryPolicy.allowsAttempt(System.currentTimeMillis())) {
+            Log.d(LOG_TAG, (retryPolicy.isCircuitOpen() ? "Circuit open" : "Backing off")
+                    + ", skipping sync");
+            syncResult.delayUntil = retryPolicy.nextAttemptAt / 1000;
+            return;
+        }
 
+        // Requests for this location that arrive while we work are covered by this sync.
+        SyncCoalescer.onSyncStarted(preferred.locationKey);
+        SyncMetrics preferredMetrics =
+                new SyncMetrics(preferred.locationSetting, System.currentTimeMillis());
+        SyncCancellation cancellation = new SyncCancellation();
+        mCancellation = cancellation;
+        int preferredOutcome;
         try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String LAT_PARAM = "lat";
-            final String LON_PARAM = "lon";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
-
-            Uri.Builder uriBuilder = Uri.parse(FORECAST_BASE_URL).buildUpon();
-
-            // Instead of always building the query based off of the location string, we want to
-            // potentially build a query using a lat/lon value. This will be the case when we are
-            // syncing based off of a new location from the Place Picker API. So we need to check
-            // if we have a lat/lon to work with, and use those when we do. Otherwise, the weather
-            // service may not understand the location address provided by the Place Picker API
-            // and the user could end up with no weather! The horror!
-            if (Utility.isLocationLatLonAvailable(context)) {
-                uriBuilder.appendQueryParameter(LAT_PARAM, locationLatitude)
-                        .appendQueryParameter(LON_PARAM, locationLongitude);
+            if (Utility.isSyncAllLocationsEnabled(context)) {
+                preferredOutcome = syncAllLocations(preferred, preferredMetrics, syncResult,
+                        cancellation);
             } else {
-                uriBuilder.appendQueryParameter(QUERY_PARAM, locationQuery);
+                preferredOutcome = syncLocation(preferred, mForecastParser, mForecast,
+                        mHourlyForecast, preferredMetrics, cancellation);
+                recordOutcome(syncResult, preferredOutcome);
             }
+        } finally {
+            mCancellation = null;
+            SyncCoalescer.onSyncFinished(preferred.locationKey);
+        }
 
-            Uri builtUri = uriBuilder.appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
-                    .build();
+        if (preferredOutcome == SYNC_CANCELED) {
+            // Says nothing about the server, and whatever replaced this sync does the rest.
+            Log.d(LOG_TAG, "Sync canceled");
+            return;
+        }
 
-            URL url = new URL(builtUri.toString());
+        // The preferred location is synced every time, so it is what tells us whether the
+        // server is reachable.
+        if (preferredOutcome == SYNC_FAILED) {
+            long nextAttemptAt = retryPolicy.onFailure(context, System.currentTimeMillis());
+            // The soft error makes SyncManager retry; this keeps it from doing so too early.
+            syncResult.delayUntil = nextAttemptAt / 1000;
+        } else {
+            retryPolicy.onSuccess(context);
+        }
 
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
+        // Everything outside the app only shows the preferred location.  The consumers run on
+        // their own threads, so this sync is done as soon as they are handed the change.
+        if (preferredOutcome == SYNC_CHANGED) {
+            mFanOut.dispatch(preferred.locationSetting,
+                    newFanOutHistoryListener(preferredMetrics.historyUri));
+        }
 
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
-            }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
+        SyncScheduler.reschedule(context);
+    }
 
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
-            }
+    /**
+     * Called by SyncManager on its own thread when the running sync is no longer wanted.  The
+     * sync stops at its next checkpoint, or as soon as a blocked read fails, and leaves the
+     * database as it was before the stage it was in.
+     */
+    @Override
+    public void onSyncCanceled() {
+        SyncCancellation cancellation = mCancellation;
+        if (cancellation != null) {
+            cancellation.cancel();
+        }
+        super.onSyncCanceled();
+    }
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
+    /**
+     * Refreshes every location saved in the location table.  The preferred location is synced
+     * on the calling thread while the others go through a small worker pool, stalest first, so
+     * the locations that need it most get fresh data first.  Whatever has not started when the
+     * time budget runs out is left for the next sync.
+     *
+     * OpenWeatherMap's group endpoint only serves current conditions, not daily forecasts, so
+     * each location is still fetched with its own request.
+     *
+     * @param preferredMetrics filled in with the cost of the preferred location's sync.
+     * @return the outcome of the preferred location's sync.
+     */
+    private int syncAllLocations(SyncTarget preferred, SyncMetrics preferredMetrics,
+                                 final SyncResult syncResult,
+                                 final SyncCancellation cancellation) {
+        final long deadline = SystemClock.elapsedRealtime() + ALL_LOCATIONS_TIME_BUDGET_MILLIS;
+        List<SyncTarget> others = getSavedLocationsByStaleness(preferred.locationId);
+
+        ExecutorService executor = null;
+        if (!others.isEmpty()) {
+            executor = Executors.newFixedThreadPool(
+                    Math.min(MAX_PARALLEL_LOCATION_SYNCS, others.size()));
+            for (final SyncTarget target : others) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (SystemClock.elapsedRealtime() >= deadline
+                                || cancellation.isCanceled()) {
+                            Log.d(LOG_TAG, "Out of time, or canceled, skipping "
+                                    + target.locationSetting);
+                            return;
+                        }
+                        SyncMetrics metrics = new SyncMetrics(target.locationSetting,
+                                System.currentTimeMillis());
+                        recordOutcome(syncResult, syncLocation(target, new ForecastParser(),
+                                new Forecast(), new HourlyForecast(), metrics, cancellation));
+                    }
+                });
             }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Error ", e);
-            // If the code didn't successfully get the weather data, there's no point in attempting
-            // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+            executor.shutdown();
+        }
+
+        int preferredOutcome = syncLocation(preferred, mForecastParser, mForecast,
+                mHourlyForecast, preferredMetrics, cancellation);
+        recordOutcome(syncResult, preferredOutcome);
+
+        if (executor != null) {
+            if (cancellation.isCanceled()) {
+                // The workers' connections are already closed; no need to wait for them.
+                executor.shutdownNow();
+                return preferredOutcome;
             }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
+            try {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0
+                        || !executor.awaitTermination(remaining, TimeUnit.MILLISECONDS)) {
+                    Log.d(LOG_TAG, "Location sync time budget used up");
+                    executor.shutdownNow();
                 }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
             }
         }
-        return;
+        return preferredOutcome;
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
-     *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * Adds a location's outcome to the sync's stats, which is how SyncManager decides whether
+     * and when to retry.  Safe to call from the location worker threads.
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
-
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
-
-        // These are the names of the JSON objects that need to be extracted.
-
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
-
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
+    private static void recordOutcome(SyncResult syncResult, int outcome) {
+        synchronized (syncResult) {
+            switch (outcome) {
+                case SYNC_FAILED:
+                    syncResult.stats.numIoExceptions++;
+                    break;
+                case SYNC_INVALID_RESPONSE:
+                    syncResult.stats.numParseExceptions++;
+                    break;
+                case SYNC_INVALID_LOCATION:
+                    syncResult.stats.numSkippedEntries++;
+                    break;
+            }
+        }
+    }
 
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
+    /**
+     * @return the saved locations other than the given one, the ones synced longest ago first.
+     */
+    private List<SyncTarget> getSavedLocationsByStaleness(long excludedLocationId) {
+        final Context context = getContext();
+        List<SyncTarget> targets = new ArrayList<SyncTarget>();
+        final Map<String, Long> lastSynced = new HashMap<String, Long>();
 
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                SAVED_LOCATION_PROJECTION, null, null, null);
+        if (cursor == null) {
+            return targets;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                long locationId = cursor.getLong(INDEX_LOCATION_ID);
+                if (locationId == excludedLocationId) {
+                    continue;
+                }
+                // A stored location's own setting is its key.
+                String locationSetting = cursor.getString(INDEX_LOCATION_SETTING);
+                // These were returned by OpenWeatherMap for this location, so they are a more
+                // dependable query than whatever text the location was saved under.
+                targets.add(new SyncTarget(locationSetting, locationId, locationSetting,
+                        String.valueOf(cursor.getDouble(INDEX_COORD_LAT)),
+                        String.valueOf(cursor.getDouble(INDEX_COORD_LONG)),
+                        false));
+                lastSynced.put(locationSetting,
+                        ForecastValidators.load(context, locationSetting).lastSynced);
+            }
+        } finally {
+            cursor.close();
+        }
 
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
+        Collections.sort(targets, new Comparator<SyncTarget>() {
+            @Override
+            public int compare(SyncTarget lhs, SyncTarget rhs) {
+                long left = lastSynced.get(lhs.locationKey);
+                long right = lastSynced.get(rhs.locationKey);
+                return left < right ? -1 : (left == right ? 0 : 1);
+            }
+        });
+        return targets;
+    }
 
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
+    /**
+     * Runs the fetch, parse and persist stages for one location and adds what each of them
+     * cost to the sync history.  The fan-out stage is left to the caller, since only the
+     * preferred location is shown outside the app.
+     *
+     * @param parser a parser only used by the calling thread.
+     * @param forecast a forecast record only used by the calling thread.
+     * @param hourly an hourly forecast record only used by the calling thread.
+     * @param metrics filled in as the stages run, then stored.
+     * @param cancellation checked between and during the stages.
+     * @return one of the SYNC_ outcomes.
+     */
+    private int syncLocation(SyncTarget target, ForecastParser parser, Forecast forecast,
+                             HourlyForecast hourly, SyncMetrics metrics,
+                             SyncCancellation cancellation) {
+        long syncStart = SystemClock.elapsedRealtime();
+        metrics.outcome = runSyncStages(target, parser, forecast, hourly, metrics, cancellation);
+        metrics.totalMillis = SystemClock.elapsedRealtime() - syncStart;
+        recordHistory(metrics);
+        return metrics.outcome;
+    }
 
-        final String OWM_MESSAGE_CODE = "cod";
+    /**
+     * A cancellation checkpoint.  Besides the sync being cancelled, a sync of the preferred
+     * location stops if the user has picked another location since it started: its forecast
+     * would only overwrite the status and refreshes meant for the new one.
+     */
+    private void checkpoint(SyncTarget target, SyncCancellation cancellation)
+            throws SyncCancellation.CanceledException {
+        cancellation.throwIfCanceled();
+        if (target.preferred
+                && !target.locationSetting.equals(Utility.getPreferredLocation(getContext()))) {
+            throw new SyncCancellation.CanceledException(
+                    "Location changed from " + target.locationSetting);
+        }
+    }
 
+    /**
+     * Fetches the 5 day / 3 hour forecast for a location, adding what it cost to the sync's
+     * metrics.  The daily forecast is what a sync's outcome is judged by, so failing here is
+     * only logged and the stored hours are left for the next sync.
+     *
+     * @return true if the hours were fetched and can be stored.
+     */
+    private boolean fetchHourly(SyncTarget target, ForecastParser parser, HourlyForecast hourly,
+                                SyncMetrics metrics, SyncCancellation cancellation)
+            throws SyncCancellation.CanceledException {
+        HttpURLConnection urlConnection = null;
+        CountingInputStream wireStream = null;
+        boolean responseConsumed = false;
+        long fetchStart = SystemClock.elapsedRealtime();
         try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-            Context context = getContext();
-
-            // do we have an error?
-            if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
+            checkpoint(target, cancellation);
+            urlConnection = openForecastConnection(mHourlyForecastBaseUrl, HOURLY_FORECAST_COUNT,
+                    target, null, null, cancellation);
+            if (urlConnection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                Log.d(LOG_TAG, "Hourly forecast for " + target.locationSetting + " failed: "
+                        + urlConnection.getResponseCode());
+                return false;
+            }
 
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
+            wireStream = new CountingInputStream(urlConnection.getInputStream());
+            InputStream inputStream = wireStream;
+            if (ENCODING_GZIP.equalsIgnoreCase(urlConnection.getContentEncoding())) {
+                inputStream = new GZIPInputStream(inputStream, GZIP_BUFFER_SIZE);
+            }
+            inputStream = cancellation.watch(inputStream);
+            long parseStart = SystemClock.elapsedRealtime();
+            try {
+                parser.parseHourly(inputStream, hourly);
+                while (inputStream.read() != -1) {
+                    // drain, so the connection can be reused
                 }
+            } finally {
+                inputStream.close();
             }
+            responseConsumed = true;
+            // Everything spent waiting on the second request, connecting included, is
+            // download time; the daily request's connect and first byte are kept apart.
+            long readMillis = wireStream.getReadMillis();
+            metrics.downloadMillis += parseStart - fetchStart + readMillis;
+            metrics.parseMillis += Math.max(0,
+                    SystemClock.elapsedRealtime() - parseStart - readMillis);
+
+            if (hourly.code != HttpURLConnection.HTTP_OK || hourly.cityName == null) {
+                Log.d(LOG_TAG, "Hourly forecast for " + target.locationSetting + " refused: "
+                        + hourly.code);
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            if (e instanceof SyncCancellation.CanceledException) {
+                throw (SyncCancellation.CanceledException) e;
+            }
+            if (cancellation.isCanceled()) {
+                throw new SyncCancellation.CanceledException(e.getMessage());
+            }
+            Log.e(LOG_TAG, "Error fetching the hourly forecast", e);
+            return false;
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            return false;
+        } finally {
+            if (urlConnection != null) {
+                cancellation.unregister(urlConnection);
+                SyncHttpClient.release(urlConnection, responseConsumed);
+            }
+            if (wireStream != null) {
+                metrics.bytesReceived += wireStream.getCount();
+            }
+        }
+    }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
+    private int runSyncStages(SyncTarget target, ForecastParser parser, Forecast forecast,
+                              HourlyForecast hourly, SyncMetrics metrics,
+                              SyncCancellation cancellation) {
+        Context context = getContext();
+        long syncStart = SystemClock.elapsedRealtime();
+        // Both requests add to it.
+        metrics.bytesReceived = 0;
 
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
+        // These need to be declared outside the try/catch
+        // so that they can be closed and reported on in the finally block.
+        HttpURLConnection urlConnection = null;
+        CountingInputStream wireStream = null;
+        // Only a connection whose response was read to the end can be kept alive.
+        boolean responseConsumed = false;
 
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
+        try {
+            // Dates are assigned from today's local Julian day, so anything remembered about a
+            // previous response only counts if it was stored today and is still in the database.
+            int julianStartDay = getJulianStartDay();
+            ForecastValidators validators =
+                    ForecastValidators.load(context, target.locationKey);
+            boolean conditional = validators.isValidFor(julianStartDay)
+                    && hasStoredForecast(target.locationSetting);
+
+            // Fetch
+            checkpoint(target, cancellation);
+            urlConnection = openForecastConnection(mForecastBaseUrl, FORECAST_DAY_COUNT, target,
+                    conditional ? validators : null, metrics, cancellation);
+            long requestSent = SystemClock.elapsedRealtime();
+            int responseCode = urlConnection.getResponseCode();
+            metrics.firstByteMillis = SystemClock.elapsedRealtime() - requestSent;
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // Nothing changed upstream: no parse, no database write, no refreshes.
+                Log.d(LOG_TAG, "Sync Complete. Forecast not modified");
+                responseConsumed = true;
+                metrics.rowsChanged = 0;
+                validators.markSynced(context);
+                recordSchedulingSample(target, 0, 0, urlConnection);
+                reportLocationStatus(target, LOCATION_STATUS_OK);
+                return SYNC_UNCHANGED;
+            }
 
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
+            // Parse
+            checkpoint(target, cancellation);
+            wireStream = new CountingInputStream(urlConnection.getInputStream());
+            long parseStart = SystemClock.elapsedRealtime();
+            String bodyHash = parseForecast(wireStream, urlConnection.getContentEncoding(),
+                    parser, forecast, cancellation);
+            responseConsumed = true;
+            // The parser reads as the bytes arrive, so waiting on the network is told apart
+            // from the work done on what has arrived by timing the reads underneath it.
+            metrics.downloadMillis = wireStream.getReadMillis();
+            metrics.parseMillis = Math.max(0,
+                    SystemClock.elapsedRealtime() - parseStart - metrics.downloadMillis);
+            if (conditional && validators.matchesBody(bodyHash)) {
+                Log.d(LOG_TAG, "Sync Complete. Forecast unchanged");
+                metrics.rowsChanged = 0;
+                // The server sent the body again, so its validators are newer than ours; keep
+                // them, or the next request can't be answered with a 304.
+                validators.save(context, urlConnection, bodyHash, julianStartDay);
+                recordSchedulingSample(target, 0, forecast.dayCount, urlConnection);
+                reportLocationStatus(target, LOCATION_STATUS_OK);
+                return SYNC_UNCHANGED;
+            }
 
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
+            // The hours are fetched only now that the days are known to be new, and before
+            // anything is written, so that days and hours are stored together.  A 304 or an
+            // unchanged body above leaves the stored hours next to the stored days.
+            boolean hasHours = fetchHourly(target, parser, hourly, metrics, cancellation);
+
+            // Persist.  The last checkpoint: the forecast is written in one transaction, which
+            // is either all there or not at all.
+            checkpoint(target, cancellation);
+            long storeStart = SystemClock.elapsedRealtime();
+            int changedRows = storeForecast(forecast, hasHours ? hourly : null, target,
+                    julianStartDay);
+            metrics.dbWriteMillis = SystemClock.elapsedRealtime() - storeStart;
+            if (changedRows >= 0) {
+                metrics.rowsChanged = changedRows;
+                validators.save(context, urlConnection, bodyHash, julianStartDay);
+                recordSchedulingSample(target, changedRows, forecast.dayCount, urlConnection);
+                // A new body that still matches every stored row doesn't need a refresh.
+                return changedRows > 0 ? SYNC_CHANGED : SYNC_UNCHANGED;
+            }
+            // storeForecast has already reported why it refused the forecast.
+            switch (forecast.code) {
+                case HttpURLConnection.HTTP_OK:
+                    return SYNC_INVALID_RESPONSE;
+                case HttpURLConnection.HTTP_NOT_FOUND:
+                    return SYNC_INVALID_LOCATION;
+                default:
+                    return SYNC_FAILED;
+            }
+        } catch (IOException e) {
+            // Cancelling closes the connection under us, which surfaces as an I/O failure.
+            if (cancellation.isCanceled() || e instanceof SyncCancellation.CanceledException) {
+                Log.d(LOG_TAG, "Sync of " + target.locationSetting + " canceled: "
+                        + e.getMessage());
+                return SYNC_CANCELED;
+            }
+            Log.e(LOG_TAG, "Error ", e);
+            // If the code didn't successfully get the weather data, there's no point in attempting
+            // to parse it.
+            reportLocationStatus(target, LOCATION_STATUS_SERVER_DOWN);
+            return SYNC_FAILED;
+        } catch (JSONException e) {
+            if (cancellation.isCanceled()) {
+                return SYNC_CANCELED;
+            }
+            Log.e(LOG_TAG, e.getMessage(), e);
+            e.printStackTrace();
+            reportLocationStatus(target, LOCATION_STATUS_SERVER_INVALID);
+            return SYNC_INVALID_RESPONSE;
+        } finally {
+            if (urlConnection != null) {
+                cancellation.unregister(urlConnection);
+                SyncHttpClient.release(urlConnection, responseConsumed);
+            }
+            if (wireStream != null) {
+                metrics.bytesReceived += wireStream.getCount();
+            }
+            Log.d(LOG_TAG, "Sync of " + target.locationSetting + " took "
+                    + (SystemClock.elapsedRealtime() - syncStart) + "ms, "
+                    + metrics.bytesReceived + " bytes on the wire");
+        }
+    }
 
-            Time dayTime = new Time();
-            dayTime.setToNow();
+    /**
+     * Adds a location sync to the sync history.  Losing a sample is no reason to fail the sync,
+     * so a database error is only logged.
+     */
+    private void recordHistory(SyncMetrics metrics) {
+        try {
+            metrics.historyUri = getContext().getContentResolver().insert(
+                    WeatherContract.SyncHistoryEntry.CONTENT_URI, metrics.toContentValues());
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Couldn't record the sync history", e);
+        }
+    }
 
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+    /**
+     * @return a listener that fills in the fan-out time of the given sync history row, or null
+     * if the row couldn't be stored.
+     */
+    private SyncFanOut.Listener newFanOutHistoryListener(final Uri historyUri) {
+        if (historyUri == null) {
+            return null;
+        }
+        return new SyncFanOut.Listener() {
+            @Override
+            public void onFanOutFinished(long elapsedMillis) {
+                ContentValues values = new ContentValues();
+                values.put(WeatherContract.SyncHistoryEntry.COLUMN_FAN_OUT_MILLIS, elapsedMillis);
+                try {
+                    getContext().getContentResolver().update(historyUri, values, null, null);
+                } catch (SQLException e) {
+                    Log.e(LOG_TAG, "Couldn't record the fan-out time", e);
+                }
+            }
+        };
+    }
 
-            // now we work exclusively in UTC
-            dayTime = new Time();
+    /**
+     * Lets the scheduler see how much the preferred location's forecast moved.  The other
+     * saved locations don't decide how often we sync.
+     */
+    private void recordSchedulingSample(SyncTarget target, int changedRows, int totalRows,
+                                        HttpURLConnection urlConnection) {
+        if (target.preferred) {
+            SyncScheduler.recordSync(getContext(), changedRows, totalRows,
+                    urlConnection.getLastModified());
+        }
+    }
 
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
+    /**
+     * Sends the forecast request for a location.
+     *
+     * @param baseUrl the daily or the hourly forecast's URL.
+     * @param count how many days, or three hour periods, to ask for.
+     * @param validators if not null, makes the request conditional on these.
+     * @param metrics if not null, where the time taken to connect is recorded.
+     * @param cancellation disconnects the connection if the sync is cancelled; the caller
+     * unregisters it once done with it.
+     * @return the connection, with the response headers read.
+     */
+    private HttpURLConnection openForecastConnection(String baseUrl, int count,
+                                                     SyncTarget target,
+                                                     ForecastValidators validators,
+                                                     SyncMetrics metrics,
+                                                     SyncCancellation cancellation)
+            throws IOException {
+        String format = "json";
+        String units = "metric";
 
-                double high;
-                double low;
+        // Construct the URL for the OpenWeatherMap query
+        // Possible parameters are avaiable at OWM's forecast API page, at
+        // http://openweathermap.org/API#forecast
+        final String FORMAT_PARAM = "mode";
+        final String UNITS_PARAM = "units";
+        final String DAYS_PARAM = "cnt";
+        final String APPID_PARAM = "APPID";
+
+        Uri.Builder uriBuilder = Uri.parse(baseUrl).buildUpon();
+        target.appendQueryParameters(uriBuilder);
+
+        Uri builtUri = uriBuilder.appendQueryParameter(FORMAT_PARAM, format)
+                .appendQueryParameter(UNITS_PARAM, units)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(count))
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build();
+
+        URL url = new URL(builtUri.toString());
+
+        // Create the request to OpenWeatherMap, and open the connection.  The shared client
+        // reuses a kept-alive connection to the server if it has one, so this may not need a
+        // lookup or a handshake at all.
+        HttpURLConnection urlConnection = SyncHttpClient.getInstance().open(url);
+        urlConnection.setRequestMethod("GET");
+        // Asking for gzip ourselves means the client hands us the compressed stream, so
+        // we can count what actually crossed the wire.
+        urlConnection.setRequestProperty(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
+        if (validators != null) {
+            validators.addRequestHeaders(urlConnection);
+        }
+        cancellation.register(urlConnection);
+        long connectStart = SystemClock.elapsedRealtime();
+        urlConnection.connect();
+        if (metrics != null) {
+            metrics.connectMillis = SystemClock.elapsedRealtime() - connectStart;
+        }
+        return urlConnection;
+    }
 
-                String description;
-                int weatherId;
+    /**
+     * Parses the body as it arrives, straight off the (decompressed) input stream, hashing it on
+     * the way through.  An empty body surfaces as an EOFException, which is handled like any
+     * other I/O failure.
+     *
+     * @return the hash of the whole body.
+     */
+    private String parseForecast(InputStream wireStream, String contentEncoding,
+                                 ForecastParser parser, Forecast forecast,
+                                 SyncCancellation cancellation)
+            throws IOException, JSONException {
+        InputStream bodyStream = wireStream;
+        if (ENCODING_GZIP.equalsIgnoreCase(contentEncoding)) {
+            bodyStream = new GZIPInputStream(wireStream, GZIP_BUFFER_SIZE);
+        }
+        MessageDigest bodyDigest = ForecastValidators.newBodyDigest();
+        InputStream inputStream = cancellation.watch(new DigestInputStream(bodyStream, bodyDigest));
+        try {
+            parser.parse(inputStream, forecast);
+            // Hash whatever trails the JSON as well, so the hash covers the whole body.
+            while (inputStream.read() != -1) {
+                // keep reading
+            }
+        } finally {
+            inputStream.close();
+        }
+        return ForecastValidators.toHash(bodyDigest);
+    }
 
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
+    /**
+     * OWM returns daily forecasts based upon the local time of the city that is being
+     * asked for, which means that we need to know the GMT offset to translate this data
+     * properly.  Since the data is sent in-order and the first day is always the current day,
+     * we count our normalized UTC dates from the Julian day returned by local time.
+     */
+    private static int getJulianStartDay() {
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        return Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+    }
 
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
+    /**
+     * @return true if the database holds weather for the location from today onwards.
+     */
+    private boolean hasStoredForecast(String locationSetting) {
+        Uri todayUri = WeatherContract.TodayEntry.buildTodayUri(locationSetting);
+        Cursor cursor = getContext().getContentResolver().query(todayUri,
+                new String[]{WeatherContract.WeatherEntry.COLUMN_DATE}, null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
 
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
+    /**
+     * Take a parsed forecast and write it to the database.
+     *
+     * @param hourly the location's hours to store with the days, or null to leave them be.
+     * @return the number of weather rows that were inserted or changed, or -1 if the forecast
+     * could not be stored.
+     */
+    private int storeForecast(Forecast forecast, HourlyForecast hourly, SyncTarget target,
+                              int julianStartDay) {
+        // do we have an error?
+        switch (forecast.code) {
+            case HttpURLConnection.HTTP_OK:
+                break;
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                reportLocationStatus(target, LOCATION_STATUS_INVALID);
+                return -1;
+            default:
+                reportLocationStatus(target, LOCATION_STATUS_SERVER_DOWN);
+                return -1;
+        }
 
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
+        if (forecast.cityName == null) {
+            Log.e(LOG_TAG, "Forecast response is missing the city");
+            reportLocationStatus(target, LOCATION_STATUS_SERVER_INVALID);
+            return -1;
+        }
 
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
+        // The location, its forecast, its hours and the purge of old days go in as one batch:
+        // a single transaction, and a single change for observers once it has committed.
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(
+                forecast.dayCount + 2 + (hourly != null ? hourly.hourCount + 1 : 0));
+        operations.add(ContentProviderOperation
+                .newInsert(WeatherContract.LocationEntry.CONTENT_URI)
+                .withValues(createLocationValues(target.locationSetting, forecast.cityName,
+                        forecast.cityLatitude, forecast.cityLongitude))
+                .build());
+
+        // we work exclusively in UTC
+        Time dayTime = new Time();
+
+        // Insert the new weather information into the database
+        for (int i = 0; i < forecast.dayCount; i++) {
+            Forecast.Day day = forecast.days[i];
+
+            // Cheating to convert this to UTC time, which is what we want anyhow
+            day.date = dayTime.setJulianDay(julianStartDay + i);
+
+            ContentValues weatherValues = new ContentValues(9);
+
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, day.date);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, day.humidity);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, day.pressure);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, day.windSpeed);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, day.windDirection);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, day.high);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, day.low);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, day.description);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, day.weatherId);
+
+            // the location's id is whatever the first operation hands back
+            operations.add(ContentProviderOperation
+                    .newInsert(WeatherContract.WeatherEntry.CONTENT_URI)
+                    .withValues(weatherValues)
+                    .withValueBackReference(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, 0)
+                    .build());
+        }
 
-                ContentValues weatherValues = new ContentValues();
+        if (forecast.dayCount > 0) {
+            // delete old data so we don't build up an endless history
+            operations.add(ContentProviderOperation
+                    .newDelete(WeatherContract.WeatherEntry.CONTENT_URI)
+                    .withSelection(WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
+                            new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))})
+                    .build());
+        }
 
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+        int hourCount = hourly != null ? addHourlyOperations(operations, hourly) : 0;
 
-                if (i == 0) {
-                    sendWeatherInfoToWearable(high, low, weatherId);
-                }
+        ContentProviderResult[] results;
+        try {
+            results = getContext().getContentResolver().applyBatch(
+                    WeatherContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(LOG_TAG, "Error storing the forecast", e);
+            reportLocationStatus(target, LOCATION_STATUS_UNKNOWN);
+            return -1;
+        }
 
-                cVVector.add(weatherValues);
+        // the provider only rewrites the rows whose values differ, and only those have a uri
+        int changedRows = 0;
+        for (int i = 1; i <= forecast.dayCount; i++) {
+            if (results[i].uri != null) {
+                changedRows++;
             }
+        }
 
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
-
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
+        Log.d(LOG_TAG, "Sync Complete. " + changedRows + " of " + forecast.dayCount + " rows changed, "
+                + hourCount + " hours stored");
+        reportLocationStatus(target, LOCATION_STATUS_OK);
+        return changedRows;
+    }
 
-                updateWidgets();
-                updateMuzei();
-                notifyWeather();
+    /**
+     * Adds the hours to a forecast's batch, after the location's insert at index 0.  Each one
+     * replaces the stored hour of the same time, and the hours before the first one given are
+     * dropped, since they have passed.
+     *
+     * @return the number of hours added.
+     */
+    private static int addHourlyOperations(ArrayList<ContentProviderOperation> operations,
+                                           HourlyForecast hourly) {
+        int count = 0;
+        long firstTime = Long.MAX_VALUE;
+        for (int i = 0; i < hourly.hourCount; i++) {
+            HourlyForecast.Hour hour = hourly.hours[i];
+            if (hour.time <= 0) {
+                continue;
             }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
-
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+            ContentValues hourValues = new ContentValues(5);
+            hourValues.put(WeatherContract.HourlyWeatherEntry.COLUMN_TIME, hour.time);
+            hourValues.put(WeatherContract.HourlyWeatherEntry.COLUMN_WEATHER_ID, hour.weatherId);
+            hourValues.put(WeatherContract.HourlyWeatherEntry.COLUMN_TEMP,
+                    WeatherContract.HourlyWeatherEntry.toScaled(hour.temperature));
+            hourValues.put(WeatherContract.HourlyWeatherEntry.COLUMN_HUMIDITY, hour.humidity);
+            hourValues.put(WeatherContract.HourlyWeatherEntry.COLUMN_WIND_SPEED,
+                    WeatherContract.HourlyWeatherEntry.toScaled(hour.windSpeed));
+            operations.add(ContentProviderOperation
+                    .newInsert(WeatherContract.HourlyWeatherEntry.CONTENT_URI)
+                    .withValues(hourValues)
+                    .withValueBackReference(WeatherContract.HourlyWeatherEntry.COLUMN_LOC_KEY, 0)
+                    .build());
+            firstTime = Math.min(firstTime, hour.time);
+            count++;
         }
-    }
-    public void sendWeatherInfoToWearable(double high, double low, int weatherId) {
-        Log.d(LOG_TAG, "Sending Weather data");
 
-        if (mGoogleApiClient == null) {
-            return;
+        if (count > 0) {
+            operations.add(ContentProviderOperation
+                    .newDelete(WeatherContract.HourlyWeatherEntry.CONTENT_URI)
+                    .withSelection(WeatherContract.HourlyWeatherEntry.COLUMN_LOC_KEY + " = ? AND "
+                                    + WeatherContract.HourlyWeatherEntry.COLUMN_TIME + " < ?",
+                            new String[] {null, Long.toString(firstTime)})
+                    .withSelectionBackReference(0, 0)
+                    .build());
         }
+        return count;
+    }
 
-        mGoogleApiClient.connect();
-
-        PutDataMapRequest putDataMapRequest = PutDataMapRequest.create(WEATHER_INFO_PATH);
-
-        putDataMapRequest.getDataMap().putString(KEY_UUID, UUID.randomUUID().toString());
-        putDataMapRequest.getDataMap().putString(KEY_HIGH, Utility.formatTemperature(getContext(), high));
-        putDataMapRequest.getDataMap().putString(KEY_LOW, Utility.formatTemperature(getContext(), low));
-        putDataMapRequest.getDataMap().putInt(KEY_WEATHER_ID, weatherId);
-
-        PutDataRequest request = putDataMapRequest.asPutDataRequest();
-
-        Log.d(LOG_TAG, "High:" + high + ", Low:" + low + ", Condition ID: " + weatherId);
+    void setForecastBaseUrl(String forecastBaseUrl) {
+        mForecastBaseUrl = forecastBaseUrl;
+        mHourlyForecastBaseUrl = toHourlyForecastUrl(forecastBaseUrl);
+    }
 
-        Wearable.DataApi.putDataItem(mGoogleApiClient, request)
-                .setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
-                    @Override
-                    public void onResult(DataApi.DataItemResult dataItemResult) {
-                        if (!dataItemResult.getStatus().isSuccess()) {
-                            Log.d(LOG_TAG, "Failed to send weather data");
-                        } else {
-                            Log.d(LOG_TAG, "Successfully sent weather data");
-                        }
-                    }
-                });
+    /**
+     * The 5 day / 3 hour forecast is served next to the daily one, on the same server.
+     */
+    private static String toHourlyForecastUrl(String forecastBaseUrl) {
+        return forecastBaseUrl.replace("/forecast/daily", "/forecast");
     }
+
     private void updateWidgets() {
         Context context = getContext();
         // Setting the package ensures that only components in our app will receive the broadcast
@@ -469,7 +1011,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                 // Last sync was more than 1 day ago, let's send a notification with the weather.
                 String locationQuery = Utility.getPreferredLocation(context);
 
-                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
+                Uri weatherUri = WeatherContract.TodayEntry.buildTodayUri(locationQuery);
 
                 // we'll query our contentProvider, as always
                 Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
@@ -502,10 +1044,16 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                         largeIcon = Glide.with(context)
                                 .load(artUrl)
                                 .asBitmap()
+                                .diskCacheStrategy(DiskCacheStrategy.ALL)
                                 .error(artResourceId)
                                 .fitCenter()
                                 .into(largeIconWidth, largeIconHeight).get();
-                    } catch (InterruptedException | ExecutionException e) {
+                    } catch (InterruptedException e) {
+                        // Out of time; the notification will be posted after the next change.
+                        Log.w(LOG_TAG, "Interrupted retrieving large icon from " + artUrl);
+                        cursor.close();
+                        return;
+                    } catch (ExecutionException e) {
                         Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
                         largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
                     }
@@ -569,44 +1117,46 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
      * @return the row ID of the added location.
      */
     long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
-
-        // First, check if the location with this city name exists in the db
-        Cursor locationCursor = getContext().getContentResolver().query(
+        // The provider only inserts the location if it isn't stored yet, and hands back its URI
+        // either way.  It remembers the locations it has seen, so this usually costs no query.
+        Uri locationUri = getContext().getContentResolver().insert(
                 WeatherContract.LocationEntry.CONTENT_URI,
-                new String[]{WeatherContract.LocationEntry._ID},
-                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
-                new String[]{locationSetting},
-                null);
-
-        if (locationCursor.moveToFirst()) {
-            int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
-            locationId = locationCursor.getLong(locationIdIndex);
-        } else {
-            // Now that the content provider is set up, inserting rows of data is pretty simple.
-            // First create a ContentValues object to hold the data you want to insert.
-            ContentValues locationValues = new ContentValues();
+                createLocationValues(locationSetting, cityName, lat, lon)
+        );
 
-            // Then add the data, along with the corresponding name of the data type,
-            // so the content provider knows what kind of value is being inserted.
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+        // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
+        return ContentUris.parseId(locationUri);
+    }
 
-            // Finally, insert location data into the database.
-            Uri insertedUri = getContext().getContentResolver().insert(
-                    WeatherContract.LocationEntry.CONTENT_URI,
-                    locationValues
-            );
+    private static ContentValues createLocationValues(String locationSetting, String cityName,
+                                                      double lat, double lon) {
+        // Create a ContentValues object to hold the data you want to insert.
+        ContentValues locationValues = new ContentValues();
+
+        // Then add the data, along with the corresponding name of the data type,
+        // so the content provider knows what kind of value is being inserted.
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+        return locationValues;
+    }
 
-            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
-            locationId = ContentUris.parseId(insertedUri);
-        }
+    /**
+     * Sends the preferred location's stored forecast to the watch, whether or not it has
+     * changed.  Blocks, so call it off the UI thread.
+     */
+    public static void sendForecastToWearable(Context context) {
+        WearablePublisher.getInstance(context)
+                .publish(Utility.getPreferredLocation(context), true);
+    }
 
-        locationCursor.close();
-        // Wait, that worked?  Yes!
-        return locationId;
+    /**
+     * Tells the sync scheduler the user is looking at the weather now, so it can have fresh
+     * data ready around the same time on other days.
+     */
+    public static void recordAppOpen(Context context) {
+        SyncScheduler.recordAppOpen(context);
     }
 
     /**
@@ -633,6 +1183,13 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
      * @param context The context used to access the account service
      */
     public static void syncImmediately(Context context) {
+        // Skip the request if a sync that covers it is already running, pending or recent.
+        String locationKey =
+                SyncTarget.getLocationKey(context, Utility.getPreferredLocation(context));
+        if (!SyncCoalescer.shouldRequest(context, locationKey,
+                Utility.isSyncAllLocationsEnabled(context))) {
+            return;
+        }
         Bundle bundle = new Bundle();
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
@@ -683,7 +1240,8 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         /*
          * Since we've created an account
          */
-        SunshineSyncAdapter.configurePeriodicSync(context, SYNC_INTERVAL, SYNC_FLEXTIME);
+        int syncInterval = SyncScheduler.getInterval(context);
+        SunshineSyncAdapter.configurePeriodicSync(context, syncInterval, syncInterval / 3);
 
         /*
          * Without calling setSyncAutomatically, our periodic sync will not be enabled.
@@ -700,6 +1258,18 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         getSyncAccount(context);
     }
 
+    /**
+     * Only the preferred location has a status the UI shows; other locations just log theirs.
+     */
+    private void reportLocationStatus(SyncTarget target, @LocationStatus int locationStatus) {
+        if (target.preferred) {
+            setLocationStatus(getContext(), locationStatus);
+        } else if (locationStatus != LOCATION_STATUS_OK) {
+            Log.w(LOG_TAG, "Sync of " + target.locationSetting + " failed with status "
+                    + locationStatus);
+        }
+    }
+
     /**
      * Sets the location status into shared preference.  This function should not be called from
      * the UI thread because it uses commit to write to the shared preferences.
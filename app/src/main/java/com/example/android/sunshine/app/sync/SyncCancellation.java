@@ -0,0 +1,93 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Whether the sync that owns this has been cancelled, for the threads doing its work to check
+ * as they go.
+ *
+ * Interrupting a thread doesn't stop it waiting on a socket, so cancelling also disconnects
+ * every connection the sync has open.  The read blocked on it fails straight away, and the
+ * sync's own error handling then tidies up the way it would after any other I/O failure.
+ */
+class SyncCancellation {
+
+    /**
+     * Thrown at a checkpoint once the sync has been cancelled.
+     */
+    static class CanceledException extends InterruptedIOException {
+        CanceledException(String reason) {
+            super(reason);
+        }
+    }
+
+    private volatile boolean mCanceled;
+    // Guarded by itself.
+    private final Set<HttpURLConnection> mConnections = new HashSet<HttpURLConnection>();
+
+    void cancel() {
+        mCanceled = true;
+        HttpURLConnection[] connections;
+        synchronized (mConnections) {
+            connections = mConnections.toArray(new HttpURLConnection[mConnections.size()]);
+            mConnections.clear();
+        }
+        for (HttpURLConnection connection : connections) {
+            connection.disconnect();
+        }
+    }
+
+    boolean isCanceled() {
+        return mCanceled;
+    }
+
+    void throwIfCanceled() throws CanceledException {
+        if (mCanceled) {
+            throw new CanceledException("Sync canceled");
+        }
+    }
+
+    /**
+     * Has the connection disconnected if the sync is cancelled while it is open.  Call
+     * {@link #unregister} when done with it.
+     */
+    void register(HttpURLConnection connection) throws CanceledException {
+        synchronized (mConnections) {
+            // Checked under the lock, so cancel() can't miss a connection added as it runs.
+            throwIfCanceled();
+            mConnections.add(connection);
+        }
+    }
+
+    void unregister(HttpURLConnection connection) {
+        synchronized (mConnections) {
+            mConnections.remove(connection);
+        }
+    }
+
+    /**
+     * @return the stream, checking for cancellation before every read, so a parse working
+     * through a body that has already arrived stops as well.
+     */
+    InputStream watch(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                throwIfCanceled();
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                throwIfCanceled();
+                return super.read(buffer, offset, count);
+            }
+        };
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sits in front of {@link SunshineSyncAdapter#syncImmediately} so that a burst of requests
+ * (a location change, a settings change and the watch face asking, all at once) turns into a
+ * single download.  A request for a location is dropped when:
+ *
+ * - a sync of that location is already running; the caller gets its data from that one.
+ * - a sync of that location was requested less than a window ago and hasn't finished yet.
+ * - the location was synced so recently that its data is still fresh.
+ *
+ * Both windows are resources, see integers.xml.  The state lives in this process only, which
+ * is where the sync adapter runs too.  Locations are told apart by their key (see
+ * {@link SyncTarget#getLocationKey}), so two spellings of one location are one location here.
+ */
+class SyncCoalescer {
+    private static final String LOG_TAG = SyncCoalescer.class.getSimpleName();
+
+    private static final Object sLock = new Object();
+    // When a sync was last requested for each location, on the elapsedRealtime clock.
+    private static final Map<String, Long> sLastRequested = new HashMap<String, Long>();
+    // The location the sync adapter is working on right now, or null.
+    private static String sInFlightLocation;
+
+    /**
+     * Decides whether a requested sync needs to reach SyncManager, and if so remembers that it
+     * was requested.
+     *
+     * @param allLocations true if the sync refreshes every saved location.  The freshness of
+     *                     the preferred location says nothing about the others then.
+     * @return true if the sync should be requested.
+     */
+    static boolean shouldRequest(Context context, String locationKey, boolean allLocations) {
+        long now = SystemClock.elapsedRealtime();
+        long windowMillis = 1000L
+                * context.getResources().getInteger(R.integer.sync_coalescing_window_seconds);
+        synchronized (sLock) {
+            if (locationKey.equals(sInFlightLocation)) {
+                Log.d(LOG_TAG, "Sync of " + locationKey + " already running");
+                return false;
+            }
+            Long lastRequested = sLastRequested.get(locationKey);
+            if (lastRequested != null && now - lastRequested < windowMillis) {
+                Log.d(LOG_TAG, "Sync of " + locationKey + " already requested");
+                return false;
+            }
+        }
+
+        if (!allLocations && isFresh(context, locationKey)) {
+            Log.d(LOG_TAG, "Forecast for " + locationKey + " is fresh, not syncing");
+            return false;
+        }
+
+        synchronized (sLock) {
+            sLastRequested.put(locationKey, now);
+        }
+        return true;
+    }
+
+    static void onSyncStarted(String locationKey) {
+        synchronized (sLock) {
+            sInFlightLocation = locationKey;
+        }
+    }
+
+    /**
+     * From here on the freshness check covers a sync that got through, and a sync that
+     * failed can be asked for again right away.
+     */
+    static void onSyncFinished(String locationKey) {
+        synchronized (sLock) {
+            sInFlightLocation = null;
+            sLastRequested.remove(locationKey);
+        }
+    }
+
+    private static boolean isFresh(Context context, String locationKey) {
+        long freshMillis = 1000L
+                * context.getResources().getInteger(R.integer.sync_freshness_seconds);
+        long lastSynced = ForecastValidators.load(context, locationKey).lastSynced;
+        long age = System.currentTimeMillis() - lastSynced;
+        return lastSynced > 0 && age >= 0 && age < freshMillis;
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The last stage of a sync.  Once a changed forecast has been stored, every registered consumer
+ * is run on a worker thread of its own, concurrently with the others.  A consumer still running
+ * when its timeout expires is cancelled, which interrupts its thread.
+ *
+ * {@link #dispatch} only queues the work, so a slow image download or wearable link never
+ * holds up the sync adapter's thread.
+ */
+class SyncFanOut {
+    private static final String LOG_TAG = SyncFanOut.class.getSimpleName();
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Something outside the weather table that needs refreshing after the forecast changed.
+     */
+    static abstract class Consumer {
+        final String name;
+        final long timeoutMillis;
+
+        Consumer(String name, long timeoutMillis) {
+            this.name = name;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        /**
+         * Called on a worker thread.  Implementations should give up promptly once the thread
+         * is interrupted, since that means their time is up.
+         *
+         * @param locationSetting the location whose forecast changed.
+         */
+        abstract void onForecastChanged(String locationSetting) throws Exception;
+    }
+
+    /**
+     * Told when a dispatch is over, on whichever worker or watchdog thread ended it.
+     */
+    interface Listener {
+        /**
+         * @param elapsedMillis from the dispatch until the last consumer finished or was
+         * cancelled.
+         */
+        void onFanOutFinished(long elapsedMillis);
+    }
+
+    private final List<Consumer> mConsumers = new CopyOnWriteArrayList<Consumer>();
+    private final ThreadPoolExecutor mExecutor;
+    private final ScheduledThreadPoolExecutor mWatchdog;
+
+    /**
+     * @param maxConcurrentConsumers how many consumers may run at once; the rest wait their turn.
+     */
+    SyncFanOut(int maxConcurrentConsumers) {
+        // Threads only live while there is work, so an idle app doesn't keep them around.
+        mExecutor = new ThreadPoolExecutor(maxConcurrentConsumers, maxConcurrentConsumers,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+        mWatchdog = new ScheduledThreadPoolExecutor(1);
+        mWatchdog.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        mWatchdog.allowCoreThreadTimeOut(true);
+    }
+
+    void register(Consumer consumer) {
+        mConsumers.add(consumer);
+    }
+
+    void unregister(Consumer consumer) {
+        mConsumers.remove(consumer);
+    }
+
+    /**
+     * Hands the change to every registered consumer and returns without waiting for them.
+     *
+     * @param listener if not null, told once every consumer has finished or timed out.
+     */
+    void dispatch(final String locationSetting, final Listener listener) {
+        final long dispatchStart = SystemClock.elapsedRealtime();
+        List<Consumer> consumers = new ArrayList<Consumer>(mConsumers);
+        final AtomicInteger remaining = new AtomicInteger(consumers.size());
+        if (consumers.isEmpty() && listener != null) {
+            listener.onFanOutFinished(0);
+        }
+
+        for (final Consumer consumer : consumers) {
+            // A consumer ends either by returning or by being cancelled, and cancelling one
+            // that is running means both happen; only the first counts.
+            final AtomicBoolean done = new AtomicBoolean();
+            final Runnable onDone = new Runnable() {
+                @Override
+                public void run() {
+                    if (done.compareAndSet(false, true) && remaining.decrementAndGet() == 0
+                            && listener != null) {
+                        listener.onFanOutFinished(SystemClock.elapsedRealtime() - dispatchStart);
+                    }
+                }
+            };
+            final Future<?> task = mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    long start = SystemClock.elapsedRealtime();
+                    try {
+                        consumer.onForecastChanged(locationSetting);
+                        Log.d(LOG_TAG, consumer.name + " took "
+                                + (SystemClock.elapsedRealtime() - start) + "ms");
+                    } catch (InterruptedException e) {
+                        Log.w(LOG_TAG, consumer.name + " was interrupted");
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, consumer.name + " failed", e);
+                    } finally {
+                        onDone.run();
+                    }
+                }
+            });
+            mWatchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    // Does nothing if the consumer already finished.
+                    if (task.cancel(true)) {
+                        Log.w(LOG_TAG, consumer.name + " timed out after "
+                                + consumer.timeoutMillis + "ms");
+                        onDone.run();
+                    }
+                }
+            }, consumer.timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.android.sunshine.app.sync;
+
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Dns;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.OkUrlFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The HTTP client shared by every sync and every location synced, and by Glide for the weather
+ * art (see {@link SunshineGlideModule}).  It lives as long as the process, so connections are
+ * kept alive and reused from one request to the next, host lookups are cached, and the same
+ * timeouts apply to every request.
+ *
+ * Connections are handed out as plain HttpURLConnections.  To let one go back to the pool,
+ * read its body to the end (or don't have one) and {@link #release} it rather than calling
+ * disconnect(), which closes the socket.
+ */
+class SyncHttpClient {
+
+    // Without these a stalled connection would hold the sync thread indefinitely.
+    static final long CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    static final long READ_TIMEOUT_MILLIS = 20 * 1000;
+
+    // Enough for the locations synced in parallel, plus the art downloads.
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    // Syncs of several locations follow each other closely; periodic syncs are hours apart,
+    // so there is nothing to gain from holding a socket open much longer than this.
+    private static final long KEEP_ALIVE_MILLIS = 5 * 60 * 1000;
+    private static final long DNS_TTL_MILLIS = 10 * 60 * 1000;
+
+    private static SyncHttpClient sInstance;
+
+    private final OkHttpClient mClient;
+    private final OkUrlFactory mUrlFactory;
+
+    private SyncHttpClient() {
+        mClient = new OkHttpClient();
+        mClient.setConnectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MILLIS));
+        mClient.setDns(new CachingDns(Dns.SYSTEM, DNS_TTL_MILLIS));
+        mClient.setConnectTimeout(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        mClient.setReadTimeout(READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        mUrlFactory = new OkUrlFactory(mClient);
+    }
+
+    static synchronized SyncHttpClient getInstance() {
+        if (sInstance == null) {
+            sInstance = new SyncHttpClient();
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return a new, unconnected request to the URL, going through the shared pool.
+     */
+    HttpURLConnection open(URL url) {
+        return mUrlFactory.open(url);
+    }
+
+    OkHttpClient getOkHttpClient() {
+        return mClient;
+    }
+
+    /**
+     * Finishes with a connection.
+     *
+     * @param reusable true if its response was handled completely, in which case it is returned
+     * to the pool; otherwise, e.g. after a failure half way through the body, it is closed.
+     */
+    static void release(HttpURLConnection urlConnection, boolean reusable) {
+        if (!reusable) {
+            urlConnection.disconnect();
+            return;
+        }
+        try {
+            // Closing an exhausted body is what returns the connection to the pool.  This is
+            // the same stream the body was read from, or an empty one for a 304.
+            InputStream body = urlConnection.getInputStream();
+            body.close();
+        } catch (IOException e) {
+            urlConnection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.net.Uri;
+
+import com.example.android.sunshine.app.data.WeatherContract.SyncHistoryEntry;
+
+/**
+ * What one location's sync cost, stage by stage, on its way into the sync_history table.
+ * A stage the sync never reached is left at {@link #NOT_MEASURED} and stored as null.
+ *
+ * A sync whose days changed fetches the hours too, before storing both.  That second request
+ * counts towards the download, parse, byte and total figures; connect and first byte are the
+ * daily request's.
+ */
+class SyncMetrics {
+    static final long NOT_MEASURED = -1;
+
+    final String locationSetting;
+    // Wall clock time the sync started.
+    final long started;
+
+    int outcome;
+    long connectMillis = NOT_MEASURED;
+    long firstByteMillis = NOT_MEASURED;
+    long downloadMillis = NOT_MEASURED;
+    long parseMillis = NOT_MEASURED;
+    long dbWriteMillis = NOT_MEASURED;
+    long totalMillis = NOT_MEASURED;
+    long bytesReceived = NOT_MEASURED;
+    long rowsChanged = NOT_MEASURED;
+
+    // The row these were stored in, once they have been.
+    Uri historyUri;
+
+    SyncMetrics(String locationSetting, long started) {
+        this.locationSetting = locationSetting;
+        this.started = started;
+    }
+
+    ContentValues toContentValues() {
+        ContentValues values = new ContentValues();
+        values.put(SyncHistoryEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        values.put(SyncHistoryEntry.COLUMN_STARTED, started);
+        values.put(SyncHistoryEntry.COLUMN_OUTCOME, outcome);
+        putIfMeasured(values, SyncHistoryEntry.COLUMN_CONNECT_MILLIS, connectMillis);
+        putIfMeasured(values, SyncHistoryEntry.COLUMN_FIRST_BYTE_MILLIS, firstByteMillis);
+        putIfMeasured(values, SyncHistoryEntry.COLUMN_DOWNLOAD_MILLIS, downloadMillis);
+        putIfMeasured(values, SyncHistoryEntry.COLUMN_PARSE_MILLIS, parseMillis);
+        putIfMeasured(values, SyncHistoryEntry.COLUMN_DB_WRITE_MILLIS, dbWriteMillis);
+        putIfMeasured(values, SyncHistoryEntry.COLUMN_TOTAL_MILLIS, totalMillis);
+        putIfMeasured(values, SyncHistoryEntry.COLUMN_BYTES_RECEIVED, bytesReceived);
+        putIfMeasured(values, SyncHistoryEntry.COLUMN_ROWS_CHANGED, rowsChanged);
+        return values;
+    }
+
+    private static void putIfMeasured(ContentValues values, String column, long value) {
+        if (value != NOT_MEASURED) {
+            values.put(column, value);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Random;
+
+/**
+ * Decides when to try OpenWeatherMap again after a sync failed because of the network or the
+ * server.
+ *
+ * Each failure in a row doubles the wait, starting from {@link #INITIAL_BACKOFF_MILLIS}, and a
+ * random part of it is taken off so that devices which failed together don't all retry
+ * together.  After {@link #FAILURES_TO_OPEN_CIRCUIT} failures in a row the circuit opens: syncs
+ * are skipped for a much longer time, after which a single attempt is let through.  If that
+ * fails too the circuit opens again for twice as long; the first success closes it.
+ *
+ * The state is kept in shared preferences, so it survives the process being killed between
+ * syncs.
+ */
+class SyncRetryPolicy {
+
+    static final String PREFS_NAME = "sync_retry";
+
+    private static final String KEY_FAILURES = "failures";
+    private static final String KEY_NEXT_ATTEMPT = "next_attempt";
+    private static final String KEY_OPEN_MILLIS = "open_millis";
+
+    static final long INITIAL_BACKOFF_MILLIS = 30 * 1000;
+    static final long MAX_BACKOFF_MILLIS = 30 * 60 * 1000;
+    static final int FAILURES_TO_OPEN_CIRCUIT = 5;
+    static final long INITIAL_OPEN_MILLIS = 30 * 60 * 1000;
+    static final long MAX_OPEN_MILLIS = 6 * 60 * 60 * 1000;
+
+    private static final Random sRandom = new Random();
+
+    // Failures since the last success.
+    int failures;
+    // Wall clock time before which no sync should be attempted, 0 if there is none.
+    long nextAttemptAt;
+    // How long the circuit stays open this time round, or 0 while it is closed.
+    long openMillis;
+
+    private SyncRetryPolicy() {
+    }
+
+    static SyncRetryPolicy load(Context context) {
+        SharedPreferences prefs = getPreferences(context);
+        SyncRetryPolicy policy = new SyncRetryPolicy();
+        policy.failures = prefs.getInt(KEY_FAILURES, 0);
+        policy.nextAttemptAt = prefs.getLong(KEY_NEXT_ATTEMPT, 0);
+        policy.openMillis = prefs.getLong(KEY_OPEN_MILLIS, 0);
+        return policy;
+    }
+
+    boolean isCircuitOpen() {
+        return openMillis > 0;
+    }
+
+    boolean allowsAttempt(long now) {
+        return now >= nextAttemptAt;
+    }
+
+    /**
+     * Records a failed attempt.  This function should not be called from the UI thread because
+     * it uses commit to write to the shared preferences.
+     *
+     * @return the wall clock time before which the next attempt should not be made.
+     */
+    long onFailure(Context context, long now) {
+        failures++;
+        long delay;
+        if (isCircuitOpen()) {
+            // The attempt let through an open circuit failed as well.
+            openMillis = Math.min(MAX_OPEN_MILLIS, openMillis * 2);
+            delay = openMillis;
+        } else if (failures >= FAILURES_TO_OPEN_CIRCUIT) {
+            openMillis = INITIAL_OPEN_MILLIS;
+            delay = openMillis;
+        } else {
+            delay = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << (failures - 1));
+        }
+        nextAttemptAt = now + withJitter(delay);
+        save(context);
+        return nextAttemptAt;
+    }
+
+    /**
+     * Records a successful attempt, closing the circuit if it was open.
+     */
+    void onSuccess(Context context) {
+        if (failures == 0 && nextAttemptAt == 0 && openMillis == 0) {
+            return;
+        }
+        failures = 0;
+        nextAttemptAt = 0;
+        openMillis = 0;
+        save(context);
+    }
+
+    /**
+     * @return a time between half of and the whole of the given delay.
+     */
+    private static long withJitter(long delay) {
+        long half = delay / 2;
+        return half + (long) (sRandom.nextDouble() * (delay - half));
+    }
+
+    private void save(Context context) {
+        getPreferences(context).edit()
+                .putInt(KEY_FAILURES, failures)
+                .putLong(KEY_NEXT_ATTEMPT, nextAttemptAt)
+                .putLong(KEY_OPEN_MILLIS, openMillis)
+                .commit();
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,191 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.Calendar;
+
+/**
+ * Chooses how often the periodic sync runs, instead of always using
+ * {@link SunshineSyncAdapter#SYNC_INTERVAL}.  Three things move the interval:
+ *
+ * - how much consecutive syncs of the preferred location differ.  A forecast that keeps
+ *   shifting is synced more often, one that comes back unchanged less often.
+ * - the hours the user usually opens the app.  If they are likely to look soon we sync more
+ *   often, and in hours they never look we sync less.
+ * - how often OpenWeatherMap publishes a new forecast, estimated from its Last-Modified
+ *   header.  There is no point syncing much faster than that.
+ *
+ * All of this is kept in its own shared preferences file.
+ */
+class SyncScheduler {
+    private static final String LOG_TAG = SyncScheduler.class.getSimpleName();
+
+    private static final String PREFS_NAME = "sync_schedule";
+
+    private static final String KEY_INTERVAL = "interval";
+    private static final String KEY_VOLATILITY = "volatility";
+    private static final String KEY_UPSTREAM_CADENCE = "upstream_cadence";
+    private static final String KEY_LAST_MODIFIED = "last_modified";
+    private static final String KEY_LAST_OPEN = "last_open";
+    private static final String KEY_OPENS_AT_HOUR = "opens_at_hour:";
+
+    private static final int HOURS_PER_DAY = 24;
+    private static final int SECONDS_PER_HOUR = 60 * 60;
+
+    // Bounds on the interval, in seconds.
+    static final int MIN_INTERVAL = SECONDS_PER_HOUR;
+    static final int MAX_INTERVAL = 12 * SECONDS_PER_HOUR;
+    // Smaller adjustments than this aren't worth re-registering the periodic sync for.
+    private static final int MIN_INTERVAL_CHANGE = 20 * 60;
+
+    // Until we have seen a few updates, assume the forecast is republished every 3 hours.
+    static final long DEFAULT_UPSTREAM_CADENCE_MILLIS = 3 * SECONDS_PER_HOUR * 1000L;
+
+    // Weights given to the newest sample in the running averages.
+    private static final float VOLATILITY_WEIGHT = 0.3f;
+    private static final float CADENCE_WEIGHT = 0.3f;
+
+    // Every app open shrinks the older ones a little, so changed habits show through.
+    private static final float OPEN_DECAY = 0.95f;
+    // onResume fires on every rotation and return from settings; count those as one visit.
+    private static final long MIN_OPEN_SPACING_MILLIS = 30 * 60 * 1000;
+    // How many (decayed) opens we want before treating an hour as one the user never looks.
+    private static final float MIN_OPENS_FOR_QUIET_HOURS = 10f;
+
+    private static final float LIKELY_OPEN_FACTOR = 0.75f;
+    private static final float QUIET_HOURS_FACTOR = 1.5f;
+
+    /**
+     * @return the sync interval to use, in seconds.
+     */
+    static int getInterval(Context context) {
+        return getPreferences(context).getInt(KEY_INTERVAL, SunshineSyncAdapter.SYNC_INTERVAL);
+    }
+
+    /**
+     * Remembers the hour of day the app was opened.  Safe to call from the UI thread.
+     */
+    static void recordAppOpen(Context context) {
+        SharedPreferences prefs = getPreferences(context);
+        long now = System.currentTimeMillis();
+        if (now - prefs.getLong(KEY_LAST_OPEN, 0) < MIN_OPEN_SPACING_MILLIS) {
+            return;
+        }
+
+        int currentHour = Calendar.getInstance().get(Calendar.HOUR_OF_DAY);
+        SharedPreferences.Editor editor = prefs.edit();
+        for (int hour = 0; hour < HOURS_PER_DAY; hour++) {
+            float opens = prefs.getFloat(KEY_OPENS_AT_HOUR + hour, 0f) * OPEN_DECAY;
+            if (hour == currentHour) {
+                opens += 1f;
+            }
+            editor.putFloat(KEY_OPENS_AT_HOUR + hour, opens);
+        }
+        editor.putLong(KEY_LAST_OPEN, now);
+        editor.apply();
+    }
+
+    /**
+     * Folds the outcome of a successful sync of the preferred location into the running
+     * averages.  This function should not be called from the UI thread because it uses commit
+     * to write to the shared preferences.
+     *
+     * @param changedRows the number of stored rows the sync changed, 0 if nothing changed.
+     * @param totalRows the number of days in the forecast, or 0 if it wasn't downloaded.
+     * @param lastModified the response's Last-Modified time, or 0 if there was none.
+     */
+    static void recordSync(Context context, int changedRows, int totalRows, long lastModified) {
+        SharedPreferences prefs = getPreferences(context);
+        SharedPreferences.Editor editor = prefs.edit();
+
+        float change = totalRows > 0 ? Math.min(1f, (float) changedRows / totalRows) : 0f;
+        float volatility = prefs.getFloat(KEY_VOLATILITY, change);
+        editor.putFloat(KEY_VOLATILITY,
+                volatility + VOLATILITY_WEIGHT * (change - volatility));
+
+        long previousLastModified = prefs.getLong(KEY_LAST_MODIFIED, 0);
+        if (lastModified > previousLastModified) {
+            if (previousLastModified > 0) {
+                long cadence = prefs.getLong(KEY_UPSTREAM_CADENCE, DEFAULT_UPSTREAM_CADENCE_MILLIS);
+                long sample = lastModified - previousLastModified;
+                editor.putLong(KEY_UPSTREAM_CADENCE,
+                        cadence + (long) (CADENCE_WEIGHT * (sample - cadence)));
+            }
+            editor.putLong(KEY_LAST_MODIFIED, lastModified);
+        }
+        editor.commit();
+    }
+
+    /**
+     * Re-registers the periodic sync if the interval we want now has moved far enough from the
+     * one in use.
+     */
+    static void reschedule(Context context) {
+        SharedPreferences prefs = getPreferences(context);
+        float[] opensByHour = new float[HOURS_PER_DAY];
+        for (int hour = 0; hour < HOURS_PER_DAY; hour++) {
+            opensByHour[hour] = prefs.getFloat(KEY_OPENS_AT_HOUR + hour, 0f);
+        }
+        int interval = computeInterval(
+                prefs.getFloat(KEY_VOLATILITY, 0.25f),
+                opensByHour,
+                Calendar.getInstance().get(Calendar.HOUR_OF_DAY),
+                prefs.getLong(KEY_UPSTREAM_CADENCE, DEFAULT_UPSTREAM_CADENCE_MILLIS));
+
+        int current = getInterval(context);
+        if (Math.abs(interval - current) < MIN_INTERVAL_CHANGE) {
+            return;
+        }
+        Log.d(LOG_TAG, "Sync interval " + current + "s -> " + interval + "s");
+        SunshineSyncAdapter.configurePeriodicSync(context, interval, interval / 3);
+        prefs.edit().putInt(KEY_INTERVAL, interval).commit();
+    }
+
+    /**
+     * @param volatility the running average of the share of rows each sync changed, 0 to 1.
+     * @param opensByHour how often the app was opened in each hour of the day.
+     * @param currentHour the hour of the day now, 0 to 23.
+     * @param upstreamCadenceMillis how often the forecast is republished.
+     * @return the sync interval, in seconds.
+     */
+    static int computeInterval(float volatility, float[] opensByHour, int currentHour,
+                               long upstreamCadenceMillis) {
+        // A quarter of the rows changing each time keeps the default interval; none at all
+        // doubles it and half or more halves it.
+        float volatilityFactor = (float) Math.pow(2, 1 - 4 * volatility);
+        float interval = SunshineSyncAdapter.SYNC_INTERVAL
+                * Math.max(0.5f, Math.min(2f, volatilityFactor));
+
+        // Look at the hours until the next sync would run.
+        float totalOpens = 0f;
+        for (float opens : opensByHour) {
+            totalOpens += opens;
+        }
+        if (totalOpens > 0f) {
+            int window = Math.max(1, Math.min(HOURS_PER_DAY,
+                    (int) Math.ceil(interval / SECONDS_PER_HOUR)));
+            float windowOpens = 0f;
+            for (int i = 0; i < window; i++) {
+                windowOpens += opensByHour[(currentHour + i) % HOURS_PER_DAY];
+            }
+            float share = windowOpens / totalOpens;
+            float uniformShare = (float) window / HOURS_PER_DAY;
+            if (share >= 2 * uniformShare) {
+                interval *= LIKELY_OPEN_FACTOR;
+            } else if (windowOpens == 0f && totalOpens >= MIN_OPENS_FOR_QUIET_HOURS) {
+                interval *= QUIET_HOURS_FACTOR;
+            }
+        }
+
+        // Syncing every half publication cycle keeps us at most half a cycle behind, and
+        // anything faster mostly downloads the same forecast again.
+        int floor = Math.max(MIN_INTERVAL, (int) (upstreamCadenceMillis / 2000));
+        return Math.max(Math.min(floor, MAX_INTERVAL), Math.min(MAX_INTERVAL, (int) interval));
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
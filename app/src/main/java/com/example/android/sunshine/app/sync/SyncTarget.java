@@ -0,0 +1,115 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+/**
+ * One location to fetch a forecast for, and how to ask OpenWeatherMap about it.
+ */
+class SyncTarget {
+    private static final String QUERY_PARAM = "q";
+    private static final String LAT_PARAM = "lat";
+    private static final String LON_PARAM = "lon";
+
+    private static final String[] LOCATION_PROJECTION = new String[] {
+            WeatherContract.LocationEntry._ID,
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_LOCATION_ID = 0;
+    private static final int INDEX_LOCATION_SETTING = 1;
+
+    // The key the forecast is stored under in the location table.
+    final String locationSetting;
+    // The stored location the setting finds, under any spelling or alias, or -1 if it isn't
+    // stored yet.
+    final long locationId;
+    // What validators and sync requests are kept under: the stored location's own setting,
+    // so that every setting finding the same location shares them.
+    final String locationKey;
+    // When both are set, the forecast is requested by coordinates instead of by name.
+    final String latitude;
+    final String longitude;
+    // Only the preferred location reports its status to the UI and refreshes widgets & co.
+    final boolean preferred;
+
+    SyncTarget(String locationSetting, long locationId, String locationKey,
+               String latitude, String longitude, boolean preferred) {
+        this.locationSetting = locationSetting;
+        this.locationId = locationId;
+        this.locationKey = locationKey;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.preferred = preferred;
+    }
+
+    static SyncTarget forPreferredLocation(Context context) {
+        String locationQuery = Utility.getPreferredLocation(context);
+        long locationId = -1;
+        String locationKey =
+                WeatherContract.LocationEntry.canonicalizeLocationSetting(locationQuery);
+        Cursor cursor = queryLocation(context, locationQuery);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    locationId = cursor.getLong(INDEX_LOCATION_ID);
+                    locationKey = cursor.getString(INDEX_LOCATION_SETTING);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        // Instead of always building the query based off of the location string, we want to
+        // potentially build a query using a lat/lon value. This will be the case when we are
+        // syncing based off of a new location from the Place Picker API. So we need to check
+        // if we have a lat/lon to work with, and use those when we do. Otherwise, the weather
+        // service may not understand the location address provided by the Place Picker API
+        // and the user could end up with no weather! The horror!
+        if (Utility.isLocationLatLonAvailable(context)) {
+            return new SyncTarget(locationQuery, locationId, locationKey,
+                    String.valueOf(Utility.getLocationLatitude(context)),
+                    String.valueOf(Utility.getLocationLongitude(context)),
+                    true);
+        }
+        return new SyncTarget(locationQuery, locationId, locationKey, null, null, true);
+    }
+
+    /**
+     * @return the key a location setting's validators and sync requests are kept under: the
+     * setting of the stored location it finds, or until there is one, the setting canonicalized.
+     */
+    static String getLocationKey(Context context, String locationSetting) {
+        Cursor cursor = queryLocation(context, locationSetting);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    return cursor.getString(INDEX_LOCATION_SETTING);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return WeatherContract.LocationEntry.canonicalizeLocationSetting(locationSetting);
+    }
+
+    // Finds the location the way the provider does for a forecast, aliases included.
+    private static Cursor queryLocation(Context context, String locationSetting) {
+        return context.getContentResolver().query(
+                WeatherContract.LocationEntry.buildLocationSettingUri(locationSetting),
+                LOCATION_PROJECTION, null, null, null);
+    }
+
+    void appendQueryParameters(Uri.Builder uriBuilder) {
+        if (latitude != null && longitude != null) {
+            uriBuilder.appendQueryParameter(LAT_PARAM, latitude)
+                    .appendQueryParameter(LON_PARAM, longitude);
+        } else {
+            uriBuilder.appendQueryParameter(QUERY_PARAM, locationSetting);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.NodeApi;
+import com.google.android.gms.wearable.PutDataMapRequest;
+import com.google.android.gms.wearable.Wearable;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the preferred location's forecast to the watch face as a data item.
+ *
+ * The connection to the wearable API is made once and kept for as long as the process lives,
+ * rather than once per sync.  Nothing is sent while no watch is connected, and nothing is sent
+ * when the forecast is the same as the last one sent: the data item carries a hash of its
+ * contents, so an identical item is also no change to the data layer.
+ */
+class WearablePublisher {
+    private static final String LOG_TAG = WearablePublisher.class.getSimpleName();
+
+    private static final String WEATHER_INFO_PATH = "/weather-info";
+    // Today, formatted for display, as the watch face has always read it.
+    private static final String KEY_HIGH = "high";
+    private static final String KEY_LOW = "low";
+    private static final String KEY_WEATHER_ID = "weatherId";
+    // Every day from today, packed by packForecast() and read by the watch face's
+    // PackedForecast.
+    private static final String KEY_FORECAST = "forecast";
+    private static final String KEY_METRIC = "metric";
+    private static final String KEY_HASH = "hash";
+
+    static final int MAX_DAYS = 14;
+    // The first byte of the packed forecast, for the watch to check it can read the rest.
+    // PackedForecast.FORMAT_VERSION on the watch must match.
+    static final int FORECAST_FORMAT_VERSION = 1;
+    // A version byte, a day count, then per day: the day number since the epoch (int),
+    // high and low in tenths of a degree Celsius (short each) and the weather id (short).
+    private static final int HEADER_BYTES = 2;
+    private static final int BYTES_PER_DAY = 10;
+
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+    // For each of the calls a publish makes: connecting, finding the watch, sending.
+    private static final long TIMEOUT_MILLIS = 5 * 1000;
+
+    private static final String[] FORECAST_PROJECTION = new String[] {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_DATE = 0;
+    private static final int INDEX_WEATHER_ID = 1;
+    private static final int INDEX_MAX_TEMP = 2;
+    private static final int INDEX_MIN_TEMP = 3;
+
+    private static WearablePublisher sInstance;
+
+    private final Context mContext;
+    private final GoogleApiClient mGoogleApiClient;
+
+    // The hash of the last item the data layer accepted.  Guarded by this.
+    private String mPublishedHash;
+
+    private WearablePublisher(Context context) {
+        mContext = context;
+        mGoogleApiClient = new GoogleApiClient.Builder(context)
+                .addApi(Wearable.API)
+                .build();
+    }
+
+    static synchronized WearablePublisher getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new WearablePublisher(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Sends the location's stored forecast to the watch if it differs from what was last sent.
+     * Blocks until the data item is handed to the wearable layer or the time is up, so this
+     * must not be called on the UI thread.
+     *
+     * @param force send it even if it is what was last sent, e.g. when the watch asks for it.
+     * An item the same as the one the data layer holds is still no change to it, and reaches
+     * no listener; the watch face reads the stored item itself when it connects.
+     */
+    synchronized void publish(String locationSetting, boolean force) {
+        PutDataMapRequest putDataMapRequest = buildRequest(locationSetting);
+        if (putDataMapRequest == null) {
+            return;
+        }
+        String hash = putDataMapRequest.getDataMap().getString(KEY_HASH);
+        if (!force && hash.equals(mPublishedHash)) {
+            Log.d(LOG_TAG, "Forecast unchanged, nothing to send");
+            return;
+        }
+
+        if (!mGoogleApiClient.isConnected()) {
+            ConnectionResult connectionResult = mGoogleApiClient.blockingConnect(
+                    TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            if (!connectionResult.isSuccess()) {
+                Log.d(LOG_TAG, "Failed to connect to the wearable API: " + connectionResult);
+                return;
+            }
+        }
+
+        NodeApi.GetConnectedNodesResult nodesResult = Wearable.NodeApi
+                .getConnectedNodes(mGoogleApiClient)
+                .await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        if (!nodesResult.getStatus().isSuccess() || nodesResult.getNodes().isEmpty()) {
+            // The watch asks for the forecast when it connects.
+            Log.d(LOG_TAG, "No watch connected");
+            return;
+        }
+
+        DataApi.DataItemResult dataItemResult = Wearable.DataApi
+                .putDataItem(mGoogleApiClient, putDataMapRequest.asPutDataRequest())
+                .await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        if (!dataItemResult.getStatus().isSuccess()) {
+            Log.d(LOG_TAG, "Failed to send weather data");
+        } else {
+            mPublishedHash = hash;
+            Log.d(LOG_TAG, "Successfully sent weather data");
+        }
+    }
+
+    /**
+     * @return the data item for the location's forecast from today on, or null if none is
+     * stored.
+     */
+    private PutDataMapRequest buildRequest(String locationSetting) {
+        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                locationSetting, System.currentTimeMillis());
+        Cursor cursor = mContext.getContentResolver().query(weatherUri, FORECAST_PROJECTION,
+                null, null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            PutDataMapRequest putDataMapRequest = PutDataMapRequest.create(WEATHER_INFO_PATH);
+            DataMap dataMap = putDataMapRequest.getDataMap();
+            dataMap.putString(KEY_HIGH,
+                    Utility.formatTemperature(mContext, cursor.getDouble(INDEX_MAX_TEMP)));
+            dataMap.putString(KEY_LOW,
+                    Utility.formatTemperature(mContext, cursor.getDouble(INDEX_MIN_TEMP)));
+            dataMap.putInt(KEY_WEATHER_ID, cursor.getInt(INDEX_WEATHER_ID));
+            dataMap.putByteArray(KEY_FORECAST, packForecast(cursor));
+            dataMap.putBoolean(KEY_METRIC, Utility.isMetric(mContext));
+            dataMap.putString(KEY_HASH, hash(dataMap));
+            return putDataMapRequest;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Packs up to {@link #MAX_DAYS} rows, starting with the cursor's current one.
+     */
+    static byte[] packForecast(Cursor cursor) {
+        int days = Math.min(MAX_DAYS, cursor.getCount() - cursor.getPosition());
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + days * BYTES_PER_DAY);
+        buffer.put((byte) FORECAST_FORMAT_VERSION);
+        buffer.put((byte) days);
+        for (int i = 0; i < days; i++, cursor.moveToNext()) {
+            buffer.putInt((int) (cursor.getLong(INDEX_DATE) / DAY_IN_MILLIS));
+            buffer.putShort((short) Math.round(cursor.getDouble(INDEX_MAX_TEMP) * 10));
+            buffer.putShort((short) Math.round(cursor.getDouble(INDEX_MIN_TEMP) * 10));
+            buffer.putShort((short) cursor.getInt(INDEX_WEATHER_ID));
+        }
+        return buffer.array();
+    }
+
+    private static String hash(DataMap dataMap) {
+        MessageDigest digest = ForecastValidators.newBodyDigest();
+        digest.update(dataMap.getByteArray(KEY_FORECAST));
+        digest.update((byte) (dataMap.getBoolean(KEY_METRIC) ? 1 : 0));
+        // The formatted values also follow the locale.
+        Charset utf8 = Charset.forName("UTF-8");
+        digest.update(dataMap.getString(KEY_HIGH).getBytes(utf8));
+        digest.update(dataMap.getString(KEY_LOW).getBytes(utf8));
+        return ForecastValidators.toHash(digest);
+    }
+}
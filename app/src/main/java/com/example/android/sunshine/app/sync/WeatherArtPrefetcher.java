@@ -0,0 +1,128 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.ConnectivityManager;
+import android.net.Uri;
+import android.preference.PreferenceManager;
+import android.support.v4.net.ConnectivityManagerCompat;
+import android.util.Log;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.request.FutureTarget;
+import com.bumptech.glide.request.target.Target;
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.io.File;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Downloads the art for every condition in a location's stored forecast into Glide's disk
+ * cache, so the list, the detail view and the notification find it there instead of going to
+ * the network while the user scrolls.
+ *
+ * What is cached is the image as downloaded.  The views are laid out at sizes only known at
+ * draw time, so each load decodes it at its own size, which is cheap next to the download.
+ */
+class WeatherArtPrefetcher {
+    private static final String LOG_TAG = WeatherArtPrefetcher.class.getSimpleName();
+
+    // There are only eight kinds of art, so this is every one a forecast can need.
+    static final int MAX_IMAGES = 8;
+    // Per image; the fan-out's timeout bounds the whole prefetch.
+    static final long IMAGE_TIMEOUT_MILLIS = 10 * 1000;
+
+    private static final String[] WEATHER_ID_PROJECTION = {
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID
+    };
+
+    private WeatherArtPrefetcher() {
+    }
+
+    /**
+     * Prefetches the art for the location's forecast from today on.  Does nothing on a metered
+     * network, or when nothing would show the art.  Called on a worker thread; gives up when
+     * it is interrupted.
+     */
+    static void prefetch(Context context, String locationSetting) throws InterruptedException {
+        if (!isNeeded(context)) {
+            return;
+        }
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm == null || ConnectivityManagerCompat.isActiveNetworkMetered(cm)) {
+            Log.d(LOG_TAG, "Metered network, not prefetching art");
+            return;
+        }
+
+        Set<String> artUrls = getArtUrls(context, locationSetting);
+        int fetched = 0;
+        for (String artUrl : artUrls) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            FutureTarget<File> target = Glide.with(context)
+                    .load(artUrl)
+                    .downloadOnly(Target.SIZE_ORIGINAL, Target.SIZE_ORIGINAL);
+            try {
+                // Returns at once if the image is already cached.
+                target.get(IMAGE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                fetched++;
+            } catch (ExecutionException | TimeoutException e) {
+                // The view that needs it will try again.
+                Log.d(LOG_TAG, "Couldn't prefetch " + artUrl + ": " + e);
+            } finally {
+                Glide.clear(target);
+            }
+        }
+        Log.d(LOG_TAG, "Art for " + locationSetting + ": " + fetched + " of "
+                + artUrls.size() + " images cached");
+    }
+
+    /**
+     * The list and the detail view use the bundled art for the Sunshine pack, but the
+     * notification always loads it through Glide.
+     */
+    private static boolean isNeeded(Context context) {
+        if (!Utility.usingLocalGraphics(context)) {
+            return true;
+        }
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return prefs.getBoolean(context.getString(R.string.pref_enable_notifications_key),
+                Boolean.parseBoolean(
+                        context.getString(R.string.pref_enable_notifications_default)));
+    }
+
+    /**
+     * @return the distinct art urls, in the order of the days that need them, at most
+     * {@link #MAX_IMAGES} of them.
+     */
+    private static Set<String> getArtUrls(Context context, String locationSetting) {
+        Set<String> artUrls = new LinkedHashSet<String>();
+        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                locationSetting, System.currentTimeMillis());
+        Cursor cursor = context.getContentResolver().query(weatherUri, WEATHER_ID_PROJECTION,
+                null, null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        if (cursor == null) {
+            return artUrls;
+        }
+        try {
+            while (cursor.moveToNext() && artUrls.size() < MAX_IMAGES) {
+                String artUrl = Utility.getArtUrlForWeatherCondition(context, cursor.getInt(0));
+                if (artUrl != null) {
+                    artUrls.add(artUrl);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return artUrls;
+    }
+}
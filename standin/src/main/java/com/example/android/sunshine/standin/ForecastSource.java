@@ -0,0 +1,207 @@
+package com.example.android.sunshine.standin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Where the stand-in's forecast bodies come from.
+ *
+ * With a replay directory, a request for location q is answered with q.json if there is
+ * one; otherwise the recordings are handed out in turn, so consecutive syncs see the forecast
+ * change.  Recordings are plain responses saved from the real endpoint, e.g. with curl.
+ *
+ * Without one, a forecast is generated.  It stays the same for a whole model run and changes
+ * when the next run starts, like the real thing.  3 hour forecasts are always generated.
+ */
+class ForecastSource {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String[] DESCRIPTIONS = {"Clear", "Clouds", "Rain", "Snow"};
+    private static final int[] WEATHER_IDS = {800, 803, 500, 600};
+    private static final long DAY_IN_SECONDS = 24 * 60 * 60;
+    private static final long PERIOD_IN_SECONDS = 3 * 60 * 60;
+
+    /**
+     * A response body, and when it was published.
+     */
+    static class Forecast {
+        final byte[] body;
+        final long lastModified;
+
+        Forecast(byte[] body, long lastModified) {
+            this.body = body;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final File[] mRecordings;
+    private final AtomicInteger mNextRecording = new AtomicInteger();
+    private final long mModelRunMillis;
+
+    /**
+     * @param replayDir the recordings to replay, or null to generate forecasts.
+     * @param modelRunMillis how long a generated forecast stays the same.
+     */
+    ForecastSource(File replayDir, long modelRunMillis) throws IOException {
+        mModelRunMillis = modelRunMillis;
+        if (replayDir == null) {
+            mRecordings = null;
+            return;
+        }
+        mRecordings = replayDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(".json");
+            }
+        });
+        if (mRecordings == null || mRecordings.length == 0) {
+            throw new IOException("No .json recordings in " + replayDir);
+        }
+        Arrays.sort(mRecordings);
+    }
+
+    Forecast get(Map<String, String> query) throws IOException {
+        String location = getLocation(query);
+
+        if (mRecordings != null) {
+            File recording = new File(mRecordings[0].getParentFile(), location + ".json");
+            if (!recording.isFile()) {
+                int next = (mNextRecording.getAndIncrement() & Integer.MAX_VALUE)
+                        % mRecordings.length;
+                recording = mRecordings[next];
+            }
+            return new Forecast(readFully(recording), recording.lastModified());
+        }
+
+        int days = 14;
+        if (query.containsKey("cnt")) {
+            days = Integer.parseInt(query.get("cnt"));
+        }
+        long modelRun = System.currentTimeMillis() / mModelRunMillis;
+        return new Forecast(generate(location, days, modelRun), modelRun * mModelRunMillis);
+    }
+
+    Forecast getHourly(Map<String, String> query) {
+        String location = getLocation(query);
+        int periods = 40;
+        if (query.containsKey("cnt")) {
+            periods = Integer.parseInt(query.get("cnt"));
+        }
+        long modelRun = System.currentTimeMillis() / mModelRunMillis;
+        return new Forecast(generateHourly(location, periods, modelRun),
+                modelRun * mModelRunMillis);
+    }
+
+    private static String getLocation(Map<String, String> query) {
+        String location = query.get("q");
+        if (location == null && query.containsKey("lat")) {
+            location = query.get("lat") + "," + query.get("lon");
+        }
+        return location != null ? location : "";
+    }
+
+    /**
+     * Builds a forecast/daily response in the shape OpenWeatherMap sends, with values that
+     * depend only on the location and the model run.
+     */
+    static byte[] generate(String location, int days, long modelRun) {
+        int seed = location.hashCode() * 31 + (int) modelRun;
+        long today = System.currentTimeMillis() / 1000 / DAY_IN_SECONDS * DAY_IN_SECONDS;
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"city\":{\"id\":").append(Math.abs(location.hashCode()))
+                .append(",\"name\":\"").append(location.replaceAll("[\"\\\\]", ""))
+                .append("\",\"coord\":{\"lon\":-122.083847,\"lat\":37.386051},")
+                .append("\"country\":\"US\",\"population\":0},")
+                .append("\"cod\":\"200\",\"message\":0.0132,\"cnt\":").append(days)
+                .append(",\"list\":[");
+        for (int i = 0; i < days; i++) {
+            if (i > 0) json.append(',');
+            int kind = Math.abs(seed + i) % DESCRIPTIONS.length;
+            double swing = (Math.abs(seed * 7 + i * 13) % 50) / 10.0;
+            json.append("{\"dt\":").append(today + i * DAY_IN_SECONDS)
+                    .append(",\"temp\":{\"day\":").append(format(14.2 + swing))
+                    .append(",\"min\":").append(format(8.25 + swing - i * 0.5))
+                    .append(",\"max\":").append(format(16.75 + swing + i * 0.5))
+                    .append(",\"night\":8.25,\"eve\":12.1,\"morn\":9.02},")
+                    .append("\"pressure\":").append(format(1013.45 - i))
+                    .append(",\"humidity\":").append(60 + i)
+                    .append(",\"weather\":[{\"id\":").append(WEATHER_IDS[kind])
+                    .append(",\"main\":\"").append(DESCRIPTIONS[kind])
+                    .append("\",\"description\":\"some ").append(DESCRIPTIONS[kind])
+                    .append("\",\"icon\":\"01d\"}],")
+                    .append("\"speed\":").append(format(2.5 + swing))
+                    .append(",\"deg\":").append(270 - i)
+                    .append(",\"clouds\":").append(i * 5)
+                    .append("}");
+        }
+        json.append("]}");
+        return json.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * Builds a 5 day / 3 hour forecast response in the shape OpenWeatherMap sends, starting
+     * with the current period.
+     */
+    static byte[] generateHourly(String location, int periods, long modelRun) {
+        int seed = location.hashCode() * 31 + (int) modelRun;
+        long now = System.currentTimeMillis() / 1000 / PERIOD_IN_SECONDS * PERIOD_IN_SECONDS;
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"cod\":\"200\",\"message\":0.0132,\"cnt\":").append(periods)
+                .append(",\"list\":[");
+        for (int i = 0; i < periods; i++) {
+            if (i > 0) json.append(',');
+            int kind = Math.abs(seed + i / 8) % DESCRIPTIONS.length;
+            // A daily swing, warmest in the afternoon.
+            double temp = 12.5 + 5 * Math.sin((i % 8 - 3) * Math.PI / 4)
+                    + (Math.abs(seed) % 50) / 10.0;
+            json.append("{\"dt\":").append(now + i * PERIOD_IN_SECONDS)
+                    .append(",\"main\":{\"temp\":").append(format(temp))
+                    .append(",\"pressure\":").append(format(1013.45 - i * 0.1))
+                    .append(",\"humidity\":").append(60 + i % 8)
+                    .append("},\"weather\":[{\"id\":").append(WEATHER_IDS[kind])
+                    .append(",\"main\":\"").append(DESCRIPTIONS[kind])
+                    .append("\",\"description\":\"some ").append(DESCRIPTIONS[kind])
+                    .append("\",\"icon\":\"01d\"}],")
+                    .append("\"clouds\":{\"all\":").append(i % 8 * 10)
+                    .append("},\"wind\":{\"speed\":").append(format(2.5 + i % 5))
+                    .append(",\"deg\":").append(270 - i)
+                    .append("}}");
+        }
+        json.append("],\"city\":{\"id\":").append(Math.abs(location.hashCode()))
+                .append(",\"name\":\"").append(location.replaceAll("[\"\\\\]", ""))
+                .append("\",\"coord\":{\"lon\":-122.083847,\"lat\":37.386051},")
+                .append("\"country\":\"US\"}}");
+        return json.toString().getBytes(UTF_8);
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.US, "%.2f", value);
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.example.android.sunshine.standin;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A local stand-in for OpenWeatherMap's forecast/daily and 5 day / 3 hour forecast endpoints,
+ * so the sync adapter can be exercised, load-tested and benchmarked without the real network.
+ *
+ * Point a debug build at it with
+ *
+ *     ./gradlew installDebug -PforecastBaseUrl=http://10.0.2.2:8080/data/2.5/forecast/daily?
+ *
+ * (10.0.2.2 is the host as seen from the emulator).  Bodies are replayed from recordings or
+ * generated, see {@link ForecastSource}.  Every response carries an ETag and Last-Modified and
+ * conditional requests are answered with 304, gzip is used when asked for, and latency,
+ * errors and truncated bodies can be injected.  Run with --help for the options.
+ */
+public class StandInServer {
+
+    private static final String PATH = "/data/2.5/forecast/daily";
+    private static final String HOURLY_PATH = "/data/2.5/forecast";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String USAGE = "Options:\n"
+            + "  --port N                 port to listen on (8080)\n"
+            + "  --replay DIR             replay the .json recordings in DIR instead of\n"
+            + "                           generating forecasts\n"
+            + "  --model-run SECONDS      how long a generated forecast stays the same (10800)\n"
+            + "  --latency MILLIS         delay before every response (0)\n"
+            + "  --jitter MILLIS          up to this much extra random delay (0)\n"
+            + "  --error-rate P           answer this share of requests with an error (0)\n"
+            + "  --error-status CODE      the status used for those errors (503)\n"
+            + "  --truncate-rate P        cut this share of bodies off halfway (0)\n"
+            + "  --not-modified-rate P    answer this share of requests with 304 even when the\n"
+            + "                           client's validators are stale (0)\n"
+            + "  --no-validators          send neither ETag nor Last-Modified\n"
+            + "  --seed N                 seed for the injected faults\n";
+
+    static class Options {
+        int port = 8080;
+        File replayDir;
+        long modelRunMillis = 3 * 60 * 60 * 1000;
+        long latencyMillis;
+        long jitterMillis;
+        double errorRate;
+        int errorStatus = 503;
+        double truncateRate;
+        double notModifiedRate;
+        boolean validators = true;
+        long seed = System.nanoTime();
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--no-validators")) {
+                    options.validators = false;
+                    continue;
+                }
+                if (arg.equals("--help") || i + 1 == args.length) {
+                    throw new IllegalArgumentException(arg);
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--port": options.port = Integer.parseInt(value); break;
+                    case "--replay": options.replayDir = new File(value); break;
+                    case "--model-run": options.modelRunMillis = Long.parseLong(value) * 1000; break;
+                    case "--latency": options.latencyMillis = Long.parseLong(value); break;
+                    case "--jitter": options.jitterMillis = Long.parseLong(value); break;
+                    case "--error-rate": options.errorRate = Double.parseDouble(value); break;
+                    case "--error-status": options.errorStatus = Integer.parseInt(value); break;
+                    case "--truncate-rate": options.truncateRate = Double.parseDouble(value); break;
+                    case "--not-modified-rate": options.notModifiedRate = Double.parseDouble(value); break;
+                    case "--seed": options.seed = Long.parseLong(value); break;
+                    default: throw new IllegalArgumentException(arg);
+                }
+            }
+            return options;
+        }
+    }
+
+    private final Options mOptions;
+    private final ForecastSource mSource;
+    private final Random mRandom;
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private HttpServer mServer;
+
+    StandInServer(Options options) throws IOException {
+        mOptions = options;
+        mSource = new ForecastSource(options.replayDir, options.modelRunMillis);
+        mRandom = new Random(options.seed);
+    }
+
+    void start() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(mOptions.port), 0);
+        mServer.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange, false);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        // The longest matching path wins, so this one doesn't take the daily requests.
+        mServer.createContext(HOURLY_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange, true);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        // Slow responses mustn't hold up the ones behind them.
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.start();
+    }
+
+    void stop() {
+        mServer.stop(0);
+    }
+
+    int getPort() {
+        return mServer.getAddress().getPort();
+    }
+
+    private void serve(HttpExchange exchange, boolean hourly) throws IOException {
+        long start = System.nanoTime();
+        long request = mRequestCount.incrementAndGet();
+
+        try {
+            long delay = mOptions.latencyMillis;
+            if (mOptions.jitterMillis > 0) {
+                delay += (long) (nextDouble() * mOptions.jitterMillis);
+            }
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        Headers requestHeaders = exchange.getRequestHeaders();
+        Headers responseHeaders = exchange.getResponseHeaders();
+        if (nextDouble() < mOptions.errorRate) {
+            byte[] body = ("{\"cod\":\"" + mOptions.errorStatus
+                    + "\",\"message\":\"injected error\"}").getBytes(UTF_8);
+            responseHeaders.set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(mOptions.errorStatus, body.length);
+            exchange.getResponseBody().write(body);
+            log(request, start, exchange, mOptions.errorStatus + " injected", body.length);
+            return;
+        }
+
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        ForecastSource.Forecast forecast = hourly ? mSource.getHourly(query) : mSource.get(query);
+        String etag = "\"" + sha1Hex(forecast.body) + "\"";
+        String lastModified = formatHttpDate(forecast.lastModified);
+        if (mOptions.validators) {
+            responseHeaders.set("ETag", etag);
+            responseHeaders.set("Last-Modified", lastModified);
+        }
+
+        String ifNoneMatch = requestHeaders.getFirst("If-None-Match");
+        boolean conditional = ifNoneMatch != null
+                || requestHeaders.getFirst("If-Modified-Since") != null;
+        if ((mOptions.validators && etag.equals(ifNoneMatch))
+                || (conditional && nextDouble() < mOptions.notModifiedRate)) {
+            exchange.sendResponseHeaders(304, -1);
+            log(request, start, exchange, "304", 0);
+            return;
+        }
+
+        byte[] body = forecast.body;
+        String acceptEncoding = requestHeaders.getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            body = gzip(body);
+            responseHeaders.set("Content-Encoding", "gzip");
+        }
+        responseHeaders.set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+
+        OutputStream out = exchange.getResponseBody();
+        if (nextDouble() < mOptions.truncateRate) {
+            // Promise the whole body, send half of it and hang up.  Throwing makes the server
+            // drop the connection instead of waiting for the rest.
+            out.write(body, 0, body.length / 2);
+            out.flush();
+            log(request, start, exchange, "200 truncated", body.length / 2);
+            throw new IOException("Truncated response #" + request);
+        }
+        out.write(body);
+        log(request, start, exchange, "200", body.length);
+    }
+
+    private synchronized double nextDouble() {
+        return mRandom.nextDouble();
+    }
+
+    private static void log(long request, long start, HttpExchange exchange, String outcome,
+                            int bytes) {
+        System.out.println(String.format(Locale.US, "#%d %s?%s -> %s, %d bytes, %dms",
+                request, exchange.getRequestURI().getPath(),
+                exchange.getRequestURI().getRawQuery(), outcome, bytes,
+                (System.nanoTime() - start) / 1000000));
+    }
+
+    static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<String, String>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                query.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return query;
+    }
+
+    private static String formatHttpDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+
+    private static String sha1Hex(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4);
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(data);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    public static void main(String[] args) throws IOException {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+        StandInServer server = new StandInServer(options);
+        server.start();
+        System.out.println("Serving http://localhost:" + server.getPort() + PATH
+                + (options.replayDir != null ? " from " + options.replayDir : ""));
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.android.sunshine.app;
+
+import android.util.Log;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * The days of forecast the phone sends as a byte array, as WearablePublisher.packForecast()
+ * on the phone writes them: a version byte, a day count, then per day the day number since
+ * the epoch (int), high and low in tenths of a degree Celsius (short each) and the weather id
+ * (short).
+ */
+class PackedForecast {
+    private static final String TAG = PackedForecast.class.getSimpleName();
+
+    // Must match WearablePublisher.FORECAST_FORMAT_VERSION on the phone.  A forecast in any
+    // other format is not read.
+    static final int FORMAT_VERSION = 1;
+
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+
+    private final int[] mDays;
+    private final short[] mHighs;
+    private final short[] mLows;
+    private final short[] mWeatherIds;
+
+    private PackedForecast(int count) {
+        mDays = new int[count];
+        mHighs = new short[count];
+        mLows = new short[count];
+        mWeatherIds = new short[count];
+    }
+
+    /**
+     * @return the forecast, or null if there is none or it is not in a format this reads.
+     */
+    static PackedForecast read(byte[] packed) {
+        if (packed == null || packed.length < 2) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(packed);
+        int version = buffer.get();
+        if (version != FORMAT_VERSION) {
+            Log.d(TAG, "[!] Forecast format " + version + " not supported");
+            return null;
+        }
+        int count = buffer.get() & 0xff;
+        PackedForecast forecast = new PackedForecast(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                forecast.mDays[i] = buffer.getInt();
+                forecast.mHighs[i] = buffer.getShort();
+                forecast.mLows[i] = buffer.getShort();
+                forecast.mWeatherIds[i] = buffer.getShort();
+            }
+        } catch (BufferUnderflowException e) {
+            Log.d(TAG, "[!] Forecast cut short", e);
+            return null;
+        }
+        return forecast;
+    }
+
+    /**
+     * @return the day number the phone stores a day under, from the local midnight that
+     * starts it.
+     */
+    static int toDay(long localMidnightMillis) {
+        return (int) (localMidnightMillis / DAY_IN_MILLIS);
+    }
+
+    /**
+     * @return the index of the given day, or -1 if the forecast doesn't cover it.
+     */
+    int indexOf(int day) {
+        for (int i = 0; i < mDays.length; i++) {
+            if (mDays[i] == day) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    double getHigh(int index) {
+        return mHighs[index] / 10.0;
+    }
+
+    double getLow(int index) {
+        return mLows[index] / 10.0;
+    }
+
+    int getWeatherId(int index) {
+        return mWeatherIds[index];
+    }
+}
@@ -31,6 +31,7 @@ import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -47,6 +48,8 @@ import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.wearable.DataApi;
 import com.google.android.gms.wearable.DataEvent;
 import com.google.android.gms.wearable.DataEventBuffer;
+import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.DataItemBuffer;
 import com.google.android.gms.wearable.DataMap;
 import com.google.android.gms.wearable.DataMapItem;
 import com.google.android.gms.wearable.PutDataMapRequest;
@@ -115,6 +118,8 @@ public class WeatherWatchface extends CanvasWatchFaceService {
         private static final String DATA_PARAM_HIGH = "high";
         private static final String DATA_PARAM_LOW = "low";
         private static final String DATA_PARAM_WEATHER_ID = "weatherId";
+        private static final String DATA_PARAM_FORECAST = "forecast";
+        private static final String DATA_PARAM_METRIC = "metric";
 
         final Handler mUpdateTimeHandler = new EngineHandler(this);
         boolean mRegisteredReceiver = false;
@@ -138,6 +143,11 @@ public class WeatherWatchface extends CanvasWatchFaceService {
         Bitmap mWeatherIcon;
         String mWeatherHi;
         String mWeatherLo;
+        // The days the phone last sent, to carry on from once the day it sent them on is over.
+        PackedForecast mForecast;
+        boolean mMetric = true;
+        // The day the weather shown is for.
+        int mWeatherDay = -1;
 
         boolean mAmbient;
         private Calendar mCalendar;
@@ -375,6 +385,7 @@ public class WeatherWatchface extends CanvasWatchFaceService {
 
             long now = System.currentTimeMillis();
             mCalendar.setTimeInMillis(now);
+            showForecastDay();
 
             boolean is24Hour = DateFormat.is24HourFormat(WeatherWatchface.this);
             int minute = mCalendar.get(Calendar.MINUTE);
@@ -487,6 +498,7 @@ public class WeatherWatchface extends CanvasWatchFaceService {
         @Override
         public void onConnected(Bundle bundle) {
             Wearable.DataApi.addListener(mGoogleApiClient, Engine.this);
+            readWeatherData();
             fetchWeatherData();
         }
 
@@ -499,36 +511,116 @@ public class WeatherWatchface extends CanvasWatchFaceService {
         public void onDataChanged(DataEventBuffer dataEvents) {
             for (DataEvent dataEvent : dataEvents) {
                 if (dataEvent.getType() == DataEvent.TYPE_CHANGED) {
-                    DataMap weatherDataMap = DataMapItem.fromDataItem(dataEvent.getDataItem()).getDataMap();
                     String path = dataEvent.getDataItem().getUri().getPath();
                     Log.d(TAG, "weatherDataUriPath=" + path);
 
                     if (path.equals(WEATHER_URI_INFO_PATH)) {
-                        if (weatherDataMap.containsKey(DATA_PARAM_HIGH))
-                            mWeatherHi = weatherDataMap.getString(DATA_PARAM_HIGH);
-                        else
-                            Log.d(TAG, "[!] High Temperature not fetched");
-
-                        if (weatherDataMap.containsKey(DATA_PARAM_LOW))
-                            mWeatherLo = weatherDataMap.getString(DATA_PARAM_LOW);
-                        else
-                            Log.d(TAG, "[!] Low Temperature not fetched");
+                        updateWeather(DataMapItem.fromDataItem(dataEvent.getDataItem()).getDataMap());
                     }
+                }
+            }
+        }
+
+        /**
+         * Shows the weather the phone last sent.  The phone only sends it again when it
+         * changes, so a watch face that has just started, or reconnected, reads it rather than
+         * waiting for a change that may not come.
+         */
+        private void readWeatherData() {
+            Uri uri = new Uri.Builder()
+                    .scheme(PutDataRequest.WEAR_URI_SCHEME)
+                    .path(WEATHER_URI_INFO_PATH)
+                    .build();
+            Wearable.DataApi.getDataItems(mGoogleApiClient, uri)
+                    .setResultCallback(new ResultCallback<DataItemBuffer>() {
+                        @Override
+                        public void onResult(DataItemBuffer dataItems) {
+                            try {
+                                if (!dataItems.getStatus().isSuccess()) {
+                                    Log.d(TAG, "[!] Stored weather data not read");
+                                    return;
+                                }
+                                for (DataItem dataItem : dataItems) {
+                                    updateWeather(DataMapItem.fromDataItem(dataItem).getDataMap());
+                                }
+                            } finally {
+                                dataItems.release();
+                            }
+                        }
+                    });
+        }
 
-                    if (weatherDataMap.containsKey(DATA_PARAM_WEATHER_ID)) {
-                        int weatherId = weatherDataMap.getInt(DATA_PARAM_WEATHER_ID);
-                        Drawable b = getResources().getDrawable(Utils.getWeatherIconResource(weatherId));
-                        Bitmap icon = ((BitmapDrawable) b).getBitmap();
+        private void updateWeather(DataMap weatherDataMap) {
+            if (weatherDataMap.containsKey(DATA_PARAM_HIGH))
+                mWeatherHi = weatherDataMap.getString(DATA_PARAM_HIGH);
+            else
+                Log.d(TAG, "[!] High Temperature not fetched");
+
+            if (weatherDataMap.containsKey(DATA_PARAM_LOW))
+                mWeatherLo = weatherDataMap.getString(DATA_PARAM_LOW);
+            else
+                Log.d(TAG, "[!] Low Temperature not fetched");
+
+            if (weatherDataMap.containsKey(DATA_PARAM_WEATHER_ID))
+                setWeatherIcon(weatherDataMap.getInt(DATA_PARAM_WEATHER_ID));
+            else
+                Log.d(TAG, "[!] Weather not fetched");
+
+            mMetric = weatherDataMap.getBoolean(DATA_PARAM_METRIC, true);
+            mForecast = PackedForecast.read(weatherDataMap.getByteArray(DATA_PARAM_FORECAST));
+            // The phone sends today's weather, formatted, as the first day.
+            mWeatherDay = getToday();
+            invalidate();
+        }
 
-                        float scaledWidth = (mTempHiPaint.getTextSize() / icon.getHeight()) * icon.getWidth();
-                        mWeatherIcon = Bitmap.createScaledBitmap(icon, (int) scaledWidth, (int) mTempHiPaint.getTextSize(), true);
+        /**
+         * Once the day the phone sent its weather on is over, shows the new day's from the
+         * forecast it sent along, until it sends something newer.
+         */
+        private void showForecastDay() {
+            if (mForecast == null) {
+                return;
+            }
+            int today = getToday();
+            if (today == mWeatherDay) {
+                return;
+            }
+            int index = mForecast.indexOf(today);
+            if (index == -1) {
+                return;
+            }
+            mWeatherHi = formatTemperature(mForecast.getHigh(index));
+            mWeatherLo = formatTemperature(mForecast.getLow(index));
+            setWeatherIcon(mForecast.getWeatherId(index));
+            mWeatherDay = today;
+        }
 
-                    } else
-                        Log.d(TAG, "[!] Weather not fetched");
+        /**
+         * @return today's day number, as the phone numbers the days of the forecast.
+         */
+        private int getToday() {
+            Calendar midnight = (Calendar) mCalendar.clone();
+            midnight.set(Calendar.HOUR_OF_DAY, 0);
+            midnight.set(Calendar.MINUTE, 0);
+            midnight.set(Calendar.SECOND, 0);
+            midnight.set(Calendar.MILLISECOND, 0);
+            return PackedForecast.toDay(midnight.getTimeInMillis());
+        }
 
-                    invalidate();
-                }
+        // The forecast is in Celsius; the phone says which the user reads.
+        private String formatTemperature(double temperature) {
+            if (!mMetric) {
+                temperature = (temperature * 1.8) + 32;
             }
+            return String.format(getString(R.string.format_temperature), temperature);
+        }
+
+        private void setWeatherIcon(int weatherId) {
+            Drawable b = getResources().getDrawable(Utils.getWeatherIconResource(weatherId));
+            Bitmap icon = ((BitmapDrawable) b).getBitmap();
+
+            float scaledWidth = (mTempHiPaint.getTextSize() / icon.getHeight()) * icon.getWidth();
+            mWeatherIcon = Bitmap.createScaledBitmap(icon, (int) scaledWidth, (int) mTempHiPaint.getTextSize(), true);
         }
 
         @Override